@@ -0,0 +1,206 @@
+package benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import assembler.Assembler;
+import assembler.ObjectFiles;
+import assembler.ObjectRecords;
+import assembler.ObjectWriter;
+import assembler.ObjectWriter.Format;
+import assembler.Pass1Info;
+import parse.SicLine;
+
+// Throughput and allocation of the parser, the encoder, both passes and reading
+// the object program back in either format
+//
+// usage: AssemblerBenchmarks [lines ...]
+// Every size in lines (1000, 100000 and 1000000 by default, up to 10000000)
+// gets a synthetic program from ProgramGenerator. Run with a fixed heap, e.g.
+// java -Xms4g -Xmx4g, so results are comparable between runs
+public final class AssemblerBenchmarks {
+
+	private static final int WARMUPS = 5, ITERATIONS = 10;
+
+	// one line of each instruction format, with the symbols they use
+	private static final String[] FORMATS = { "        FIX", "        COMPR   %RA,%RS",
+			"        LDA     BUFFER", "       +JSUB    RDREC" };
+
+	private AssemblerBenchmarks() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int[] sizes = { 1_000, 100_000, 1_000_000 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++)
+				sizes[i] = Integer.parseInt(args[i]);
+		}
+		Harness harness = new Harness(WARMUPS, ITERATIONS);
+		encode(harness);
+		for (int size : sizes) {
+			System.out.println();
+			System.out.println("Program of " + size + " lines");
+			program(harness, ProgramGenerator.generate(size));
+		}
+	}
+
+	// SicLine.getObjectCode and the allocation free ByteBuffer encode, per format
+	private static void encode(Harness harness) throws Exception {
+		Map<String, Integer> symtab = new HashMap<>();
+		symtab.put("BUFFER", 0x1036);
+		symtab.put("RDREC", 0x2039);
+		int batch = 1 << 16;
+		for (int format = 1; format <= FORMATS.length; format++) {
+			SicLine line = SicLine.parseLine(FORMATS[format - 1], 0x1000);
+			harness.run("getObjectCode format " + format, "op", () -> {
+				String code = null;
+				for (int i = 0; i < batch; i++)
+					code = line.getObjectCode(symtab, false, 0);
+				Harness.sink = code;
+				return batch;
+			});
+			ByteBuffer buffer = ByteBuffer.allocate(4 * batch);
+			harness.run("encode(ByteBuffer) format " + format, "op", () -> {
+				buffer.clear();
+				for (int i = 0; i < batch; i++)
+					line.encode(symtab, false, 0, buffer);
+				Harness.sink = buffer;
+				return batch;
+			});
+		}
+	}
+
+	private static void program(Harness harness, List<String> generated) throws Exception {
+		// materialised once so the generator is not measured
+		List<String> lines = new ArrayList<>(generated);
+		int count = lines.size();
+
+		harness.run("parseLine", "line", () -> {
+			SicLine parsed = null;
+			for (String line : lines)
+				if (!SicLine.isSkippable(line))
+					parsed = SicLine.parseLine(line, 0);
+			Harness.sink = parsed;
+			return count;
+		});
+		harness.run("pass1", "line", () -> {
+			Harness.sink = Assembler.pass1(lines);
+			return count;
+		});
+		harness.run("pass1Parallel", "line", () -> {
+			Harness.sink = Assembler.pass1Parallel(lines);
+			return count;
+		});
+
+		Pass1Info pass1 = Assembler.pass1Parallel(lines);
+		Assembler.verify(pass1);
+		harness.run("pass2", "line", () -> {
+			Harness.sink = Assembler.pass2(pass1);
+			return count;
+		});
+		// records are dropped as they are produced, so only the writer is measured
+		long[] chars = new long[1];
+		Consumer<String> discard = record -> chars[0] += record.length();
+		harness.run("pass2 record strings", "line", () -> {
+			Assembler.pass2(pass1, discard);
+			return count;
+		});
+		Harness.sink = chars;
+		WritableByteChannel discardBytes = new WritableByteChannel() {
+			@Override
+			public int write(ByteBuffer src) {
+				int n = src.remaining();
+				src.position(src.limit());
+				return n;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return true;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		ObjectWriter out = new ObjectWriter(discardBytes);
+		harness.run("pass2 record writer", "line", () -> {
+			Assembler.pass2(pass1, out);
+			out.flush();
+			return count;
+		});
+		ObjectWriter binaryOut = new ObjectWriter(discardBytes, Format.BINARY);
+		harness.run("pass2 binary writer", "line", () -> {
+			Assembler.pass2(pass1, binaryOut);
+			binaryOut.flush();
+			return count;
+		});
+
+		// the same program in both formats, read without loading it anywhere
+		List<String> text = Assembler.pass2(pass1);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectWriter binary = new ObjectWriter(Channels.newChannel(bytes), Format.BINARY);
+		Assembler.pass2(pass1, binary);
+		binary.flush();
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+		Discard records = new Discard();
+		harness.run("read text records", "line", () -> {
+			ObjectFiles.readText(text, records);
+			return count;
+		});
+		harness.run("read binary records", "line", () -> {
+			ObjectFiles.readBinary(buffer.duplicate(), records);
+			return count;
+		});
+		Harness.sink = records;
+	}
+
+	// counts the object bytes it is handed
+	private static final class Discard implements ObjectRecords {
+
+		long bytes;
+
+		@Override
+		public void header(String programName, int startAddr, int programLength) {
+		}
+
+		@Override
+		public void define(String[] names, int[] addresses) {
+		}
+
+		@Override
+		public void refer(String[] names) {
+		}
+
+		@Override
+		public void symbols(Map<String, Integer> symtab) {
+		}
+
+		@Override
+		public void text(byte[] code, int off, int len, int addr) {
+			bytes += len;
+		}
+
+		@Override
+		public void modification(int addr, int halfBytes, char sign, String symbol) {
+		}
+
+		@Override
+		public void end(int startAddr) {
+		}
+
+		@Override
+		public void end() {
+		}
+
+	}
+
+}
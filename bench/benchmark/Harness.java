@@ -0,0 +1,51 @@
+package benchmark;
+
+import java.util.Locale;
+
+import assembler.AssemblyStats;
+
+// Minimal JMH style measurement loop
+// Each benchmark runs its warmup iterations, then its measured iterations on the
+// same thread, and reports operations per second and bytes allocated per
+// operation as counted by the JVM for that thread
+final class Harness {
+
+	// a single iteration, returning how many operations it performed
+	interface Workload {
+		long run() throws Exception;
+	}
+
+	// other VMs only get throughput
+	private static final com.sun.management.ThreadMXBean THREADS = AssemblyStats.threads();
+
+	private final int warmups, iterations;
+	// keeps results alive so the JIT cannot drop the work
+	static volatile Object sink;
+
+	Harness(int warmups, int iterations) {
+		this.warmups = warmups;
+		this.iterations = iterations;
+	}
+
+	void run(String name, String unit, Workload workload) throws Exception {
+		for (int i = 0; i < warmups; i++)
+			workload.run();
+		long ops = 0;
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			ops += workload.run();
+		long nanos = System.nanoTime() - start;
+		allocated = allocatedBytes() - allocated;
+		System.out.println(String.format(Locale.ROOT, "%-28s %14.0f %s/s %10.1f B/%s", name,
+				ops * 1e9 / nanos, unit, allocated < 0 ? Double.NaN : (double) allocated / ops,
+				unit));
+	}
+
+	private static long allocatedBytes() {
+		if (THREADS == null)
+			return -1;
+		return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+}
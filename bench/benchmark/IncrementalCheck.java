@@ -0,0 +1,112 @@
+package benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import assembler.Assembler;
+import assembler.IncrementalAssembler;
+import assembler.Pass1Info;
+
+// Random edits of a generated program, each assembled both incrementally and
+// from scratch with pass1, verify and pass2, which must give the same object
+// program or the same error
+//
+// usage: IncrementalCheck [seed [edits]]
+public final class IncrementalCheck {
+
+	private static final int LINES = 400, RESTART = 100;
+
+	// lines an edit inserts or replaces with; %1$d is a copy number and %2$d a size
+	private static final String[] EDITS = { "        LDA     #5", "        LDA     #%2$d",
+			"        +LDA    ZERO%1$d", "NEW%1$d    RESB    %2$d", "        RESW    %2$d",
+			"        J       CLOOP%1$d", "        CLEAR   %%RA", "        STA     BUFFER%1$d",
+			"        BASE    LENGTH%1$d", "        BASE    NEW%1$d", "        NOBASE",
+			"        LDA     NEW%1$d", "        WORD    7", "        WORD    NEW%1$d",
+			"        BYTE    C'EOF'", "        +JSUB   RDREC%1$d" };
+	// edits after which every edit rebuilds, so they are rare
+	private static final String[] GLOBAL_EDITS = { "        USE     DATA", "        USE",
+			"        EXTDEF  FIRST%1$d", "        EXTREF  ELSE", "PART    CSECT",
+			"NEW%1$d    EQU     *", "        ORG     BUFFER%1$d" };
+
+	// the incremental assembler keeps no LineTable, so like the other pipelines
+	// without one it rejects EXTREF
+	private static final String REJECTED = "error: EXTREF needs the parsed lines in memory";
+
+	private IncrementalCheck() {
+	}
+
+	public static void main(String[] args) {
+		long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+		int edits = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		Random random = new Random(seed);
+		List<String> lines = new ArrayList<>();
+		IncrementalAssembler incremental = new IncrementalAssembler();
+		int copies = LINES / 50;
+		long reparsed = 0, reencoded = 0;
+		for (int i = 0; i < edits; i++) {
+			if (i % RESTART == 0) {
+				lines.clear();
+				lines.addAll(ProgramGenerator.generate(LINES));
+			}
+			// never the START or END line
+			int at = 1 + random.nextInt(lines.size() - 2);
+			String[] pool = random.nextInt(20) == 0 ? GLOBAL_EDITS : EDITS;
+			String edit = String.format(pool[random.nextInt(pool.length)],
+					random.nextInt(copies), 1 + random.nextInt(3000));
+			switch (random.nextInt(3)) {
+			case 0:
+				lines.add(at, edit);
+				break;
+			case 1:
+				if (lines.size() > 3)
+					lines.remove(at);
+				break;
+			default:
+				lines.set(at, edit);
+			}
+			String expected = full(lines), actual;
+			try {
+				actual = String.join("\n", incremental.assemble(lines));
+				reparsed += incremental.getReparsedLines();
+				reencoded += incremental.getReencodedLines();
+			} catch (RuntimeException e) {
+				actual = "error: " + e.getMessage();
+			}
+			if (!expected.equals(actual))
+				throw new IllegalStateException("Edit " + i + " of seed " + seed + " ("
+						+ edit + " at line " + at + ") assembles differently incrementally");
+		}
+		System.out.println(edits + " edits, " + reparsed + " lines reparsed, " + reencoded
+				+ " encoded again");
+	}
+
+	private static String full(List<String> lines) {
+		Pass1Info pass1;
+		try {
+			pass1 = Assembler.pass1(lines);
+			Assembler.verify(pass1);
+		} catch (RuntimeException e) {
+			return "error: " + e.getMessage();
+		}
+		try {
+			String code = String.join("\n", Assembler.pass2(pass1));
+			if (hasExtref(lines))
+				return REJECTED;
+			return code;
+		} catch (RuntimeException e) {
+			// pass2 checks EXTDEF symbols before anything else
+			if (hasExtref(lines) && !e.getMessage().startsWith("EXTDEF"))
+				return REJECTED;
+			return "error: " + e.getMessage();
+		}
+	}
+
+	private static boolean hasExtref(List<String> lines) {
+		for (String line : lines)
+			if (line.trim().startsWith("EXTREF"))
+				return true;
+		return false;
+	}
+
+}
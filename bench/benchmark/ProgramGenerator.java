@@ -0,0 +1,131 @@
+package benchmark;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractList;
+import java.util.List;
+
+// Synthetic SIC/XE programs of any size, shaped like src/main.asm
+// The program is a START line, copies of a COPY-style body whose labels get the
+// copy number as a suffix so every copy defines its own symbols, and an END line.
+// The body mixes formats 1 to 4, immediate, indirect and indexed operands, BASE,
+// RESW, RESB, WORD and BYTE, so every phase sees the same mix at every size
+public final class ProgramGenerator {
+
+	// label, mnemonic, operands; symbols ending in '$' get the copy suffix
+	private static final String[][] BODY = {
+			{ "FIRST$", "STL", "RETADR$" },
+			{ "", "LDB", "#LENGTH$" },
+			{ "", "BASE", "LENGTH$" },
+			{ "CLOOP$", "+JSUB", "RDREC$" },
+			{ "", "LDA", "LENGTH$" },
+			{ "", "COMP", "#0" },
+			{ "", "JEQ", "ENDFIL$" },
+			{ "", "+JSUB", "WRREC$" },
+			{ "", "J", "CLOOP$" },
+			{ "ENDFIL$", "LDA", "EOF$" },
+			{ "", "STA", "BUFFER$" },
+			{ "", "LDA", "#3" },
+			{ "", "STA", "LENGTH$" },
+			{ "", "+JSUB", "WRREC$" },
+			{ "", "J", "@RETADR$" },
+			{ "EOF$", "BYTE", "C'EOF'" },
+			{ "RETADR$", "RESW", "1" },
+			{ "LENGTH$", "RESW", "1" },
+			{ "ZERO$", "WORD", "0" },
+			{ "BUFFER$", "RESB", "64" },
+			{ "", "NOBASE", null },
+			{ "RDREC$", "CLEAR", "%RX" },
+			{ "", "CLEAR", "%RA" },
+			{ "", "CLEAR", "%RS" },
+			{ "", "+LDT", "#4096" },
+			{ "RLOOP$", "TD", "INPUT$" },
+			{ "", "JEQ", "RLOOP$" },
+			{ "", "RD", "INPUT$" },
+			{ "", "COMPR", "%RA,%RS" },
+			{ "", "JEQ", "EXIT$" },
+			{ "", "STCH", "BUFFER$[%RX]" },
+			{ "", "TIXR", "%RT" },
+			{ "", "JLT", "RLOOP$" },
+			{ "EXIT$", "STX", "LENGTH$" },
+			{ "", "FIX", null },
+			{ "", "J", "@RETADR$" },
+			{ "INPUT$", "BYTE", "X'F3'" },
+			{ "WRREC$", "CLEAR", "%RX" },
+			{ "", "LDT", "LENGTH$" },
+			{ "WLOOP$", "TD", "OUTPUT$" },
+			{ "", "JEQ", "WLOOP$" },
+			{ "", "LDCH", "BUFFER$[%RX]" },
+			{ "", "WD", "OUTPUT$" },
+			{ "", "TIXR", "%RT" },
+			{ "", "JLT", "WLOOP$" },
+			{ "", "J", "@RETADR$" },
+			{ null, null, null },
+			{ "OUTPUT$", "BYTE", "X'05'" } };
+
+	private ProgramGenerator() {
+	}
+
+	// source lines of a program with at least the given number of lines
+	// lines are built on demand, so even 10M line programs cost no heap until read
+	public static List<String> generate(int lines) {
+		int copies = Math.max(1, (lines - 2 + BODY.length - 1) / BODY.length);
+		int size = copies * BODY.length + 2;
+		return new AbstractList<String>() {
+			@Override
+			public String get(int index) {
+				if (index == 0)
+					return "COPY    START   0";
+				if (index == size - 1)
+					return "        END     FIRST0";
+				int copy = (index - 1) / BODY.length;
+				return line(BODY[(index - 1) % BODY.length], copy);
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	private static String line(String[] fields, int copy) {
+		String suffix = Integer.toString(copy);
+		if (fields[0] == null)
+			// "word.text" lines are comments
+			return "COPY" + suffix + ".generated";
+		StringBuilder sb = new StringBuilder(32);
+		sb.append(fields[0].replace("$", suffix));
+		// an extended mnemonic keeps its '+' in the mnemonic column
+		pad(sb, fields[1].startsWith("+") ? 7 : 8);
+		sb.append(fields[1]);
+		if (fields[2] != null) {
+			pad(sb, 16);
+			sb.append(fields[2].replace("$", suffix));
+		}
+		return sb.toString();
+	}
+
+	private static void pad(StringBuilder sb, int column) {
+		do
+			sb.append(' ');
+		while (sb.length() < column);
+	}
+
+	// usage: ProgramGenerator <lines> <output.asm>
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2)
+			throw new IllegalArgumentException("Usage: ProgramGenerator <lines> <output.asm>");
+		Path out = Paths.get(args[1]);
+		try (BufferedWriter writer = Files.newBufferedWriter(out)) {
+			for (String line : generate(Integer.parseInt(args[0]))) {
+				writer.write(line);
+				writer.newLine();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+package benchmark;
+
+import java.util.Arrays;
+import java.util.List;
+
+import assembler.Assembler;
+import simulator.Machine;
+import simulator.ObjectLoader;
+
+// Instructions per second of the simulator on assembled loops
+//
+// usage: SimulatorBenchmarks [iterations]
+// Every loop runs iterations times (1000000 by default) per measurement
+public final class SimulatorBenchmarks {
+
+	private static final int WARMUPS = 5, ITERATIONS = 10;
+
+	// register operands only, memory operands, and stores, each of which drops
+	// the decoded instructions it overlaps
+	private static final String[][] LOOPS = { {
+			"LOOP    ADDR    %RX,%RA",
+			"        TIXR    %RT",
+			"        JLT     LOOP" }, {
+			"LOOP    ADD     ONE",
+			"        SUB     ONE",
+			"        COMP    ONE",
+			"        TIXR    %RT",
+			"        JLT     LOOP" }, {
+			"LOOP    LDA     ONE",
+			"        STA     DATA",
+			"        TIXR    %RT",
+			"        JLT     LOOP" } };
+	private static final String[] NAMES = { "registers", "memory operands", "stores" };
+
+	private SimulatorBenchmarks() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		Harness harness = new Harness(WARMUPS, ITERATIONS);
+		for (int i = 0; i < LOOPS.length; i++) {
+			List<String> records = Assembler.pass2(Assembler.pass1(program(LOOPS[i])));
+			harness.run("simulate " + NAMES[i], "instruction", () -> {
+				Machine machine = new Machine();
+				ObjectLoader.load(records, machine);
+				machine.setRegister(Machine.T, iterations);
+				long count = machine.run(Long.MAX_VALUE);
+				Harness.sink = machine;
+				return count;
+			});
+		}
+	}
+
+	// the loop, counting X up to T, then a return to the simulator
+	private static List<String> program(String[] loop) {
+		String[] lines = new String[loop.length + 6];
+		lines[0] = "BENCH   START   0";
+		lines[1] = "        CLEAR   %RX";
+		System.arraycopy(loop, 0, lines, 2, loop.length);
+		lines[loop.length + 2] = "        RSUB";
+		lines[loop.length + 3] = "ONE     WORD    1";
+		lines[loop.length + 4] = "DATA    RESW    1";
+		lines[loop.length + 5] = "        END     BENCH";
+		return Arrays.asList(lines);
+	}
+
+}
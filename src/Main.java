@@ -1,108 +1,412 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 import assembler.Assembler;
+import assembler.AssemblerDaemon;
+import assembler.AssemblyCache;
+import assembler.AssemblyStats;
+import assembler.AssemblyStats.Phase;
+import assembler.BatchAssembler;
+import assembler.CrossReference;
+import assembler.ObjectFiles;
+import assembler.ObjectWriter;
+import assembler.ObjectWriter.Format;
 import assembler.Pass1Info;
-import instruction.InstructionInfo;
+import instruction.Optab;
 import parse.SicLine;
+import simulator.Machine;
+import simulator.ObjectLoader;
 
 public class Main {
 
-	public static void main(String[] args) {
+	private static final String[] REGISTER_NAMES = { "A", "X", "L", "B", "S", "T", "F", "",
+			"PC", "SW" };
 
-		final Map<String, InstructionInfo> optab = parseOptab();
+	public static void main(String[] args) {
 
-		// read file
-		if (args.length < 1)
+		// read options and file
+		boolean stream = false, mmap = false, batch = false, stats = false, json = false;
+		boolean onePass = false, relax = false, quiet = false, code = false, run = false;
+		boolean xref = false;
+		Format format = Format.TEXT;
+		String filename = null, cacheDir = null;
+		List<Path> paths = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("--daemon")) {
+				// serve assemble requests on stdin/stdout, or on a loopback port
+				runDaemon(i + 1 < args.length ? Integer.parseInt(args[i + 1]) : -1);
+				return;
+			} else if (arg.equals("--convert")) {
+				// turn a text object file into a binary one, or a binary one into text
+				if (i + 2 >= args.length)
+					throw new IllegalArgumentException("--convert needs two object files");
+				convert(Paths.get(args[i + 1]), Paths.get(args[i + 2]));
+				return;
+			} else if (arg.equals("--cache"))
+				// reuse the outputs of earlier assemblies kept in a directory
+				cacheDir = args[++i];
+			else if (arg.equals("--stream"))
+				// keep memory flat for very large sources
+				stream = true;
+			else if (arg.equals("--mmap"))
+				// lex an ASCII source straight from the mapped file
+				mmap = true;
+			else if (arg.equals("--one-pass"))
+				// read the source once, backpatching forward references
+				onePass = true;
+			else if (arg.equals("--relax"))
+				// choose PC relative, base relative or format 4 for every instruction
+				relax = true;
+			else if (arg.equals("--quiet"))
+				// only write the files, nothing is dumped to the console
+				quiet = true;
+			else if (arg.equals("--listing-code"))
+				// listing lines show each line's object code after its LOCCTR
+				code = true;
+			else if (arg.equals("--xref"))
+				// list where every symbol is defined and used, and write that to .xrf
+				xref = true;
+			else if (arg.equals("--binary"))
+				// write the object file in the compact binary format
+				format = Format.BINARY;
+			else if (arg.equals("--binary-symbols"))
+				// the same, with the SYMTAB for debuggers and linkers
+				format = Format.BINARY_WITH_SYMBOLS;
+			else if (arg.equals("--run"))
+				// load an object file into the simulator and run it
+				run = true;
+			else if (arg.equals("--batch"))
+				// every remaining argument is a source file or a directory of them
+				batch = true;
+			else if (arg.equals("--stats"))
+				// time, throughput and allocation of every phase
+				stats = true;
+			else if (arg.equals("--stats-json"))
+				// the same, as a single line of JSON
+				json = true;
+			else {
+				filename = arg;
+				paths.add(Paths.get(arg));
+			}
+		}
+		AssemblyCache cache = null;
+		try {
+			if (cacheDir != null)
+				cache = new AssemblyCache(Paths.get(cacheDir), AssemblyCache.DEFAULT_MAX_BYTES);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		if (batch) {
+			assembleBatch(paths, cache);
+			return;
+		}
+		if (filename == null)
 			throw new IllegalArgumentException("Please provide filepath in args");
-		String filename = args[0];
 		Path filepath = Paths.get(filename);
 		if (Files.notExists(filepath))
 			throw new IllegalArgumentException("File does not exist");
+		if (run) {
+			runObject(filepath, quiet);
+			return;
+		}
+		if (relax && (stream || onePass) && !mmap)
+			throw new IllegalArgumentException("--relax needs the parsed lines in memory");
+		if (code && onePass && !mmap)
+			throw new IllegalArgumentException("--listing-code needs the parsed lines");
+		if (xref && (stream || onePass) && !mmap)
+			throw new IllegalArgumentException("--xref needs the parsed lines in memory");
+		if (xref && cache != null)
+			throw new IllegalArgumentException("--xref files are not kept in the cache");
 		String objFileName = filename.replace(".asm", ".obj");
 		String lstFileName = filename.replace(".asm", ".lst");
+		Path objFile = Paths.get(objFileName), lstFile = Paths.get(lstFileName);
+		Path xrefFile = xref ? Paths.get(filename.replace(".asm", ".xrf")) : null;
+		AssemblyStats phases = new AssemblyStats();
 		try {
-			List<String> lines = Files.readAllLines(filepath);
-			// parses lines, stores in parsedLines
-			// adds line number to the beginning of each of the lines
-			// updates symtab
-			// return calculated program length
-			Pass1Info pass1 = Assembler.pass1(lines, optab);
-			List<SicLine> parsedLines = pass1.getParsedLines();
-
-			// Verify instructions for consistency with optab
-			for (SicLine sl : parsedLines) {
-				String inst = sl.getInstruction();
-				if (inst.equals("BASE") || inst.equals("NOBASE") || inst.equals("START")
-						|| inst.equals("END"))
-					continue;
-				if (inst.equals("BYTE") || inst.equals("RESB") || inst.equals("WORD")
-						|| inst.equals("RESW"))
-					continue;
-				int numOps = sl.getOperands().length;
-				InstructionInfo instInfo = optab.get(inst);
-				if (instInfo == null)
-					throw new IllegalStateException("Invalid instruction: " + inst);
-				int instOps = instInfo.getArgCount();
-				if (numOps != instOps)
-					throw new IllegalStateException(String.format(
-							"Invalid number of operands for instruction: %s. Found %d, expected %d",
-							inst, numOps, instOps));
+			// every pipeline writes the same files, only these options change them
+			String key = cache == null ? null
+					: AssemblyCache.key(Files.readAllBytes(filepath),
+							AssemblyCache.options(relax, code, format));
+			Map<String, Integer> symtab = key == null ? null : cache.get(key, objFile, lstFile);
+			if (symtab != null) {
+				if (!quiet)
+					System.out.println("Cached, symtab size: " + symtab.size());
+			} else {
+				if (mmap)
+					symtab = assembleMapped(filepath, objFile, lstFile, xrefFile, relax, quiet,
+							code, format, phases);
+				else if (onePass)
+					symtab = Assembler.assembleOnePass(filepath, objFile, lstFile, phases, format)
+							.getSymtab();
+				else if (stream)
+					symtab = assembleStreaming(filepath, objFile, lstFile, quiet, code, format,
+							phases);
+				else
+					symtab = assemble(filepath, objFile, lstFile, xrefFile, relax, quiet, code,
+							format, phases);
+				if (cache != null)
+					cache.put(key, objFile, lstFile, symtab);
 			}
+		} catch (IOException | UncheckedIOException e) {
+			e.printStackTrace();
+		}
+		if (stats)
+			System.out.print("\nStats:\n" + phases.summary());
+		if (json)
+			System.out.println(phases.toJson());
+	}
+
+	// every device reads stdin and writes stdout
+	private static void runObject(Path objFile, boolean quiet) {
+		Machine machine = new Machine();
+		OutputStream out = new BufferedOutputStream(System.out, 1 << 16);
+		for (int device = 0; device < 256; device++)
+			machine.attach(device, System.in, out);
+		long instructions;
+		long start = System.nanoTime();
+		try {
+			ObjectLoader.load(objFile, machine);
+			instructions = machine.run(Long.MAX_VALUE);
+			out.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		long nanos = System.nanoTime() - start;
+		if (!quiet)
+			for (int r : new int[] { Machine.A, Machine.X, Machine.L, Machine.B, Machine.S,
+					Machine.T, Machine.PC, Machine.SW })
+				System.out.println(String.format("%s\t=\t%06X", REGISTER_NAMES[r],
+						machine.register(r)));
+		System.out.println(String.format(Locale.ROOT, "Instructions: %d in %.3f s, %.1f M/s",
+				instructions, nanos / 1e9, instructions * 1e3 / nanos));
+	}
+
+	private static void convert(Path from, Path to) {
+		try {
+			ObjectFiles.convert(from, to);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 
-			// generates object code lines
-			// appends object code to each line to make listing line
-			List<String> objectCode = Assembler.pass2(pass1, optab);
-
-			System.out.println("Lines:");
-			lines.forEach(System.out::println);
-			System.out.println("\nListing lines:");
-			pass1.getListingLines().forEach(System.out::println);
-			;
-			System.out.println("\nParsed lines:");
-			parsedLines.forEach(System.out::println);
-			System.out.println("\nOptab:");
-			optab.forEach((k, v) -> System.out.println(k + "\t=\t" + v));
-			System.out.println("\nSymtab:");
-			pass1.getSymtab().forEach((k, v) -> System.out.println(k + "\t=\t" + v));
-			System.out.println("\nObject Code:");
-			objectCode.forEach(System.out::println);
-			System.out.println("\nStart address: " + pass1.getStartAddr());
-
-			// write to listing file
-			Files.write(Paths.get(lstFileName), pass1.getListingLines());
-			// write to object file
-			Files.write(Paths.get(objFileName), objectCode);
+	private static void runDaemon(int port) {
+		try {
+			if (port < 0)
+				AssemblerDaemon.serve(new InputStreamReader(System.in, StandardCharsets.UTF_8),
+						new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+			else
+				AssemblerDaemon.listen(port, Runtime.getRuntime().availableProcessors());
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
-	public static Map<String, InstructionInfo> parseOptab() {
-		// OPNAME, OPCODE, FORMAT, OPCOUNT
+	private static void assembleBatch(List<Path> paths, AssemblyCache cache) {
 		try {
-			return Collections.unmodifiableMap(Files
-					.lines(Paths.get(".\\src\\optab.txt").toAbsolutePath().normalize())
-					.filter(l -> !l.isEmpty()).filter(l -> !l.startsWith("//"))
-					.map(l -> l.split(","))
-					.map(arr -> Arrays.stream(arr).map(String::trim).toArray(String[]::new))
-					.collect(Collectors.toMap(arr -> arr[0], arr -> {
-						byte opcode = (byte) Integer.parseInt(arr[1], 16);
-						int format = Integer.parseInt(arr[2]);
-						int count = Integer.parseInt(arr[3]);
-						InstructionInfo info = new InstructionInfo(opcode, format, count);
-						return info;
-					})));
+			List<Path> sources = BatchAssembler.collectSources(paths);
+			int threads = Runtime.getRuntime().availableProcessors();
+			BatchAssembler.assembleAll(sources, threads, cache).forEach(System.out::println);
 		} catch (IOException e) {
 			e.printStackTrace();
+		}
+	}
+
+	// each pipeline returns the symtab of what it assembled; xrefFile is null
+	// unless the cross reference is asked for, and the object file is written in
+	// format
+	private static Map<String, Integer> assemble(Path filepath, Path objFile, Path lstFile,
+			Path xrefFile, boolean relax, boolean quiet, boolean code, Format format,
+			AssemblyStats stats) throws IOException {
+		Assembler.loadOptab(stats);
+		List<String> lines = Files.readAllLines(filepath);
+		List<List<String>> sections = Assembler.controlSections(lines);
+		if (sections.size() > 1) {
+			List<Pass1Info> assembled = Assembler.assembleSections(sections, objFile, lstFile,
+					xrefFile, relax, code, format, stats);
+			// symbols are qualified by their section, which is all that keeps them apart
+			Map<String, Integer> symtab = new LinkedHashMap<>();
+			for (Pass1Info section : assembled) {
+				if (!quiet)
+					System.out.println("Control section " + section.getProgramName()
+							+ ": length " + section.getProgramLength() + ", symtab size "
+							+ section.getSymtab().size());
+				section.getSymtab().forEach(
+						(name, addr) -> symtab.put(section.getProgramName() + "." + name, addr));
+			}
+			return symtab;
+		}
+		// parses lines, stores in parsedLines
+		// adds line number to the beginning of each of the lines
+		// updates symtab
+		// return calculated program length
+		stats.begin(Phase.PASS1);
+		Pass1Info pass1 = Assembler.pass1Parallel(lines);
+		int symbols = pass1.getSymtab().size();
+		stats.end(Phase.PASS1, lines.size(), symbols);
+		if (relax) {
+			stats.begin(Phase.RELAX);
+			pass1 = Assembler.relax(pass1);
+			stats.end(Phase.RELAX, lines.size(), symbols);
+		}
+		Iterable<SicLine> parsedLines = pass1.getParsedLines();
+
+		stats.begin(Phase.VERIFY);
+		Assembler.verify(pass1);
+		stats.end(Phase.VERIFY, lines.size(), symbols);
+
+		// listing lines are only rendered as they are written
+		Iterable<String> listing = code ? Assembler.codeListing(pass1) : pass1.getListingLines();
+		CrossReference crossReference = crossReference(pass1, xrefFile, lines.size(), stats);
+		if (crossReference != null)
+			listing = crossReference.appendTo(listing);
+		if (quiet) {
+			Assembler.pass2(pass1, listing, objFile, lstFile, lines.size(), stats, format);
+			writeCrossReference(crossReference, xrefFile);
+			return pass1.getSymtab();
+		}
+
+		// generates object code lines
+		// appends object code to each line to make listing line
+		stats.begin(Phase.PASS2);
+		List<String> objectCode = Assembler.pass2(pass1);
+		stats.end(Phase.PASS2, lines.size(), symbols);
+
+		// one write per buffer rather than per line
+		PrintWriter console = new PrintWriter(
+				new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+		console.println("Lines:");
+		lines.forEach(console::println);
+		console.println("\nListing lines:");
+		listing.forEach(console::println);
+		console.println("\nParsed lines:");
+		parsedLines.forEach(console::println);
+		console.println("\nOptab:");
+		Optab.asMap().forEach((k, v) -> console.println(k + "\t=\t" + v));
+		console.println("\nSymtab:");
+		pass1.getSymtab().forEach((k, v) -> console.println(k + "\t=\t" + v));
+		console.println("\nObject Code:");
+		objectCode.forEach(console::println);
+		console.println("\nStart address: " + pass1.getStartAddr());
+		console.flush();
+
+		// write to listing file
+		stats.begin(Phase.LISTING_WRITE);
+		Files.write(lstFile, listing);
+		stats.end(Phase.LISTING_WRITE, lines.size(), symbols);
+		// write to object file
+		// the console shows the text records, a binary file needs its own pass 2
+		stats.begin(Phase.OBJECT_WRITE);
+		if (format != Format.TEXT) {
+			try (ObjectWriter out = ObjectWriter.open(objFile, format)) {
+				Assembler.pass2(pass1, out);
+			}
+		} else {
+			Files.write(objFile, objectCode);
+		}
+		stats.end(Phase.OBJECT_WRITE, lines.size(), symbols);
+		writeCrossReference(crossReference, xrefFile);
+		return pass1.getSymtab();
+	}
+
+	// the cross reference of pass 1 results, null unless there is a file for it
+	private static CrossReference crossReference(Pass1Info pass1, Path xrefFile, long lines,
+			AssemblyStats stats) {
+		if (xrefFile == null)
 			return null;
+		stats.begin(Phase.XREF);
+		CrossReference crossReference = pass1.getCrossReference();
+		stats.end(Phase.XREF, lines, pass1.getSymtab().size());
+		return crossReference;
+	}
+
+	private static void writeCrossReference(CrossReference crossReference, Path xrefFile)
+			throws IOException {
+		if (crossReference != null)
+			CrossReference.write(Collections.singletonList(crossReference), xrefFile);
+	}
+
+	// no source line becomes a String, and the object file is written during pass 2
+	private static Map<String, Integer> assembleMapped(Path filepath, Path objFile,
+			Path lstFile, Path xrefFile, boolean relax, boolean quiet, boolean code,
+			Format format, AssemblyStats stats) throws IOException {
+		Assembler.loadOptab(stats);
+		stats.begin(Phase.PASS1);
+		try (Pass1Info mapped = Assembler.pass1Mapped(filepath)) {
+			// lines that were assembled, the mapped reader does not count the rest
+			long lines = mapped.getParsedLineCount();
+			int symbols = mapped.getSymtab().size();
+			stats.end(Phase.PASS1, lines, symbols);
+			Pass1Info pass1 = mapped;
+			if (relax) {
+				stats.begin(Phase.RELAX);
+				pass1 = Assembler.relax(mapped);
+				stats.end(Phase.RELAX, lines, symbols);
+			}
+			stats.begin(Phase.VERIFY);
+			Assembler.verify(pass1);
+			stats.end(Phase.VERIFY, lines, symbols);
+
+			CrossReference crossReference = crossReference(pass1, xrefFile, lines, stats);
+			Iterable<String> listing = code ? Assembler.codeListing(pass1)
+					: pass1.getListingLines();
+			Assembler.pass2(pass1, crossReference == null ? listing
+					: crossReference.appendTo(listing), objFile, lstFile, lines, stats, format);
+			writeCrossReference(crossReference, xrefFile);
+
+			if (!quiet) {
+				System.out.println("Symtab size: " + symbols);
+				System.out.println("Start address: " + pass1.getStartAddr());
+			}
+			return pass1.getSymtab();
+		}
+	}
+
+	// source lines are read lazily, pass 1 results are spilled to disk and the
+	// object records are written as they are produced
+	// pass 2 writes the object file as it goes, so OBJECT_WRITE is part of PASS2 here
+	private static Map<String, Integer> assembleStreaming(Path filepath, Path objFile,
+			Path lstFile, boolean quiet, boolean code, Format format, AssemblyStats stats)
+			throws IOException {
+		Assembler.loadOptab(stats);
+		long[] lines = new long[1];
+		stats.begin(Phase.PASS1);
+		try (BufferedReader reader = Files.newBufferedReader(filepath);
+				Pass1Info pass1 = Assembler.pass1Streaming(
+						reader.lines().peek(line -> lines[0]++)::iterator)) {
+			int symbols = pass1.getSymtab().size();
+			stats.end(Phase.PASS1, lines[0], symbols);
+			stats.begin(Phase.VERIFY);
+			Assembler.verify(pass1);
+			stats.end(Phase.VERIFY, lines[0], symbols);
+
+			Assembler.pass2(pass1, code ? Assembler.codeListing(pass1) : pass1.getListingLines(),
+					objFile, lstFile, lines[0], stats, format);
+
+			if (!quiet) {
+				System.out.println("Symtab size: " + pass1.getSymtab().size());
+				System.out.println("Start address: " + pass1.getStartAddr());
+			}
+			return pass1.getSymtab();
 		}
 	}
 
@@ -0,0 +1,23 @@
+#!/bin/bash
+# Thin client for a running assembler daemon, used instead of starting a JVM per file
+# Start the daemon once with:  java Main --daemon <port>
+# usage: asm-client.sh <port> <file.asm> [<file.obj> <file.lst>]
+# Prints the daemon's reply and exits non-zero if the file failed to assemble
+port=$1
+shift
+# the daemon resolves paths against its own working directory
+source=$(realpath -m -- "$1") || exit 2
+exec 3<>"/dev/tcp/127.0.0.1/$port" || exit 2
+if [ $# -eq 3 ]; then
+    printf 'ASSEMBLE\t%s\t%s\t%s\nQUIT\n' "$source" "$(realpath -m -- "$2")" \
+        "$(realpath -m -- "$3")" >&3
+else
+    printf 'ASSEMBLE\t%s\nQUIT\n' "$source" >&3
+fi
+IFS= read -r reply <&3
+exec 3<&-
+echo "$reply"
+case "$reply" in
+    OK*) exit 0 ;;
+    *) exit 1 ;;
+esac
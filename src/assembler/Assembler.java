@@ -1,216 +1,516 @@
 package assembler;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.RandomAccess;
+import java.util.function.Consumer;
 
+import assembler.AssemblyStats.Phase;
+import assembler.ObjectWriter.Format;
 import instruction.InstructionInfo;
+import instruction.Optab;
 import parse.SicLine;
 
 public class Assembler {
 
-	private static StringBuilder buffer;
+	public static Pass1Info pass1(Iterable<String> lines) {
+		// listing lines are rendered from the source lines when they are written
+		List<String> source;
+		if (lines instanceof List && lines instanceof RandomAccess) {
+			source = (List<String>) lines;
+		} else {
+			source = new ArrayList<>();
+			lines.forEach(source::add);
+		}
+		Symtab symtab = new Symtab(new Names());
+		LineTable table = new LineTable(symtab.names());
+		return pass1(source, symtab, new Pass1Output() {
+			@Override
+			public void add(SicLine parsedLine, CharSequence line, int index) {
+				table.add(parsedLine, index);
+			}
+
+			@Override
+			public void move(int line, int shift) {
+				table.setLoc(line, table.loc(line) + shift);
+			}
+
+			@Override
+			public Pass1Info finish(Symtab symtab, String programName, int startAddr,
+					int programLength) {
+				return Pass1Info.of(table.listing(source::get), table, symtab, programName,
+						startAddr, programLength, null);
+			}
+		});
+	}
+
+	// same as pass1, but the parsed lines are spilled to a temp file so heap use
+	// does not grow with the program; close the result to delete the file
+	public static Pass1Info pass1Streaming(Iterable<String> lines) throws IOException {
+		SpillFile spill = SpillFile.create();
+		try {
+			return pass1(lines, new Symtab(new Names()), spill);
+		} catch (RuntimeException e) {
+			spill.close();
+			throw e;
+		}
+	}
+
+	// pass 1 over chunks of lines in parallel, with the same results as pass1
+	public static Pass1Info pass1Parallel(List<String> lines) {
+		return ParallelPass1.run(lines);
+	}
 
-	public static Pass1Info pass1(List<String> lines, Map<String, InstructionInfo> optab) {
-		Map<String, Integer> symtab = new HashMap<>();
-		List<SicLine> parsedLines = new LinkedList<>();
+	// lines are read straight from the mapped file, see MappedSource; close the
+	// result once its listing lines have been written
+	public static Pass1Info pass1Mapped(Path source) throws IOException {
+		Symtab symtab = new Symtab(new Names());
+		MappedSource mapped = MappedSource.open(source, symtab.names());
+		try {
+			return pass1(mapped, symtab, mapped);
+		} catch (RuntimeException e) {
+			mapped.close();
+			throw e;
+		}
+	}
+
+	// labels are defined in symtab, whose names a LineTable output shares
+	static Pass1Info pass1(Iterable<? extends CharSequence> lines, Symtab symtab,
+			Pass1Output output) {
 		String programName = "";
 		int startAddr = 0;
-		List<String> intermediate = new ArrayList<>();
 		int locctr = startAddr;
-		lineIterLoop: for (String line : lines) {
+		// operand of the BASE directive in effect, null after NOBASE
+		String base = null;
+		// set by the first USE
+		ProgramBlocks blocks = null;
+		// LOCCTR before the last ORG with an operand, NONE once restored
+		int beforeOrg = LineTable.NONE;
+		int index = -1, parsed = 0;
+		lineIterLoop: for (CharSequence line : lines) {
+			index++;
 			// skip empty lines, whitespace lines and comment lines
-			if (line.trim().isEmpty() || line.matches("^\\w+\\..+$"))
+			if (SicLine.isSkippable(line))
 				continue;
 			SicLine parsedLine = SicLine.parseLine(line, locctr);
-			parsedLines.add(parsedLine);
-			String label = parsedLine.getLabel();
-			int lineLoc = locctr;
+			parsedLine.setBase(base);
 			String instruction = parsedLine.getInstruction();
+			String directive = instruction.toUpperCase();
+			if (directive.equals("USE")) {
+				// the line is placed in the block it switches to
+				if (blocks == null)
+					blocks = new ProgramBlocks(parsed, symtab.size());
+				String[] ops = parsedLine.getOperands();
+				locctr = blocks.use(ops.length == 0 ? "" : ops[0], locctr);
+				parsedLine = parsedLine.withMemLoc(locctr);
+			} else if (directive.equals("ORG")) {
+				// the line is placed where it moves LOCCTR to, so pass 2 starts
+				// a text record there
+				if (parsedLine.getOperands().length == 0) {
+					if (beforeOrg == LineTable.NONE)
+						throw new IllegalStateException(
+								"ORG without an operand needs an earlier ORG");
+					locctr = beforeOrg;
+					beforeOrg = LineTable.NONE;
+				} else {
+					beforeOrg = locctr;
+					locctr = org(parsedLine, locctr, symtab);
+				}
+				parsedLine = parsedLine.withMemLoc(locctr);
+			}
+			output.add(parsedLine, line, index);
+			parsed++;
+			if (blocks != null)
+				blocks.line();
+			String label = parsedLine.getLabel();
 
 			// Update SYMTAB if label is present
-			if (label != null && !label.isEmpty() && !instruction.equals("START"))
-				if (symtab.containsKey(label))
+			if (label != null && !label.isEmpty() && !instruction.equals("START")
+					&& !instruction.equals("CSECT") && !directive.equals("EQU")) {
+				if (!symtab.define(label, locctr))
 					throw new IllegalStateException("Multiple occurrences of label: " + label);
-				else
-					symtab.put(label, locctr);
+				if (blocks != null)
+					blocks.symbol();
+			}
 
-			switch (instruction.toUpperCase()) {
+			switch (directive) {
 			case "BASE":
+				// pass 2 reports a malformed BASE on this line
+				String[] baseOps = parsedLine.getOperands();
+				base = baseOps.length == 1 ? baseOps[0] : null;
 				break;
 			case "NOBASE":
+				base = null;
 				break;
 			case "START":
 				programName = parsedLine.getLabel();
 				startAddr = Integer.parseInt(parsedLine.getOperands()[0]);
 				break;
-			case "END":
-				// pass 1 finished when END is read
-				intermediate.add(String.format("%06X\t%s", lineLoc, line));
-				break lineIterLoop;
-			case "RESW":
-				// If RESW, add 3 * operand to LOCCTR
-				locctr += 3 * Integer.parseInt(parsedLine.getOperands()[0]);
+			case "CSECT":
+				// a control section is assembled on its own, from address 0
+				if (parsed > 1)
+					throw new IllegalStateException(
+							"CSECT must start a control section: " + parsedLine.getLabel());
+				if (label == null || label.isEmpty())
+					throw new IllegalStateException("CSECT needs a section name");
+				programName = label;
 				break;
-			case "RESB":
-				// If RESB, add operand to LOCCTR
-				locctr += Integer.parseInt(parsedLine.getOperands()[0]);
+			case "EXTDEF":
+				for (String op : parsedLine.getOperands())
+					symtab.export(symtab.names().id(op));
 				break;
-			case "WORD":
-				locctr += 3;
+			case "EXTREF":
+				for (String op : parsedLine.getOperands())
+					symtab.refer(symtab.names().id(op));
 				break;
-			case "BYTE":
-				// If BYTE, add operand length in bytes to LOCCTR
-				String op = parsedLine.getOperands()[0];
-				// If a sequence of chars, add one byte for each char
-				if (op.matches("C'(.+)'")) {
-					Matcher mat = Pattern.compile("C'(.+?)'").matcher(op);
-					mat.find();
-					String charSeq = mat.group(1);
-					locctr += charSeq.length();
-				} else if (op.matches("X'(.+?)'")) {
-					Matcher mat = Pattern.compile("X'(.+?)'").matcher(op);
-					mat.find();
-					String charSeq = mat.group(1);
-					locctr += 2 * charSeq.length();
-				}
+			case "EQU":
+				if (label == null || label.isEmpty())
+					throw new IllegalStateException("EQU needs a label");
+				// blocks only have addresses once they are laid out, so with
+				// blocks every EQU waits for the end of pass 1
+				if (!symtab.equates().add(symtab, symtab.names().id(label),
+						expression(parsedLine, symtab.names()), parsed - 1, locctr, blocks == null))
+					throw new IllegalStateException("Multiple occurrences of label: " + label);
 				break;
+			case "ORG":
+				break;
+			case "END":
+				// pass 1 finished when END is read
+				break lineIterLoop;
 			default:
-				// TODO: Can object codes have varying lengths?
-				// for all other instructions, LOCCTR moves by the same
-				// number of bytes as their format
-				locctr += parsedLine.getInstructionFormat(optab);
+				locctr += lineSize(directive, parsedLine);
 				break;
 			}
-			// add hex code + line to listing lines
-			intermediate.add(String.format("%06X\t%s", lineLoc, line));
 		}
 
+		if (blocks != null)
+			locctr = blocks.place(locctr, symtab, output);
+		symtab.equates().resolve(symtab);
 		// calculate the program length using last LOCCTR value
 		int programLength = locctr - startAddr;
-		return Pass1Info.of(intermediate, parsedLines, symtab, programName, startAddr,
-				programLength);
+		return output.finish(symtab, programName, startAddr, programLength);
+	}
+
+	// the address an ORG line moves LOCCTR to, which only symbols defined before
+	// it can give
+	private static int org(SicLine parsedLine, int locctr, Symtab symtab) {
+		Expression expression = expression(parsedLine, symtab.names());
+		for (int id : expression.symbols())
+			if (!symtab.isDefined(id))
+				throw new IllegalStateException(
+						"ORG needs symbols defined before it: " + symtab.names().name(id));
+		int addr = Expression.value(expression.evaluate(locctr, symtab));
+		if (addr < 0)
+			throw new IllegalStateException("ORG address out of range: " + addr);
+		return addr;
+	}
+
+	// the single operand of an EQU or ORG line
+	private static Expression expression(SicLine parsedLine, Names names) {
+		String[] ops = parsedLine.getOperands();
+		if (ops.length != 1)
+			throw new IllegalStateException(parsedLine.getInstruction() + " needs one operand");
+		return Expression.parse(ops[0], names::id);
+	}
+
+	// number of bytes the line occupies, given its upper cased instruction
+	static int lineSize(String directive, SicLine parsedLine) {
+		switch (directive) {
+		case "BASE":
+		case "NOBASE":
+		case "START":
+		case "END":
+		case "CSECT":
+		case "USE":
+		case "EXTDEF":
+		case "EXTREF":
+		case "EQU":
+		case "ORG":
+			return 0;
+		case "RESW":
+			// If RESW, add 3 * operand to LOCCTR
+			return 3 * Integer.parseInt(parsedLine.getOperands()[0]);
+		case "RESB":
+			// If RESB, add operand to LOCCTR
+			return Integer.parseInt(parsedLine.getOperands()[0]);
+		case "WORD":
+			return 3;
+		case "BYTE":
+			// If BYTE, add operand length in bytes to LOCCTR, the same as pass 2
+			// writes
+			return Pass2Batch.byteLength(parsedLine.getOperands()[0]);
+		default:
+			// TODO: Can object codes have varying lengths?
+			// for all other instructions, LOCCTR moves by the same
+			// number of bytes as their format
+			return parsedLine.getInstructionFormat();
+		}
+	}
+
+	// Verify instructions for consistency with optab
+	public static void verify(Iterable<SicLine> parsedLines) {
+		for (SicLine sl : parsedLines) {
+			String inst = sl.getInstruction();
+			if (inst.equals("BASE") || inst.equals("NOBASE") || inst.equals("START")
+					|| inst.equals("END"))
+				continue;
+			if (inst.equals("BYTE") || inst.equals("RESB") || inst.equals("WORD")
+					|| inst.equals("RESW"))
+				continue;
+			if (inst.equals("CSECT") || inst.equals("USE") || inst.equals("EXTDEF")
+					|| inst.equals("EXTREF") || inst.equals("EQU") || inst.equals("ORG"))
+				continue;
+			int numOps = sl.getOperands().length;
+			if (sl.getOpcodeId() < 0)
+				throw new IllegalStateException("Invalid instruction: " + inst);
+			InstructionInfo instInfo = Optab.get(sl.getOpcodeId());
+			int instOps = instInfo.getArgCount();
+			if (numOps != instOps)
+				throw new IllegalStateException(String.format(
+						"Invalid number of operands for instruction: %s. Found %d, expected %d",
+						inst, numOps, instOps));
+		}
 	}
 
-	public static List<String> pass2(Pass1Info pass1Info, Map<String, InstructionInfo> optab) {
+	// Verify the parsed lines of pass 1; lines held as LineTable rows other than
+	// irregular ones are consistent with optab by construction
+	public static void verify(Pass1Info pass1Info) {
+		LineTable table = pass1Info.getTable();
+		verify(table == null ? pass1Info.getParsedLines() : table.irregularLines());
+	}
+
+	// pick PC relative, base relative or format 4 addressing for every format 3
+	// instruction, see Relaxation; the result replaces pass1Info, whose listing
+	// and parsed lines show the new locations
+	public static Pass1Info relax(Pass1Info pass1Info) {
+		return Relaxation.run(pass1Info);
+	}
+
+	// assemble a source file into its object and listing files, without any
+	// console output; safe to call from several threads at once
+	public static Pass1Info assemble(Path source, Path objFile, Path lstFile)
+			throws IOException {
+		return assemble(source, objFile, lstFile, new AssemblyStats());
+	}
+
+	// same as assemble, recording every phase in stats
+	public static Pass1Info assemble(Path source, Path objFile, Path lstFile,
+			AssemblyStats stats) throws IOException {
+		loadOptab(stats);
+		List<String> lines = Files.readAllLines(source);
+		List<List<String>> sections = controlSections(lines);
+		if (sections.size() > 1)
+			return assembleSections(sections, objFile, lstFile, null, false, false, Format.TEXT,
+					stats).get(0);
+		stats.begin(Phase.PASS1);
+		Pass1Info pass1 = pass1Parallel(lines);
+		int symbols = pass1.getSymtab().size();
+		stats.end(Phase.PASS1, lines.size(), symbols);
+		stats.begin(Phase.VERIFY);
+		verify(pass1);
+		stats.end(Phase.VERIFY, lines.size(), symbols);
+		pass2(pass1, pass1.getListingLines(), objFile, lstFile, lines.size(), stats);
+		return pass1;
+	}
+
+	// the lines of each control section of a source, see ControlSections; a
+	// source without CSECT lines is a single section
+	public static List<List<String>> controlSections(List<String> lines) {
+		return ControlSections.split(lines);
+	}
+
+	// assemble control sections concurrently into one object and one listing
+	// file, relaxing each as relax does if asked to and listing the object code
+	// as codeListing does if code is set; unless xrefFile is null, each section's
+	// cross reference follows its listing lines and all of them are written to
+	// xrefFile. The object file is written in format. No file is left behind
+	// on failure. The results are in section order
+	public static List<Pass1Info> assembleSections(List<List<String>> sections, Path objFile,
+			Path lstFile, Path xrefFile, boolean relax, boolean code, Format format,
+			AssemblyStats stats) throws IOException {
+		return ControlSections.assemble(sections, objFile, lstFile, xrefFile, relax, code,
+				format, stats);
+	}
+
+	// pass 2 into objFile while the listing is written to lstFile on a thread of
+	// its own; neither file is left behind if pass 2 fails. Records are written
+	// as pass 2 produces them, so PASS2 includes the object write, and
+	// LISTING_WRITE is only the time left waiting for the listing afterwards
+	public static void pass2(Pass1Info pass1Info, Iterable<String> listing, Path objFile,
+			Path lstFile, long lines, AssemblyStats stats) throws IOException {
+		pass2(pass1Info, listing, objFile, lstFile, lines, stats, Format.TEXT);
+	}
+
+	// the same, writing the object file in format
+	public static void pass2(Pass1Info pass1Info, Iterable<String> listing, Path objFile,
+			Path lstFile, long lines, AssemblyStats stats, Format format) throws IOException {
+		int symbols = pass1Info.getSymtab().size();
+		ListingWriter listingWriter = ListingWriter.start(listing, lstFile);
+		stats.begin(Phase.PASS2);
+		try (ObjectWriter out = ObjectWriter.open(objFile, format)) {
+			pass2(pass1Info, out);
+		} catch (RuntimeException e) {
+			listingWriter.abandon();
+			Files.deleteIfExists(objFile);
+			throw e;
+		}
+		stats.end(Phase.PASS2, lines, symbols);
+		stats.begin(Phase.LISTING_WRITE);
+		listingWriter.finish();
+		stats.end(Phase.LISTING_WRITE, lines, symbols);
+	}
+
+	// listing lines with the object code of every line after its LOCCTR, for
+	// pass 1 results pass 2 succeeds on; see CodeListing
+	public static Iterable<String> codeListing(Pass1Info pass1Info) {
+		return new CodeListing(pass1Info);
+	}
+
+	// pass 1 and pass 2 in a single read of the source, see OnePassAssembler;
+	// listing lines go to listing as they are read and the object program to
+	// out at END. The result only holds the symtab and the program header
+	public static Pass1Info assembleOnePass(Iterable<? extends CharSequence> lines,
+			ObjectWriter out, Consumer<String> listing) {
+		OnePassAssembler onePass = new OnePassAssembler(out, listing);
+		return pass1(lines, onePass.symtab(), onePass);
+	}
+
+	// same as assemble, reading the source once; everything is done in PASS1
+	public static Pass1Info assembleOnePass(Path sourceFile, Path objFile, Path lstFile,
+			AssemblyStats stats) throws IOException {
+		return assembleOnePass(sourceFile, objFile, lstFile, stats, Format.TEXT);
+	}
+
+	// the same, writing the object file in format
+	public static Pass1Info assembleOnePass(Path sourceFile, Path objFile, Path lstFile,
+			AssemblyStats stats, Format format) throws IOException {
+		loadOptab(stats);
+		long[] lines = new long[1];
+		stats.begin(Phase.PASS1);
+		Pass1Info pass1;
+		try (BufferedReader reader = Files.newBufferedReader(sourceFile);
+				BufferedWriter listing = Files.newBufferedWriter(lstFile);
+				ObjectWriter out = ObjectWriter.open(objFile, format)) {
+			Iterable<String> source = reader.lines().peek(line -> lines[0]++)::iterator;
+			pass1 = assembleOnePass(source, out, line -> {
+				try {
+					listing.write(line);
+					listing.newLine();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (RuntimeException e) {
+			// neither output is left behind
+			Files.deleteIfExists(objFile);
+			Files.deleteIfExists(lstFile);
+			throw e;
+		}
+		stats.end(Phase.PASS1, lines[0], pass1.getSymtab().size());
+		return pass1;
+	}
+
+	// Optab is initialised on first use, later assemblies find it loaded
+	public static void loadOptab(AssemblyStats stats) {
+		stats.begin(Phase.OPTAB_LOAD);
+		Optab.get(0);
+		stats.end(Phase.OPTAB_LOAD, Optab.SIZE, 0);
+	}
+
+	public static List<String> pass2(Pass1Info pass1Info) {
+		List<String> code = new ArrayList<>();
+		pass2(pass1Info, code::add);
+		return code;
+	}
+
+	// hands each finished record to code instead of collecting them
+	public static void pass2(Pass1Info pass1Info, Consumer<String> code) {
+		pass2(pass1Info, new ObjectWriter(code));
+	}
+
+	// formats the records into out as they are produced; the caller flushes or
+	// closes out
+	public static void pass2(Pass1Info pass1Info, ObjectWriter out) {
+		pass2(pass1Info, out, true);
+	}
+
+	// only the first control section has an address to start at in its E record
+	static void pass2(Pass1Info pass1Info, ObjectWriter out, boolean first) {
 
 		// extract relevant info from the results of pass 1
-		List<SicLine> parsedLines = pass1Info.getParsedLines();
+		Iterable<SicLine> parsedLines = pass1Info.getParsedLines();
 		Map<String, Integer> symtab = pass1Info.getSymtab();
 		String programName = pass1Info.getProgramName();
 		int startAddr = pass1Info.getStartAddr();
 		int programLength = pass1Info.getProgramLength();
 
-		// create buffer for lines of object code
-		List<String> code = new ArrayList<>();
+		out.header(programName, startAddr, programLength);
+		Symtab symbols = pass1Info.getSymbols();
+		if (symbols != null)
+			linkage(symbols, pass1Info.getTable() != null, out);
+		out.symbols(symtab);
 
-		String hexStartAddr = String.format("%06X", startAddr);
-
-		// write heading line
-		buffer = new StringBuilder(20);
-		buffer.append("H");
-		buffer.append(String.format("%-6s", programName));
-		buffer.append(hexStartAddr);
-		buffer.append(String.format("%06X", programLength));
-		code.add(buffer.toString());
-
-		// variables for tracking state and accumulating output
-		// throughout the pass
-		boolean base = false;
-		int baseAddr = 0;
-		int memoryLoc = startAddr;
-
-		buffer = new StringBuilder(70);
-		buffer.append("T##" + hexStartAddr);
-
-		lineIterLoop: for (SicLine line : parsedLines) {
-			String instruction = line.getInstruction();
-			String[] ops = line.getOperands();
-			String op = ops != null && ops.length > 0 ? ops[0] : null;
-			switch (instruction.toUpperCase()) {
-			case "START":
-				continue lineIterLoop;
-			case "END":
-				break lineIterLoop;
-			case "BASE":
-				base = true;
-				if (line.getOperands().length != 1)
-					throw new IllegalStateException("Invalid number of operands on line "
-							+ line.getMemLoc() + ", expected 1");
-				String lbl = line.getOperands()[0];
-				Integer parsedAddr = symtab.get(lbl);
-				if (parsedAddr == null)
-					throw new IllegalStateException("Label not found: " + lbl);
-				baseAddr = parsedAddr.intValue();
-				break;
-			case "NOBASE":
-				base = false;
-				break;
-			case "RESW":
-				if (!op.matches("\\d+"))
-					throw new IllegalStateException("Expected number after RESW");
-				int words = Integer.parseInt(op);
-				for (int i = 0; i < words; i++)
-					memoryLoc = writeToBuffer(code, "000000", memoryLoc);
-				break;
-			case "RESB":
-				// write 2 hex digits per byte
-				if (!op.matches("\\d+"))
-					throw new IllegalStateException("Expected number after RESB");
-				int bytes = Integer.parseInt(op);
-				for (int i = 0; i < bytes; i++)
-					memoryLoc = writeToBuffer(code, "00", memoryLoc);
-				break;
-			case "WORD":
-				int val = Integer.parseInt(op);
-				String hex = String.format("%06X", val);
-				memoryLoc = writeToBuffer(code, hex, memoryLoc);
-				break;
-			case "BYTE":
-				// TODO: Handle BYTE using C'', X'' in pass 2
-				if (op.matches("C'(.+)'")) {
+		// text records are placed by the LOCCTR of their lines
+		TextRecords text = new TextRecords(out, startAddr);
 
-				} else if (op.matches("X'(.+)'")) {
-
-				}
-				break;
-			default:
-				String s = line.getObjectCode(optab, symtab, base, baseAddr);
-				memoryLoc = writeToBuffer(code, s, memoryLoc);
-				break;
+		// lines are encoded a batch at a time, then written out in order
+		LineTable table = pass1Info.getTable();
+		if (table != null) {
+			Pass2Batch batch = new Pass2Batch(table, pass1Info.getSymbols());
+			while (!batch.ended() && batch.fill() > 0) {
+				batch.encode();
+				batch.write(text);
+			}
+		} else {
+			// symbols give the types of symbols in expressions
+			Pass2Batch batch = symbols != null ? new Pass2Batch(symbols)
+					: new Pass2Batch(symtab);
+			Iterator<SicLine> lines = parsedLines.iterator();
+			while (!batch.ended() && batch.fill(lines) > 0) {
+				batch.encode();
+				batch.write(text);
 			}
 		}
-		// write last line to record
-		int bytes = (buffer.length() - 9) / 2;
-		String newBuf = buffer.toString().replaceFirst("##", String.format("%02X", bytes));
-		code.add(newBuf);
-
-		// write end record
-		buffer = new StringBuilder(7);
-		buffer.append("E");
-		buffer.append(hexStartAddr);
-		code.add(buffer.toString());
-		return code;
+		// write last line to record, then the relocated addresses
+		text.finish(programName);
+
+		if (first)
+			out.end(startAddr);
+		else
+			out.end();
 	}
 
-	private static int writeToBuffer(List<String> code, String s, int memloc) {
-		if (buffer.length() + s.length() > buffer.capacity()) {
-			int bytes = (buffer.length() - 9) / 2;
-			String newBuf = buffer.toString().replaceFirst("##", String.format("%02X", bytes));
-			code.add(newBuf);
-			buffer = new StringBuilder(70);
-			buffer.append(String.format("T##%06X%s", memloc, s));
-			memloc += s.length() / 2;
-		} else {
-			buffer.append(s);
-			int bytes = s.length() / 2;
-			memloc += bytes;
+	// the D and R records of the EXTDEF and EXTREF symbols of a control section
+	static void linkage(Symtab symbols, boolean inTable, ObjectWriter out) {
+		int[] exports = symbols.exports(), references = symbols.references();
+		if (exports.length > 0) {
+			String[] names = new String[exports.length];
+			int[] addresses = new int[exports.length];
+			for (int k = 0; k < exports.length; k++) {
+				names[k] = symbols.names().name(exports[k]);
+				if (!symbols.isDefined(exports[k]))
+					throw new IllegalStateException("EXTDEF symbol not defined: " + names[k]);
+				addresses[k] = symbols.address(exports[k]);
+			}
+			out.define(names, addresses);
+		}
+		if (references.length > 0) {
+			// only table rows encode external references
+			if (!inTable)
+				throw new IllegalStateException("EXTREF needs the parsed lines in memory");
+			String[] names = new String[references.length];
+			for (int k = 0; k < references.length; k++)
+				names[k] = symbols.names().name(references[k]);
+			out.refer(names);
 		}
-		return memloc;
 	}
 
 }
@@ -0,0 +1,119 @@
+package assembler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Long running assembler that keeps the JVM, JIT and Optab warm between files
+//
+// The protocol is line oriented, one request per line with tab separated fields:
+//   ASSEMBLE <source> [<object> <listing>]  ->  OK <millis> <source>
+//                                                ERROR <message>
+//   PING                                     ->  PONG
+//   QUIT                                         closes this connection
+//   SHUTDOWN                                     stops a listening daemon
+// Object and listing paths default to the source with .obj and .lst extensions.
+// Relative paths are taken from the daemon's working directory, not the
+// client's, so clients send absolute ones
+public final class AssemblerDaemon {
+
+	private static final String SEPARATOR = "\t";
+
+	private AssemblerDaemon() {
+	}
+
+	// serve requests from in until end of input, QUIT or SHUTDOWN;
+	// returns true if SHUTDOWN was requested
+	public static boolean serve(Reader in, Writer out) throws IOException {
+		BufferedReader reader = new BufferedReader(in);
+		PrintWriter writer = new PrintWriter(out, true);
+		String request;
+		while ((request = reader.readLine()) != null) {
+			request = request.trim();
+			if (request.isEmpty())
+				continue;
+			if (request.equals("QUIT"))
+				return false;
+			if (request.equals("SHUTDOWN"))
+				return true;
+			writer.println(handle(request));
+		}
+		return false;
+	}
+
+	// accept connections on the loopback interface, each served on the pool
+	public static void listen(int port, int threads) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		// not a resource, since SHUTDOWN closes it from a worker
+		ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		try {
+			while (true) {
+				Socket socket;
+				try {
+					socket = server.accept();
+				} catch (SocketException e) {
+					// SHUTDOWN closes the server socket to stop accepting
+					if (server.isClosed())
+						break;
+					throw e;
+				}
+				pool.execute(() -> {
+					try (Socket s = socket) {
+						boolean shutdown = serve(
+								new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8),
+								new OutputStreamWriter(s.getOutputStream(),
+										StandardCharsets.UTF_8));
+						if (shutdown)
+							server.close();
+					} catch (IOException e) {
+						// a client going away only ends its own connection
+					}
+				});
+			}
+		} finally {
+			server.close();
+			pool.shutdown();
+		}
+	}
+
+	static String handle(String request) {
+		String[] fields = request.split(SEPARATOR);
+		switch (fields[0]) {
+		case "PING":
+			return "PONG";
+		case "ASSEMBLE":
+			if (fields.length != 2 && fields.length != 4)
+				return "ERROR" + SEPARATOR + "Expected ASSEMBLE <source> [<object> <listing>]";
+			Path source = Paths.get(fields[1]);
+			Path objFile = fields.length == 4 ? Paths.get(fields[2])
+					: BatchAssembler.withExtension(source, ".obj");
+			Path lstFile = fields.length == 4 ? Paths.get(fields[3])
+					: BatchAssembler.withExtension(source, ".lst");
+			long start = System.nanoTime();
+			try {
+				Assembler.assemble(source, objFile, lstFile);
+			} catch (IOException | RuntimeException e) {
+				return "ERROR" + SEPARATOR + e;
+			}
+			long micros = (System.nanoTime() - start) / 1000;
+			return String.format("OK%s%d.%03d%s%s", SEPARATOR, micros / 1000, micros % 1000,
+					SEPARATOR, source);
+		default:
+			return "ERROR" + SEPARATOR + "Unknown request: " + fields[0];
+		}
+	}
+
+}
@@ -0,0 +1,209 @@
+package assembler;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import assembler.ObjectWriter.Format;
+import instruction.Hex;
+import instruction.InstructionInfo;
+import instruction.Optab;
+
+// Object files, listings and symtabs of earlier assemblies, on disk
+// An entry is a directory named by the SHA-256 of the assembler version, the
+// OPTAB, the options and the source bytes, holding the obj, lst and symtab
+// files. Entries are written to a temporary directory and renamed into place,
+// so a reader only ever sees complete entries and concurrent writers of the
+// same entry leave exactly one. Outputs are copied rather than hard linked,
+// since the next assembly truncates its output files and would truncate the
+// cached one with them. A hit touches its entry, and once the entries take more
+// than the size cap the least recently used ones are removed
+public final class AssemblyCache {
+
+	// bump whenever the same source and options assemble differently
+	public static final int VERSION = 4;
+	public static final long DEFAULT_MAX_BYTES = 256L << 20;
+
+	private static final String OBJ = "obj", LST = "lst", SYMTAB = "symtab";
+	private static final String TEMP_PREFIX = ".tmp-";
+	// temporary directories this old were left by writers that died
+	private static final long STALE_MILLIS = 60 * 60 * 1000;
+
+	private final Path dir;
+	private final long maxBytes;
+
+	public AssemblyCache(Path dir, long maxBytes) throws IOException {
+		this.dir = Files.createDirectories(dir);
+		this.maxBytes = maxBytes;
+	}
+
+	// the options for key, from everything that changes the output besides the
+	// source, so every caller names the same assembly the same way
+	public static String options(boolean relax, boolean code, Format format) {
+		return "relax=" + relax + ",code=" + code
+				+ (format != Format.TEXT ? ",format=" + format : "");
+	}
+
+	// the key of a source assembled with options, which name everything that
+	// changes the output
+	public static String key(byte[] source, String options) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+		StringBuilder header = new StringBuilder().append(VERSION).append('\n');
+		header.append(options).append('\n');
+		for (int id = 0; id < Optab.SIZE; id++) {
+			InstructionInfo info = Optab.get(id);
+			header.append(Optab.name(id)).append(',').append(info.getOpcode()).append(',')
+					.append(info.getInstructionFormat()).append(',')
+					.append(info.getArgCount()).append('\n');
+		}
+		digest.update(header.toString().getBytes(StandardCharsets.UTF_8));
+		digest.update(source);
+		byte[] hash = digest.digest();
+		return Hex.toString(hash, 0, hash.length);
+	}
+
+	// copy the outputs cached under key to objFile and lstFile and return the
+	// symtab, or null if there are none
+	public Map<String, Integer> get(String key, Path objFile, Path lstFile)
+			throws IOException {
+		Path entry = dir.resolve(key);
+		try {
+			Map<String, Integer> symtab = readSymtab(entry.resolve(SYMTAB));
+			Files.copy(entry.resolve(OBJ), objFile, StandardCopyOption.REPLACE_EXISTING);
+			Files.copy(entry.resolve(LST), lstFile, StandardCopyOption.REPLACE_EXISTING);
+			Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+			return symtab;
+		} catch (NoSuchFileException e) {
+			// never cached, or evicted while being read
+			return null;
+		}
+	}
+
+	// cache the outputs of an assembly under key
+	public void put(String key, Path objFile, Path lstFile, Map<String, Integer> symtab)
+			throws IOException {
+		Path entry = dir.resolve(key);
+		Path temp = dir.resolve(TEMP_PREFIX + UUID.randomUUID());
+		Files.createDirectory(temp);
+		try {
+			Files.copy(objFile, temp.resolve(OBJ));
+			Files.copy(lstFile, temp.resolve(LST));
+			List<String> lines = new ArrayList<>(symtab.size());
+			symtab.forEach((name, addr) -> lines.add(name + '\t' + Integer.toHexString(addr)));
+			Files.write(temp.resolve(SYMTAB), lines);
+			Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE);
+		} catch (FileSystemException e) {
+			// unless another writer got there first with the same outputs
+			if (!Files.isDirectory(entry))
+				throw e;
+		} finally {
+			delete(temp);
+		}
+		evict();
+	}
+
+	// the same as Assembler.assemble, unless the cache holds the outputs
+	public Map<String, Integer> assemble(Path source, Path objFile, Path lstFile)
+			throws IOException {
+		String key = key(Files.readAllBytes(source),
+				options(false, false, Format.TEXT));
+		Map<String, Integer> symtab = get(key, objFile, lstFile);
+		if (symtab != null)
+			return symtab;
+		symtab = Assembler.assemble(source, objFile, lstFile).getSymtab();
+		put(key, objFile, lstFile, symtab);
+		return symtab;
+	}
+
+	// remove the least recently used entries until the rest fit under the cap,
+	// along with temporary directories of writers that died
+	private void evict() throws IOException {
+		List<Path> entries = new ArrayList<>();
+		List<Long> sizes = new ArrayList<>(), times = new ArrayList<>();
+		long total = 0;
+		long now = System.currentTimeMillis();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path entry : stream) {
+				try {
+					long time = Files.getLastModifiedTime(entry).toMillis();
+					if (entry.getFileName().toString().startsWith(TEMP_PREFIX)) {
+						if (now - time > STALE_MILLIS)
+							delete(entry);
+						continue;
+					}
+					long size = Files.size(entry.resolve(OBJ))
+							+ Files.size(entry.resolve(LST)) + Files.size(entry.resolve(SYMTAB));
+					entries.add(entry);
+					sizes.add(size);
+					times.add(time);
+					total += size;
+				} catch (NoSuchFileException e) {
+					// removed by another process meanwhile
+				}
+			}
+		}
+		while (total > maxBytes && !entries.isEmpty()) {
+			int oldest = 0;
+			for (int i = 1; i < entries.size(); i++)
+				if (times.get(i) < times.get(oldest))
+					oldest = i;
+			remove(entries.get(oldest));
+			total -= sizes.get(oldest);
+			entries.remove(oldest);
+			sizes.remove(oldest);
+			times.remove(oldest);
+		}
+	}
+
+	// an entry is renamed away before it is deleted, so readers never see it
+	// half gone
+	private void remove(Path entry) throws IOException {
+		Path temp = dir.resolve(TEMP_PREFIX + UUID.randomUUID());
+		try {
+			Files.move(entry, temp, StandardCopyOption.ATOMIC_MOVE);
+		} catch (NoSuchFileException e) {
+			return;
+		}
+		delete(temp);
+	}
+
+	private static void delete(Path directory) throws IOException {
+		if (!Files.exists(directory))
+			return;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path file : stream)
+				Files.deleteIfExists(file);
+		} catch (NoSuchFileException e) {
+			return;
+		}
+		Files.deleteIfExists(directory);
+	}
+
+	private static Map<String, Integer> readSymtab(Path file) throws IOException {
+		Map<String, Integer> symtab = new LinkedHashMap<>();
+		for (String line : Files.readAllLines(file)) {
+			int tab = line.indexOf('\t');
+			symtab.put(line.substring(0, tab), Integer.parseInt(line.substring(tab + 1), 16));
+		}
+		return symtab;
+	}
+
+}
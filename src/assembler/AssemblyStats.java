@@ -0,0 +1,148 @@
+package assembler;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+// Wall time, throughput, allocation and symtab size of every phase of one assembly
+// Reported as a text summary, as JSON, and as "assembler.Phase" JFR events so
+// the phases can be lined up with GC activity in a recording
+public final class AssemblyStats {
+
+	public enum Phase {
+		OPTAB_LOAD, PASS1, RELAX, VERIFY, XREF, PASS2, LISTING_WRITE, OBJECT_WRITE
+	}
+
+	private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+	private final long[] nanos = new long[Phase.values().length];
+	private final long[] lines = new long[Phase.values().length];
+	private final long[] allocated = new long[Phase.values().length];
+	private final int[] symbols = new int[Phase.values().length];
+	private final boolean[] recorded = new boolean[Phase.values().length];
+
+	private Phase current;
+	private long startNanos, startAllocated;
+	private Object event;
+
+	public void begin(Phase phase) {
+		if (current != null)
+			throw new IllegalStateException("Phase " + current + " has not ended");
+		current = phase;
+		event = PhaseEvents.begin();
+		startAllocated = allocatedBytes();
+		startNanos = System.nanoTime();
+	}
+
+	// lines is the number of source lines (OPTAB entries for OPTAB_LOAD) the
+	// phase handled, symbols the symtab size once it finished
+	public void end(Phase phase, long lines, int symbols) {
+		long elapsed = System.nanoTime() - startNanos;
+		if (current != phase)
+			throw new IllegalStateException("Phase " + phase + " has not begun");
+		// threads that end during the phase, such as the listing writer, take
+		// their counts with them, which must not make the phase negative
+		long bytes = startAllocated < 0 ? -1 : Math.max(0, allocatedBytes() - startAllocated);
+		int i = phase.ordinal();
+		this.nanos[i] = elapsed;
+		this.lines[i] = lines;
+		this.allocated[i] = bytes;
+		this.symbols[i] = symbols;
+		recorded[i] = true;
+		PhaseEvents.commit(event, phase.name(), lines, bytes, symbols);
+		current = null;
+		event = null;
+	}
+
+	public boolean isRecorded(Phase phase) {
+		return recorded[phase.ordinal()];
+	}
+
+	public long getNanos(Phase phase) {
+		return nanos[phase.ordinal()];
+	}
+
+	public long getLines(Phase phase) {
+		return lines[phase.ordinal()];
+	}
+
+	public double getLinesPerSecond(Phase phase) {
+		long n = nanos[phase.ordinal()];
+		return n == 0 ? 0 : lines[phase.ordinal()] * 1e9 / n;
+	}
+
+	// bytes allocated by all threads during the phase, -1 if the JVM cannot tell
+	public long getAllocatedBytes(Phase phase) {
+		return allocated[phase.ordinal()];
+	}
+
+	public int getSymbols(Phase phase) {
+		return symbols[phase.ordinal()];
+	}
+
+	// one line per recorded phase, for --stats
+	public String summary() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.ROOT, "%-14s %10s %10s %14s %14s %8s%n", "Phase",
+				"ms", "lines", "lines/s", "allocated", "symbols"));
+		long totalNanos = 0, totalAllocated = 0;
+		for (Phase phase : Phase.values()) {
+			if (!isRecorded(phase))
+				continue;
+			sb.append(String.format(Locale.ROOT, "%-14s %10.3f %10d %14.0f %14d %8d%n",
+					phase, getNanos(phase) / 1e6, getLines(phase), getLinesPerSecond(phase),
+					getAllocatedBytes(phase), getSymbols(phase)));
+			totalNanos += getNanos(phase);
+			totalAllocated += Math.max(0, getAllocatedBytes(phase));
+		}
+		sb.append(String.format(Locale.ROOT, "%-14s %10.3f %10s %14s %14d%n", "TOTAL",
+				totalNanos / 1e6, "", "", totalAllocated));
+		return sb.toString();
+	}
+
+	public String toJson() {
+		StringBuilder sb = new StringBuilder("{\"phases\":[");
+		boolean first = true;
+		for (Phase phase : Phase.values()) {
+			if (!isRecorded(phase))
+				continue;
+			if (!first)
+				sb.append(',');
+			first = false;
+			sb.append(String.format(Locale.ROOT,
+					"{\"phase\":\"%s\",\"nanos\":%d,\"lines\":%d,\"linesPerSecond\":%.1f,"
+							+ "\"allocatedBytes\":%d,\"symbols\":%d}",
+					phase, getNanos(phase), getLines(phase), getLinesPerSecond(phase),
+					getAllocatedBytes(phase), getSymbols(phase)));
+		}
+		return sb.append("]}").toString();
+	}
+
+	@Override
+	public String toString() {
+		return summary();
+	}
+
+	// allocation by every live thread, so pool workers of the parallel passes count
+	private static long allocatedBytes() {
+		if (THREADS == null)
+			return -1;
+		long total = 0;
+		for (long bytes : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds()))
+			total += Math.max(0, bytes);
+		return total;
+	}
+
+	// allocation counts are a HotSpot extension, null on other VMs; the
+	// benchmarks count with the same bean
+	public static com.sun.management.ThreadMXBean threads() {
+		Object bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean))
+			return null;
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		if (!threads.isThreadAllocatedMemorySupported())
+			return null;
+		threads.setThreadAllocatedMemoryEnabled(true);
+		return threads;
+	}
+
+}
@@ -0,0 +1,126 @@
+package assembler;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Assembles many source files concurrently in one JVM
+// Every file gets its own pass 1 and pass 2 state; only the compiled Optab,
+// which is immutable, is shared between them
+public final class BatchAssembler {
+
+	private BatchAssembler() {
+	}
+
+	public static final class Result {
+
+		private final Path source;
+		private final Throwable error;
+		private final long nanos;
+
+		private Result(Path source, Throwable error, long nanos) {
+			this.source = source;
+			this.error = error;
+			this.nanos = nanos;
+		}
+
+		public Path getSource() {
+			return source;
+		}
+
+		public boolean isSuccess() {
+			return error == null;
+		}
+
+		public Throwable getError() {
+			return error;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %s (%d ms)", source,
+					error == null ? "ok" : error.toString(), nanos / 1_000_000);
+		}
+
+	}
+
+	// .asm files among paths; directories contribute the .asm files directly inside them
+	public static List<Path> collectSources(List<Path> paths) throws IOException {
+		List<Path> sources = new ArrayList<>();
+		for (Path path : paths) {
+			if (!Files.isDirectory(path)) {
+				sources.add(path);
+				continue;
+			}
+			List<Path> entries = new ArrayList<>();
+			try (DirectoryStream<Path> dir = Files.newDirectoryStream(path, "*.asm")) {
+				for (Path source : dir)
+					entries.add(source);
+			}
+			Collections.sort(entries);
+			sources.addAll(entries);
+		}
+		return sources;
+	}
+
+	// assemble every source on a pool of at most threads workers, results are in
+	// the same order as sources and a failing file does not stop the others
+	public static List<Result> assembleAll(List<Path> sources, int threads) {
+		return assembleAll(sources, threads, null);
+	}
+
+	// the same, reusing outputs held by cache unless it is null
+	public static List<Result> assembleAll(List<Path> sources, int threads,
+			AssemblyCache cache) {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			List<Future<Result>> futures = new ArrayList<>(sources.size());
+			for (Path source : sources)
+				futures.add(pool.submit(() -> assembleOne(source, cache)));
+			List<Result> results = new ArrayList<>(sources.size());
+			for (Future<Result> future : futures)
+				results.add(future.get());
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while assembling", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Unexpected assembler failure", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static Result assembleOne(Path source, AssemblyCache cache) {
+		long start = System.nanoTime();
+		Path objFile = withExtension(source, ".obj"), lstFile = withExtension(source, ".lst");
+		try {
+			if (cache != null)
+				cache.assemble(source, objFile, lstFile);
+			else
+				Assembler.assemble(source, objFile, lstFile);
+			return new Result(source, null, System.nanoTime() - start);
+		} catch (IOException | RuntimeException e) {
+			return new Result(source, e, System.nanoTime() - start);
+		}
+	}
+
+	static Path withExtension(Path source, String extension) {
+		String name = source.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		return source.resolveSibling((dot < 0 ? name : name.substring(0, dot)) + extension);
+	}
+
+}
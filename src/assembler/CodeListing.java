@@ -0,0 +1,53 @@
+package assembler;
+
+import java.util.Iterator;
+
+import parse.SicLine;
+
+// Listing lines with each line's object code between LOCCTR and the source
+// Nothing is kept from pass 2: the lines are encoded again, a batch at a time,
+// as the listing is read, which only needs the pass 1 results and the symtab
+final class CodeListing implements Iterable<String> {
+
+	private final Pass1Info pass1;
+
+	CodeListing(Pass1Info pass1) {
+		this.pass1 = pass1;
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		Iterator<String> listing = pass1.getListingLines().iterator();
+		LineTable table = pass1.getTable();
+		Symtab symbols = pass1.getSymbols();
+		Pass2Batch batch = table != null ? new Pass2Batch(table, symbols)
+				: symbols != null ? new Pass2Batch(symbols) : new Pass2Batch(pass1.getSymtab());
+		Iterator<SicLine> lines = table == null ? pass1.getParsedLines().iterator() : null;
+		return new Iterator<String>() {
+			private int slot, size;
+
+			@Override
+			public boolean hasNext() {
+				return listing.hasNext();
+			}
+
+			@Override
+			public String next() {
+				String line = listing.next();
+				if (slot == size) {
+					size = table != null ? batch.fill() : batch.fill(lines);
+					batch.encode();
+					slot = 0;
+				}
+				if (batch.error(slot) != null)
+					throw batch.error(slot);
+				// LOCCTR, then the code, then the source
+				int tab = line.indexOf('\t') + 1;
+				StringBuilder sb = new StringBuilder(line.length() + 9).append(line, 0, tab);
+				batch.appendCode(slot++, sb).append('\t');
+				return sb.append(line, tab, line.length()).toString();
+			}
+		};
+	}
+
+}
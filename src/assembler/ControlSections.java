@@ -0,0 +1,168 @@
+package assembler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import assembler.AssemblyStats.Phase;
+import assembler.ObjectWriter.Format;
+import parse.SicLine;
+
+// A source made of control sections, each starting at a CSECT line
+// Sections only share symbols through EXTDEF and EXTREF, which are left to the
+// linker, so each one is a program of its own with its own SYMTAB and LOCCTR.
+// Every phase runs on all sections at once; the object programs and listing
+// lines are then written one section after another in source order, each
+// section's cross reference after its lines if asked for. A phase that fails
+// reports the first failing section's error
+final class ControlSections {
+
+	private ControlSections() {
+	}
+
+	// the lines of each section; lines before the first CSECT are the first
+	// section, unless they are all skippable
+	static List<List<String>> split(List<String> lines) {
+		List<List<String>> sections = new ArrayList<>();
+		int from = 0;
+		boolean parsed = false;
+		for (int i = 0; i < lines.size(); i++) {
+			String line = lines.get(i);
+			if (SicLine.isSkippable(line))
+				continue;
+			// only lines that might be one are parsed
+			if (parsed && line.contains("CSECT") && isCsect(line)) {
+				sections.add(lines.subList(from, i));
+				from = i;
+			}
+			parsed = true;
+		}
+		sections.add(lines.subList(from, lines.size()));
+		return sections;
+	}
+
+	// lines pass 1 cannot parse are left for it to report
+	private static boolean isCsect(String line) {
+		try {
+			return SicLine.parseLine(line, 0).getInstruction().equals("CSECT");
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	static List<Pass1Info> assemble(List<List<String>> sections, Path objFile, Path lstFile,
+			Path xrefFile, boolean relax, boolean code, Format format, AssemblyStats stats)
+			throws IOException {
+		int count = sections.size();
+		long lines = 0;
+		for (List<String> section : sections)
+			lines += section.size();
+		Pass1Info[] pass1 = new Pass1Info[count];
+		try {
+			stats.begin(Phase.PASS1);
+			each(count, s -> pass1[s] = Assembler.pass1(sections.get(s)));
+			int symbols = symbols(pass1);
+			stats.end(Phase.PASS1, lines, symbols);
+			if (relax) {
+				stats.begin(Phase.RELAX);
+				each(count, s -> pass1[s] = Assembler.relax(pass1[s]));
+				stats.end(Phase.RELAX, lines, symbols);
+			}
+			stats.begin(Phase.VERIFY);
+			each(count, s -> Assembler.verify(pass1[s]));
+			stats.end(Phase.VERIFY, lines, symbols);
+			CrossReference[] xrefs = xrefFile == null ? null : new CrossReference[count];
+			if (xrefs != null) {
+				// line numbers count from the start of the source, not the section
+				int[] firstLine = new int[count];
+				for (int s = 1; s < count; s++)
+					firstLine[s] = firstLine[s - 1] + sections.get(s - 1).size();
+				stats.begin(Phase.XREF);
+				each(count, s -> xrefs[s] = pass1[s].getCrossReference().shifted(firstLine[s]));
+				stats.end(Phase.XREF, lines, symbols);
+			}
+
+			List<List<String>> records = new ArrayList<>();
+			ByteArrayOutputStream[] bytes = new ByteArrayOutputStream[count];
+			for (int s = 0; s < count; s++) {
+				records.add(new ArrayList<>());
+				bytes[s] = new ByteArrayOutputStream();
+			}
+			stats.begin(Phase.PASS2);
+			each(count, s -> {
+				// binary records have no lines to collect
+				ObjectWriter out = format != Format.TEXT
+						? new ObjectWriter(Channels.newChannel(bytes[s]), format)
+						: new ObjectWriter(records.get(s)::add);
+				Assembler.pass2(pass1[s], out, s == 0);
+				out.flush();
+			});
+			stats.end(Phase.PASS2, lines, symbols);
+
+			stats.begin(Phase.OBJECT_WRITE);
+			if (format != Format.TEXT) {
+				try (OutputStream out = Files.newOutputStream(objFile)) {
+					for (ByteArrayOutputStream section : bytes)
+						section.writeTo(out);
+				}
+			} else {
+				List<String> objectCode = new ArrayList<>();
+				records.forEach(objectCode::addAll);
+				Files.write(objFile, objectCode);
+			}
+			stats.end(Phase.OBJECT_WRITE, lines, symbols);
+			stats.begin(Phase.LISTING_WRITE);
+			List<String> listing = new ArrayList<>();
+			for (int s = 0; s < count; s++) {
+				Iterable<String> lst = code ? new CodeListing(pass1[s])
+						: pass1[s].getListingLines();
+				(xrefs == null ? lst : xrefs[s].appendTo(lst)).forEach(listing::add);
+			}
+			Files.write(lstFile, listing);
+			stats.end(Phase.LISTING_WRITE, lines, symbols);
+			if (xrefs != null)
+				CrossReference.write(Arrays.asList(xrefs), xrefFile);
+		} catch (RuntimeException e) {
+			Files.deleteIfExists(objFile);
+			Files.deleteIfExists(lstFile);
+			if (xrefFile != null)
+				Files.deleteIfExists(xrefFile);
+			throw e;
+		}
+		List<Pass1Info> results = new ArrayList<>();
+		for (Pass1Info section : pass1)
+			results.add(section);
+		return results;
+	}
+
+	// run step on every section at once, then rethrow the first section's error
+	private static void each(int count, IntConsumer step) {
+		RuntimeException[] errors = new RuntimeException[count];
+		IntStream.range(0, count).parallel().forEach(s -> {
+			try {
+				step.accept(s);
+			} catch (RuntimeException e) {
+				errors[s] = e;
+			}
+		});
+		for (RuntimeException e : errors)
+			if (e != null)
+				throw e;
+	}
+
+	private static int symbols(Pass1Info[] pass1) {
+		int symbols = 0;
+		for (Pass1Info section : pass1)
+			symbols += section.getSymtab().size();
+		return symbols;
+	}
+
+}
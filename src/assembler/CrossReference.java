@@ -0,0 +1,421 @@
+package assembler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import instruction.Optab;
+import parse.SicLine;
+
+// Where each symbol of a control section is defined and used
+// A use is packed into an int: its line number above the kind of use and the
+// addressing mode of the operand. The uses of all symbols are kept in a single
+// array, a symbol's own in line order after those of the ids before it, so the
+// definition and uses of a symbol are found from its name id without searching.
+// Line numbers count every source line from 1, skipped ones included. Pass 1
+// results make the index from their LineTable when it is first asked for, and
+// tools read it back from the file write() leaves
+public final class CrossReference {
+
+	// kinds of use: an instruction operand, the operand of BASE, or that of
+	// another directive such as WORD, EQU, ORG, END or EXTREF
+	public static final int OPERAND = 0, BASE = 1, DIRECTIVE = 2;
+	// how an instruction operand addresses the symbol, none for simple
+	public static final int IMMEDIATE = 0x04, INDIRECT = 0x08, INDEXED = 0x10, EXTENDED = 0x20;
+
+	private static final int KIND = 0x03, LINE_SHIFT = 6;
+	private static final int MAGIC = 0x53585246, VERSION = 1;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final String programName;
+	private final Names names;
+	// by name id: the line defining it, 0 for none, and where its uses start,
+	// with one more entry for the end of the last
+	private final int[] definitions, first;
+	private final int[] uses;
+	// ids of the symbols, by name
+	private final int[] symbols;
+
+	private CrossReference(String programName, Names names, int[] definitions, int[] first,
+			int[] uses, int[] symbols) {
+		this.programName = programName;
+		this.names = names;
+		this.definitions = definitions;
+		this.first = first;
+		this.uses = uses;
+		this.symbols = symbols;
+	}
+
+	// the index of the rows of a table, whose names symtab shares
+	static CrossReference of(String programName, LineTable table, Symtab symtab) {
+		Names names = table.names();
+		int[] definitions = new int[names.size()];
+		Uses found = new Uses(names);
+		for (int row = 0; row < table.size(); row++) {
+			int line = table.index(row) + 1;
+			int code = table.opcode(row);
+			SicLine irregular = code == LineTable.IRREGULAR ? table.irregular(row) : null;
+			int label = table.label(row);
+			if (label != LineTable.NONE && definitions[label] == 0 && symtab.isDefined(label)
+					&& !namesSection(irregular != null ? irregular.getInstruction()
+							: code < 0 ? LineTable.directiveName(code) : null))
+				definitions[label] = line;
+			if (irregular != null) {
+				found.line(irregular, line);
+				continue;
+			}
+			int bits = table.modes(row);
+			int op = table.operand(row);
+			if (code >= 0) {
+				if (Optab.get(code).getInstructionFormat() != 3)
+					continue;
+				int use = line << LINE_SHIFT | OPERAND | modes(bits);
+				if ((bits & LineTable.EXPRESSION) != 0)
+					found.add(table.expression(op).symbols(), use);
+				else if ((bits & LineTable.VALUE) == 0)
+					found.add(op, use);
+			} else if ((bits & LineTable.EXPRESSION) != 0) {
+				found.add(table.expression(op).symbols(), line << LINE_SHIFT | DIRECTIVE);
+			} else if (table.directiveOperand(row) != null) {
+				found.directive(LineTable.directiveName(code), table.directiveOperand(row), line);
+			}
+		}
+
+		// uses by id, in the order they were found
+		int count = found.count;
+		int[] first = new int[definitions.length + 1];
+		for (int k = 0; k < count; k++)
+			first[found.ids[k] + 1]++;
+		for (int id = 0; id < definitions.length; id++)
+			first[id + 1] += first[id];
+		int[] uses = new int[count];
+		int[] next = Arrays.copyOf(first, definitions.length);
+		for (int k = 0; k < count; k++)
+			uses[next[found.ids[k]]++] = found.uses[k];
+
+		List<Integer> symbols = new ArrayList<>();
+		for (int id = 0; id < definitions.length; id++)
+			if (definitions[id] != 0 || first[id + 1] > first[id])
+				symbols.add(id);
+		symbols.sort((a, b) -> names.name(a).compareTo(names.name(b)));
+		int[] sorted = new int[symbols.size()];
+		for (int k = 0; k < sorted.length; k++)
+			sorted[k] = symbols.get(k);
+		return new CrossReference(programName, names, definitions, first, uses, sorted);
+	}
+
+	public String getProgramName() {
+		return programName;
+	}
+
+	// every symbol defined or used, by name
+	public List<String> symbols() {
+		return new AbstractList<String>() {
+			@Override
+			public String get(int index) {
+				return names.name(symbols[index]);
+			}
+
+			@Override
+			public int size() {
+				return symbols.length;
+			}
+		};
+	}
+
+	// the line defining a symbol, 0 if it is not defined here
+	public int definition(String symbol) {
+		int id = names.find(symbol);
+		return id == LineTable.NONE || id >= definitions.length ? 0 : definitions[id];
+	}
+
+	// the uses of a symbol in line order, see line(), kind() and the modes;
+	// the buffer is a read-only view, empty if the symbol is not used
+	public IntBuffer uses(String symbol) {
+		int id = names.find(symbol);
+		if (id == LineTable.NONE || id >= definitions.length)
+			return IntBuffer.allocate(0);
+		return IntBuffer.wrap(uses, first[id], first[id + 1] - first[id]).slice()
+				.asReadOnlyBuffer();
+	}
+
+	public static int line(int use) {
+		return use >>> LINE_SHIFT;
+	}
+
+	public static int kind(int use) {
+		return use & KIND;
+	}
+
+	// the lines of a cross reference section: a line per symbol with its name,
+	// the line defining it, or - for none, and the lines using it, each marked
+	// # @ X + for its addressing mode, B for BASE and D for other directives
+	public Iterable<String> listing() {
+		return () -> new Iterator<String>() {
+			// the blank line and title come first
+			private int k = -2;
+
+			@Override
+			public boolean hasNext() {
+				return k < symbols.length;
+			}
+
+			@Override
+			public String next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				if (k < 0)
+					return k++ == -2 ? "" : "Cross reference:";
+				int id = symbols[k++];
+				StringBuilder sb = new StringBuilder(names.name(id)).append('\t');
+				if (definitions[id] == 0)
+					sb.append('-');
+				else
+					sb.append(definitions[id]);
+				sb.append('\t');
+				for (int u = first[id]; u < first[id + 1]; u++) {
+					if (u > first[id])
+						sb.append(' ');
+					appendUse(sb, uses[u]);
+				}
+				return sb.toString();
+			}
+		};
+	}
+
+	// listing lines followed by this cross reference section
+	public Iterable<String> appendTo(Iterable<String> before) {
+		return () -> new Iterator<String>() {
+			private Iterator<String> lines = before.iterator();
+			private boolean appended;
+
+			@Override
+			public boolean hasNext() {
+				if (!appended && !lines.hasNext()) {
+					lines = listing().iterator();
+					appended = true;
+				}
+				return lines.hasNext();
+			}
+
+			@Override
+			public String next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return lines.next();
+			}
+		};
+	}
+
+	// the same index with every line number lines further on, for a control
+	// section that starts after the first source line
+	CrossReference shifted(int lines) {
+		int[] movedDefinitions = definitions.clone();
+		for (int id = 0; id < movedDefinitions.length; id++)
+			if (movedDefinitions[id] != 0)
+				movedDefinitions[id] += lines;
+		int[] movedUses = uses.clone();
+		for (int u = 0; u < movedUses.length; u++)
+			movedUses[u] += lines << LINE_SHIFT;
+		return new CrossReference(programName, names, movedDefinitions, first, movedUses,
+				symbols);
+	}
+
+	// write the indexes of the control sections of a program to file
+	public static void write(List<CrossReference> indexes, Path file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(indexes.size());
+			for (CrossReference index : indexes)
+				index.write(out);
+		}
+	}
+
+	// the indexes write() wrote to file, in the same order
+	public static List<CrossReference> read(Path file) throws IOException {
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE))) {
+			if (in.readInt() != MAGIC)
+				throw new IllegalStateException("Not a cross reference file: " + file);
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IllegalStateException(
+						"Cross reference version " + version + " is not supported: " + file);
+			int count = in.readInt();
+			List<CrossReference> indexes = new ArrayList<>(count);
+			for (int i = 0; i < count; i++)
+				indexes.add(read(in));
+			return indexes;
+		}
+	}
+
+	// the program name, then per symbol by name its name, definition and uses
+	private void write(DataOutputStream out) throws IOException {
+		out.writeUTF(programName == null ? "" : programName);
+		out.writeInt(symbols.length);
+		for (int id : symbols) {
+			out.writeUTF(names.name(id));
+			out.writeInt(definitions[id]);
+			out.writeInt(first[id + 1] - first[id]);
+			for (int u = first[id]; u < first[id + 1]; u++)
+				out.writeInt(uses[u]);
+		}
+	}
+
+	// symbols are numbered in the order they were written, which is by name
+	private static CrossReference read(DataInputStream in) throws IOException {
+		String programName = in.readUTF();
+		int count = in.readInt();
+		Names names = new Names();
+		int[] definitions = new int[count], first = new int[count + 1], symbols = new int[count];
+		int[] uses = new int[16];
+		for (int id = 0; id < count; id++) {
+			if (names.id(in.readUTF()) != id)
+				throw new IllegalStateException("Symbol listed twice in cross reference");
+			definitions[id] = in.readInt();
+			int n = in.readInt();
+			first[id + 1] = first[id] + n;
+			if (first[id + 1] > uses.length)
+				uses = Arrays.copyOf(uses, Math.max(first[id + 1], uses.length * 2));
+			for (int u = first[id]; u < first[id + 1]; u++)
+				uses[u] = in.readInt();
+			symbols[id] = id;
+		}
+		return new CrossReference(programName, names, definitions, first,
+				Arrays.copyOf(uses, first[count]), symbols);
+	}
+
+	private static void appendUse(StringBuilder sb, int use) {
+		sb.append(line(use));
+		switch (kind(use)) {
+		case BASE:
+			sb.append('B');
+			return;
+		case DIRECTIVE:
+			sb.append('D');
+			return;
+		default:
+			break;
+		}
+		if ((use & IMMEDIATE) != 0)
+			sb.append('#');
+		if ((use & INDIRECT) != 0)
+			sb.append('@');
+		if ((use & INDEXED) != 0)
+			sb.append('X');
+		if ((use & EXTENDED) != 0)
+			sb.append('+');
+	}
+
+	// the modes of nixbpe bits, simple when n and i are both set or both clear
+	private static int modes(int bits) {
+		int modes = 0;
+		if ((bits & (LineTable.N | LineTable.I)) == LineTable.I)
+			modes |= IMMEDIATE;
+		else if ((bits & (LineTable.N | LineTable.I)) == LineTable.N)
+			modes |= INDIRECT;
+		if ((bits & LineTable.X) != 0)
+			modes |= INDEXED;
+		if ((bits & LineTable.E) != 0)
+			modes |= EXTENDED;
+		return modes;
+	}
+
+	// the label of START or CSECT names the program, not a symbol
+	private static boolean namesSection(String instruction) {
+		return "START".equals(instruction) || "CSECT".equals(instruction);
+	}
+
+	// (id, use) pairs in the order they are found, which is line order
+	private static final class Uses {
+
+		private final Names names;
+		private int[] ids = new int[64], uses = new int[64];
+		private int count;
+
+		Uses(Names names) {
+			this.names = names;
+		}
+
+		void add(int id, int use) {
+			if (count == ids.length) {
+				ids = Arrays.copyOf(ids, count * 2);
+				uses = Arrays.copyOf(uses, count * 2);
+			}
+			ids[count] = id;
+			uses[count++] = use;
+		}
+
+		void add(int[] ids, int use) {
+			for (int id : ids)
+				if (id != LineTable.NONE)
+					add(id, use);
+		}
+
+		// the uses of a line the table kept as a SicLine
+		void line(SicLine line, int number) {
+			int opcode = line.getOpcodeId();
+			if (opcode < 0) {
+				String directive = line.getInstruction().toUpperCase();
+				for (String op : line.getOperands())
+					directive(directive, op, number);
+			} else if (Optab.get(opcode).getInstructionFormat() == 3) {
+				for (String op : line.getOperands())
+					operand(op, number << LINE_SHIFT | OPERAND | modes(line.getModeBits()));
+			}
+		}
+
+		// the uses of one operand of a directive; numbers and names of blocks
+		// and sections are not symbols
+		void directive(String directive, String op, int number) {
+			switch (directive) {
+			case "START":
+			case "RESB":
+			case "RESW":
+			case "BYTE":
+			case "USE":
+			case "CSECT":
+				return;
+			case "BASE":
+				operand(op, number << LINE_SHIFT | BASE);
+				return;
+			default:
+				operand(op, number << LINE_SHIFT | DIRECTIVE);
+				return;
+			}
+		}
+
+		// the symbols of an operand, which pass 1 has already named unless the
+		// line fails in pass 2
+		void operand(String op, int use) {
+			if (Expression.isNumber(op))
+				return;
+			if (!Expression.isExpression(op)) {
+				int id = names.find(op);
+				if (id != LineTable.NONE)
+					add(id, use);
+				return;
+			}
+			try {
+				add(Expression.parse(op, names::find).symbols(), use);
+			} catch (IllegalStateException e) {
+				// pass 2 reports it
+			}
+		}
+
+	}
+
+}
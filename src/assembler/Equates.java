@@ -0,0 +1,144 @@
+package assembler;
+
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+// The symbols of a control section defined by EQU, with their expressions
+// An EQU whose symbols are all defined when pass 1 reads it is defined at once.
+// The others wait for the end of pass 1, when a graph from each waiting EQU to
+// the waiting EQUs it refers to is resolved in a single topological pass: an
+// EQU is evaluated as soon as the last one it needs is. Whatever is left after
+// that refers to itself. Every EQU keeps its row and the location of its * so
+// that all of them can be evaluated again, in the same order, when lines move
+final class Equates {
+
+	private int[] ids = new int[8], rows = new int[8], locs = new int[8];
+	private Expression[] expressions = new Expression[8];
+	private boolean[] pending = new boolean[8];
+	private int count, pendingCount;
+	// entries in an order each can be evaluated in, once resolved
+	private int[] order = new int[8];
+	private int ordered;
+	// which ids are defined by an EQU
+	private boolean[] equated = new boolean[16];
+
+	// add the EQU of id on a row at loc, defining it unless now is false or it
+	// needs symbols that are not defined yet; false if id is already defined
+	boolean add(Symtab symtab, int id, Expression expression, int row, int loc, boolean now) {
+		if (symtab.isDefined(id) || defines(id))
+			return false;
+		if (count == ids.length) {
+			int capacity = count * 2;
+			ids = Arrays.copyOf(ids, capacity);
+			rows = Arrays.copyOf(rows, capacity);
+			locs = Arrays.copyOf(locs, capacity);
+			expressions = Arrays.copyOf(expressions, capacity);
+			pending = Arrays.copyOf(pending, capacity);
+			order = Arrays.copyOf(order, capacity);
+		}
+		if (id >= equated.length)
+			equated = Arrays.copyOf(equated, Math.max(id + 1, equated.length * 2));
+		equated[id] = true;
+		int k = count++;
+		ids[k] = id;
+		rows[k] = row;
+		locs[k] = loc;
+		expressions[k] = expression;
+		for (int symbol : expression.symbols())
+			now &= symtab.isDefined(symbol);
+		if (now) {
+			define(symtab, k);
+			order[ordered++] = k;
+		} else {
+			pending[k] = true;
+			pendingCount++;
+		}
+		return true;
+	}
+
+	boolean defines(int id) {
+		return id < equated.length && equated[id];
+	}
+
+	// define every waiting EQU, in an order that has each one's symbols defined
+	// before it is evaluated
+	void resolve(Symtab symtab) {
+		if (pendingCount == 0)
+			return;
+		// waiting entries by the id they define
+		int[] entry = new int[symtab.names().size()];
+		Arrays.fill(entry, LineTable.NONE);
+		for (int k = 0; k < count; k++)
+			if (pending[k])
+				entry[ids[k]] = k;
+		// the waiting entries each one needs, and the ones that need it as lists
+		// of edges
+		int[] needs = new int[count];
+		int[] first = new int[count], next = new int[16], to = new int[16];
+		Arrays.fill(first, LineTable.NONE);
+		int edges = 0;
+		for (int k = 0; k < count; k++) {
+			if (!pending[k])
+				continue;
+			for (int symbol : expressions[k].symbols()) {
+				if (symtab.isDefined(symbol))
+					continue;
+				int needed = symbol < entry.length ? entry[symbol] : LineTable.NONE;
+				if (needed == LineTable.NONE)
+					throw new IllegalStateException(
+							"Symbol not found: " + symtab.names().name(symbol));
+				if (edges == next.length) {
+					next = Arrays.copyOf(next, edges * 2);
+					to = Arrays.copyOf(to, edges * 2);
+				}
+				to[edges] = k;
+				next[edges] = first[needed];
+				first[needed] = edges++;
+				needs[k]++;
+			}
+		}
+		// entries with nothing left to wait for, in source order
+		int[] ready = new int[pendingCount];
+		int head = 0, tail = 0;
+		for (int k = 0; k < count; k++)
+			if (pending[k] && needs[k] == 0)
+				ready[tail++] = k;
+		while (head < tail) {
+			int k = ready[head++];
+			define(symtab, k);
+			pending[k] = false;
+			pendingCount--;
+			order[ordered++] = k;
+			for (int e = first[k]; e != LineTable.NONE; e = next[e])
+				if (--needs[to[e]] == 0)
+					ready[tail++] = to[e];
+		}
+		for (int k = 0; k < count; k++)
+			if (pending[k])
+				throw new IllegalStateException(
+						"Circular EQU definition: " + symtab.names().name(ids[k]));
+	}
+
+	// move the * of every EQU by the shift of its row
+	void move(IntUnaryOperator shift) {
+		for (int k = 0; k < count; k++)
+			locs[k] += shift.applyAsInt(rows[k]);
+	}
+
+	// evaluate every EQU again into addresses, by id, with the other symbols
+	// of symtab at the addresses there and each * moved by the shift of its row
+	void evaluate(Symtab symtab, int[] addresses, int[] shift) {
+		IntUnaryOperator address = id -> addresses[id];
+		for (int i = 0; i < ordered; i++) {
+			int k = order[i];
+			long value = expressions[k].evaluate(locs[k] + shift[rows[k]], symtab, address);
+			addresses[ids[k]] = Expression.value(value);
+		}
+	}
+
+	private void define(Symtab symtab, int k) {
+		long value = expressions[k].evaluate(locs[k], symtab);
+		symtab.define(ids[k], Expression.value(value), !Expression.isRelative(value));
+	}
+
+}
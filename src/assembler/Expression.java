@@ -0,0 +1,280 @@
+package assembler;
+
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+import java.util.function.ToIntFunction;
+
+// An operand expression, parsed once into postfix code
+// Terms are decimal numbers, symbols and * for the location of the line the
+// expression is on; + - * / and unary minus combine them, with the usual
+// precedence and parentheses. The code is an int per term or operator: symbols
+// are their ids, operators are negative and a number follows its NUMBER code.
+// Numbers are absolute, symbols and * relative unless the symbol was defined
+// absolute. A relative term may only be added to or taken away from others, and
+// a value is absolute once its relative terms pair off, or relative when one is
+// left over; a relative value moves with the program and an absolute one does not
+final class Expression {
+
+	private static final int HERE = -1, NUMBER = -2, ADD = -3, SUBTRACT = -4, MULTIPLY = -5,
+			DIVIDE = -6, NEGATE = -7;
+
+	private final String text;
+	private final int[] code;
+	// the ids code refers to, each once
+	private final int[] symbols;
+	// stack slots evaluating code takes
+	private final int depth;
+
+	private Expression(String text, int[] code, int[] symbols, int depth) {
+		this.text = text;
+		this.code = code;
+		this.symbols = symbols;
+		this.depth = depth;
+	}
+
+	// whether an operand is more than a symbol or a number
+	static boolean isExpression(String operand) {
+		for (int i = 0; i < operand.length(); i++) {
+			switch (operand.charAt(i)) {
+			case '+':
+			case '-':
+			case '*':
+			case '/':
+			case '(':
+			case ')':
+				return true;
+			default:
+				break;
+			}
+		}
+		return false;
+	}
+
+	// a decimal number, as WORD has always taken it
+	static boolean isNumber(String operand) {
+		int i = operand.startsWith("-") || operand.startsWith("+") ? 1 : 0;
+		if (i == operand.length())
+			return false;
+		for (; i < operand.length(); i++)
+			if (operand.charAt(i) < '0' || operand.charAt(i) > '9')
+				return false;
+		return true;
+	}
+
+	// ids gives the id of each symbol named
+	static Expression parse(String text, ToIntFunction<String> ids) {
+		Parser parser = new Parser(text, ids);
+		parser.sum();
+		if (parser.pos < text.length())
+			throw parser.invalid();
+		return new Expression(text, Arrays.copyOf(parser.code, parser.size),
+				Arrays.copyOf(parser.symbols, parser.symbolCount), parser.maxDepth);
+	}
+
+	// the same expression with every symbol id replaced by ids[id]
+	Expression remap(int[] ids) {
+		int[] mapped = code.clone();
+		for (int k = 0; k < mapped.length; k++) {
+			if (mapped[k] == NUMBER)
+				k++;
+			else if (mapped[k] >= 0)
+				mapped[k] = ids[mapped[k]];
+		}
+		int[] mappedSymbols = new int[symbols.length];
+		for (int k = 0; k < symbols.length; k++)
+			mappedSymbols[k] = ids[symbols[k]];
+		return new Expression(text, mapped, mappedSymbols, depth);
+	}
+
+	int[] symbols() {
+		return symbols;
+	}
+
+	// the value on a line at loc, see value() and isRelative()
+	long evaluate(int loc, Symtab symtab) {
+		return evaluate(loc, symtab, symtab::address);
+	}
+
+	// the same, taking the addresses of the symbols of symtab from address
+	long evaluate(int loc, Symtab symtab, IntUnaryOperator address) {
+		int[] values = new int[depth], terms = new int[depth];
+		int top = -1;
+		for (int k = 0; k < code.length; k++) {
+			int c = code[k];
+			if (c >= 0) {
+				if (symtab.isExternal(c))
+					throw new IllegalStateException(
+							"External symbol in an expression: " + symtab.names().name(c));
+				if (!symtab.isDefined(c))
+					throw new IllegalStateException("Symbol not found: " + symtab.names().name(c));
+				values[++top] = address.applyAsInt(c);
+				terms[top] = symtab.isAbsolute(c) ? 0 : 1;
+				continue;
+			}
+			switch (c) {
+			case HERE:
+				values[++top] = loc;
+				terms[top] = 1;
+				break;
+			case NUMBER:
+				values[++top] = code[++k];
+				terms[top] = 0;
+				break;
+			case NEGATE:
+				values[top] = -values[top];
+				terms[top] = -terms[top];
+				break;
+			case ADD:
+				top--;
+				values[top] += values[top + 1];
+				terms[top] += terms[top + 1];
+				break;
+			case SUBTRACT:
+				top--;
+				values[top] -= values[top + 1];
+				terms[top] -= terms[top + 1];
+				break;
+			default:
+				top--;
+				if (terms[top] != 0 || terms[top + 1] != 0)
+					throw new IllegalStateException("Relative term multiplied or divided: " + text);
+				if (c == MULTIPLY) {
+					values[top] *= values[top + 1];
+				} else {
+					if (values[top + 1] == 0)
+						throw new IllegalStateException("Division by zero: " + text);
+					values[top] /= values[top + 1];
+				}
+				break;
+			}
+		}
+		if (terms[0] != 0 && terms[0] != 1)
+			throw new IllegalStateException("Illegal relative expression: " + text);
+		return (long) terms[0] << 32 | (values[0] & 0xFFFFFFFFL);
+	}
+
+	static int value(long result) {
+		return (int) result;
+	}
+
+	static boolean isRelative(long result) {
+		return result >>> 32 != 0;
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+
+	// recursive descent over the text, appending each term and operator to code
+	// once its operands are
+	private static final class Parser {
+
+		private final String text;
+		private final ToIntFunction<String> ids;
+		private int pos;
+		private int[] code = new int[8];
+		private int size;
+		private int[] symbols = new int[4];
+		private int symbolCount;
+		private int depth, maxDepth;
+
+		Parser(String text, ToIntFunction<String> ids) {
+			this.text = text;
+			this.ids = ids;
+		}
+
+		void sum() {
+			product();
+			for (char c; (c = peek()) == '+' || c == '-';) {
+				pos++;
+				product();
+				emit(c == '+' ? ADD : SUBTRACT, -1);
+			}
+		}
+
+		void product() {
+			factor();
+			for (char c; (c = peek()) == '*' || c == '/';) {
+				pos++;
+				factor();
+				emit(c == '*' ? MULTIPLY : DIVIDE, -1);
+			}
+		}
+
+		void factor() {
+			char c = peek();
+			if (c == '-' || c == '+') {
+				pos++;
+				factor();
+				if (c == '-')
+					emit(NEGATE, 0);
+			} else if (c == '(') {
+				pos++;
+				sum();
+				if (peek() != ')')
+					throw invalid();
+				pos++;
+			} else if (c == '*') {
+				pos++;
+				emit(HERE, 1);
+			} else {
+				term();
+			}
+		}
+
+		// a number, or a symbol made of the same characters labels are
+		void term() {
+			int start = pos;
+			boolean digits = true;
+			for (char c; pos < text.length() && isWord(c = text.charAt(pos)); pos++)
+				digits &= c >= '0' && c <= '9';
+			if (pos == start)
+				throw invalid();
+			String word = text.substring(start, pos);
+			if (!digits) {
+				int id = ids.applyAsInt(word);
+				emit(id, 1);
+				for (int k = 0; k < symbolCount; k++)
+					if (symbols[k] == id)
+						return;
+				if (symbolCount == symbols.length)
+					symbols = Arrays.copyOf(symbols, symbolCount * 2);
+				symbols[symbolCount++] = id;
+				return;
+			}
+			long value = word.length() > 10 ? Long.MAX_VALUE : Long.parseLong(word);
+			if (value > Integer.MAX_VALUE)
+				throw new IllegalStateException("Number out of range in expression: " + text);
+			emit(NUMBER, 1);
+			emit((int) value, 0);
+		}
+
+		// append to code, growing the stack by push slots
+		void emit(int c, int push) {
+			if (size == code.length)
+				code = Arrays.copyOf(code, size * 2);
+			code[size++] = c;
+			depth += push;
+			maxDepth = Math.max(maxDepth, depth);
+		}
+
+		// the next character that is not white space, or 0 at the end
+		char peek() {
+			while (pos < text.length() && text.charAt(pos) <= ' ')
+				pos++;
+			return pos < text.length() ? text.charAt(pos) : 0;
+		}
+
+		IllegalStateException invalid() {
+			return new IllegalStateException("Invalid expression: " + text);
+		}
+
+		private static boolean isWord(char c) {
+			return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+					|| c == '_';
+		}
+
+	}
+
+}
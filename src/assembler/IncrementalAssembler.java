@@ -0,0 +1,427 @@
+package assembler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import parse.SicLine;
+
+// Reassembles a program after edits, reusing the previous run's parsed lines,
+// symtab and encoded bytes
+//
+// The new source is diffed against the old one as a common prefix and suffix
+// around a changed middle. Only the middle is parsed again. When its size
+// changes, the suffix moves by the difference and its symbols with it; a
+// format 3/4 line keeps its bytes as long as its displacement is unchanged, that
+// is when its target moved as far as its PC and its BASE symbol, either of
+// which it may be encoded from, so only those lines are encoded again. Edits
+// touching START, END, BASE or NOBASE, and any error, fall back to a full
+// rebuild, which also reports errors exactly as pass1, verify and pass2 would.
+// So does every edit of a program with EQU, ORG or operand expressions, whose
+// values follow symbols anywhere in it, or with USE, CSECT, EXTDEF or EXTREF,
+// which lay out or link the whole program. Lines are kept as SicLines, so like
+// the other pipelines without a LineTable the rebuild rejects EXTREF
+public final class IncrementalAssembler {
+
+	// previous run, indexed by source line; lines that are skipped or follow
+	// END have no parsed line or object code
+	private String[] source = new String[0];
+	private SicLine[] parsed;
+	// LOCCTR and BASE operand before each source line, plus one past the end
+	private int[] loc;
+	private String[] base;
+	private Pass2Batch batch;
+	// index of the END line, or the number of lines without one
+	private int endIndex;
+
+	private Map<String, Integer> symtab;
+	// the D and R records of the last rebuild
+	private List<String> linkage;
+	// no EQU, ORG, expressions, blocks or linkage, so edits can be applied in place
+	private boolean simple;
+	private String programName;
+	private int startAddr, programLength;
+	private boolean valid;
+
+	private int reparsedLines, reencodedLines;
+
+	// assemble lines, returning the object program exactly as Assembler.pass2 would
+	public List<String> assemble(List<String> lines) {
+		String[] next = lines.toArray(new String[lines.size()]);
+		if (!valid || !update(next))
+			rebuild(next);
+		try {
+			return write();
+		} catch (RuntimeException e) {
+			// pass 2 errors are only reported here, in line order
+			valid = false;
+			throw e;
+		}
+	}
+
+	// pass 1 results of the last successful assembly, valid until the next one;
+	// listing lines are only rendered here, so moving lines costs nothing until then
+	public Pass1Info getPass1Info() {
+		List<String> listingLines = new ArrayList<>();
+		List<SicLine> parsedLines = new ArrayList<>();
+		for (int i = 0; i < source.length; i++) {
+			if (parsed[i] == null)
+				continue;
+			listingLines.add(String.format("%06X\t%s", parsed[i].getMemLoc(), source[i]));
+			parsedLines.add(parsed[i]);
+		}
+		return Pass1Info.of(listingLines, parsedLines, symtab, programName, startAddr,
+				programLength);
+	}
+
+	// lines parsed by the last assembly
+	public int getReparsedLines() {
+		return reparsedLines;
+	}
+
+	// lines encoded by the last assembly
+	public int getReencodedLines() {
+		return reencodedLines;
+	}
+
+	private List<String> write() {
+		List<String> code = new ArrayList<>();
+		ObjectWriter out = new ObjectWriter(code::add);
+		out.header(programName, startAddr, programLength);
+		code.addAll(linkage);
+		TextRecords text = new TextRecords(out, startAddr);
+		batch.write(text);
+		text.finish(programName);
+		out.end(startAddr);
+		return code;
+	}
+
+	private void rebuild(String[] lines) {
+		valid = false;
+		int n = lines.length;
+		SicLine[] newParsed = new SicLine[n];
+		int[] newLoc = new int[n + 1];
+		String[] newBase = new String[n + 1];
+		List<SicLine> parsedLines = new ArrayList<>();
+		List<Integer> indices = new ArrayList<>();
+		Symtab newSymbols = new Symtab(new Names());
+		Pass1Info pass1 = Assembler.pass1(Arrays.asList(lines), newSymbols, new Pass1Output() {
+			@Override
+			public void add(SicLine parsedLine, CharSequence line, int index) {
+				newParsed[index] = parsedLine;
+				parsedLines.add(parsedLine);
+				indices.add(index);
+			}
+
+			@Override
+			public void move(int line, int shift) {
+				SicLine moved = parsedLines.get(line);
+				moved = moved.withMemLoc(moved.getMemLoc() + shift);
+				parsedLines.set(line, moved);
+				newParsed[indices.get(line)] = moved;
+			}
+
+			@Override
+			public Pass1Info finish(Symtab symtab, String programName, int startAddr,
+					int programLength) {
+				return Pass1Info.of(null, parsedLines, symtab, programName, startAddr,
+						programLength, null);
+			}
+		});
+		// edits change symbols in place
+		Map<String, Integer> newSymtab = new HashMap<>(pass1.getSymtab());
+		Assembler.verify(parsedLines);
+		// written before any line is encoded, so they fail first as in pass2
+		List<String> newLinkage = new ArrayList<>();
+		Assembler.linkage(newSymbols, false, new ObjectWriter(newLinkage::add));
+		boolean newSimple = true;
+		for (SicLine line : parsedLines)
+			newSimple &= !isGlobal(line);
+
+		// LOCCTR and BASE are carried over skipped lines
+		int end = n;
+		for (int i = 0; i < n; i++) {
+			SicLine line = newParsed[i];
+			if (line == null) {
+				newLoc[i + 1] = newLoc[i];
+				newBase[i + 1] = newBase[i];
+				continue;
+			}
+			newLoc[i] = line.getMemLoc();
+			newBase[i] = line.getBase();
+			String directive = line.getInstruction().toUpperCase();
+			if (directive.equals("END")) {
+				end = i;
+				Arrays.fill(newLoc, i + 1, n + 1, newLoc[i]);
+				Arrays.fill(newBase, i + 1, n + 1, newBase[i]);
+				break;
+			}
+			newLoc[i + 1] = newLoc[i] + Assembler.lineSize(directive, line);
+			newBase[i + 1] = directive.equals("BASE") || directive.equals("NOBASE")
+					? nextBase(directive, line) : newBase[i];
+		}
+
+		// expressions are evaluated against symbols, which edits never change
+		Pass2Batch newBatch = newSimple ? new Pass2Batch(newSymtab, Math.max(1, n))
+				: new Pass2Batch(newSymbols, Math.max(1, n));
+		for (int i = 0; i < n; i++)
+			newBatch.set(i, newParsed[i]);
+		newBatch.encode();
+
+		source = lines;
+		parsed = newParsed;
+		loc = newLoc;
+		base = newBase;
+		batch = newBatch;
+		endIndex = end;
+		symtab = newSymtab;
+		linkage = newLinkage;
+		simple = newSimple;
+		programName = pass1.getProgramName();
+		startAddr = pass1.getStartAddr();
+		programLength = pass1.getProgramLength();
+		reparsedLines = parsedLines.size();
+		reencodedLines = parsedLines.size();
+		valid = true;
+	}
+
+	// BASE operand in effect after a BASE or NOBASE line, as pass 1 records it
+	private static String nextBase(String directive, SicLine line) {
+		String[] ops = line.getOperands();
+		return directive.equals("BASE") && ops.length == 1 ? ops[0] : null;
+	}
+
+	// apply the edit in place, returning false if a full rebuild is needed
+	private boolean update(String[] lines) {
+		if (!simple)
+			return false;
+		int oldN = source.length, n = lines.length;
+		int prefix = 0;
+		while (prefix < oldN && prefix < n && source[prefix].equals(lines[prefix]))
+			prefix++;
+		int suffix = 0;
+		while (suffix < oldN - prefix && suffix < n - prefix
+				&& source[oldN - 1 - suffix].equals(lines[n - 1 - suffix]))
+			suffix++;
+		int oldMid = oldN - prefix - suffix, mid = n - prefix - suffix;
+		reparsedLines = 0;
+		reencodedLines = 0;
+
+		// nothing after END is assembled
+		if (prefix > endIndex) {
+			source = lines;
+			parsed = Arrays.copyOf(parsed, n);
+			loc = Arrays.copyOf(loc, n + 1);
+			Arrays.fill(loc, endIndex, n + 1, loc[endIndex]);
+			base = Arrays.copyOf(base, n + 1);
+			Arrays.fill(base, endIndex, n + 1, base[endIndex]);
+			Pass2Batch grown = new Pass2Batch(symtab, Math.max(1, n));
+			grown.copy(batch, 0, 0, endIndex + 1);
+			batch = grown;
+			return true;
+		}
+		if (prefix + oldMid > endIndex)
+			return false;
+		try {
+			return update(lines, prefix, oldMid, mid);
+		} catch (RuntimeException e) {
+			// the rebuild reports it in the right order
+			return false;
+		}
+	}
+
+	private boolean update(String[] lines, int prefix, int oldMid, int mid) {
+		int oldN = source.length, n = lines.length;
+		int oldSuffix = prefix + oldMid;
+		for (int i = prefix; i < oldSuffix; i++)
+			if (parsed[i] != null && isStateDirective(parsed[i]))
+				return false;
+
+		// parse the changed lines where the old ones started
+		SicLine[] midParsed = new SicLine[mid];
+		int[] midLoc = new int[mid + 1];
+		int locctr = loc[prefix];
+		String inherited = base[prefix];
+		for (int i = 0; i < mid; i++) {
+			midLoc[i] = locctr;
+			String line = lines[prefix + i];
+			if (SicLine.isSkippable(line))
+				continue;
+			SicLine parsedLine = SicLine.parseLine(line, locctr);
+			if (isStateDirective(parsedLine) || isGlobal(parsedLine))
+				return false;
+			parsedLine.setBase(inherited);
+			midParsed[i] = parsedLine;
+			locctr += Assembler.lineSize(parsedLine.getInstruction().toUpperCase(), parsedLine);
+		}
+		midLoc[mid] = locctr;
+		List<SicLine> midLines = new ArrayList<>();
+		for (SicLine line : midParsed)
+			if (line != null)
+				midLines.add(line);
+		Assembler.verify(midLines);
+		reparsedLines = midLines.size();
+		int delta = locctr - loc[oldSuffix];
+
+		// symbols that moved, by how far, and symbols that are gone
+		Map<String, Integer> moved = new HashMap<>();
+		Set<String> removed = new HashSet<>();
+		Map<String, Integer> oldMidSymbols = new HashMap<>();
+		for (int i = prefix; i < oldSuffix; i++)
+			if (hasLabel(parsed[i]))
+				oldMidSymbols.put(parsed[i].getLabel(), parsed[i].getMemLoc());
+		symtab.keySet().removeAll(oldMidSymbols.keySet());
+		for (SicLine line : midLines) {
+			if (!hasLabel(line))
+				continue;
+			if (symtab.putIfAbsent(line.getLabel(), line.getMemLoc()) != null)
+				return false;
+			Integer old = oldMidSymbols.remove(line.getLabel());
+			if (old != null && old.intValue() != line.getMemLoc())
+				moved.put(line.getLabel(), line.getMemLoc() - old);
+		}
+		removed.addAll(oldMidSymbols.keySet());
+		if (delta != 0)
+			for (int i = oldSuffix; i < oldN; i++)
+				if (hasLabel(parsed[i])) {
+					symtab.put(parsed[i].getLabel(), parsed[i].getMemLoc() + delta);
+					moved.put(parsed[i].getLabel(), delta);
+				}
+
+		SicLine[] newParsed = new SicLine[n];
+		int[] newLoc = new int[n + 1];
+		String[] newBase = new String[n + 1];
+		Pass2Batch newBatch = new Pass2Batch(symtab, Math.max(1, n));
+
+		// unchanged prefix
+		System.arraycopy(parsed, 0, newParsed, 0, prefix);
+		System.arraycopy(loc, 0, newLoc, 0, prefix);
+		System.arraycopy(base, 0, newBase, 0, prefix);
+		newBatch.copy(batch, 0, 0, prefix);
+
+		// changed middle
+		for (int i = 0; i < mid; i++) {
+			int j = prefix + i;
+			newLoc[j] = midLoc[i];
+			newBase[j] = inherited;
+			SicLine line = midParsed[i];
+			if (line == null)
+				continue;
+			newParsed[j] = line;
+			newBatch.set(j, line);
+			if (!newBatch.encodeLine(j))
+				return false;
+			reencodedLines++;
+		}
+
+		// suffix, moved by delta
+		int suffixCount = oldN - oldSuffix;
+		int newSuffix = prefix + mid;
+		newBatch.copy(batch, oldSuffix, newSuffix, suffixCount);
+		for (int i = 0; i < suffixCount; i++) {
+			int j = newSuffix + i;
+			SicLine line = parsed[oldSuffix + i];
+			newLoc[j] = loc[oldSuffix + i] + delta;
+			newBase[j] = base[oldSuffix + i];
+			if (line == null)
+				continue;
+			if (delta != 0) {
+				line = line.withMemLoc(line.getMemLoc() + delta);
+				newBatch.set(j, line);
+			}
+			newParsed[j] = line;
+		}
+		newLoc[n] = loc[oldN] + delta;
+		newBase[n] = base[oldN];
+
+		// lines outside the middle whose displacement changed
+		if (delta != 0 || !moved.isEmpty() || !removed.isEmpty()) {
+			for (int j = 0; j < n; j++) {
+				// the middle is already encoded
+				if (j == prefix)
+					j = newSuffix;
+				if (j == n)
+					break;
+				SicLine line = newParsed[j];
+				if (line == null || !isAffected(line, j < prefix ? 0 : delta, moved, removed))
+					continue;
+				if (!newBatch.encodeLine(j))
+					return false;
+				reencodedLines++;
+			}
+		}
+
+		source = lines;
+		parsed = newParsed;
+		loc = newLoc;
+		base = newBase;
+		batch = newBatch;
+		// END, if any, is in the suffix
+		endIndex += n - oldN;
+		programLength += delta;
+		return true;
+	}
+
+	// whether the encoding of a line moved by shift could differ
+	private static boolean isAffected(SicLine line, int shift, Map<String, Integer> moved,
+			Set<String> removed) {
+		if (line.getInstruction().equalsIgnoreCase("BASE")) {
+			String[] ops = line.getOperands();
+			return ops.length == 1 && removed.contains(ops[0]);
+		}
+		if (line.getOpcodeId() < 0 || line.getInstructionFormat() < 3)
+			return false;
+		String target = line.getTargetSymbol();
+		String lineBase = line.getBase();
+		if (removed.contains(target) || removed.contains(lineBase))
+			return true;
+		if (target == null)
+			// numbers are given as is
+			return false;
+		int targetShift = moved.getOrDefault(target, 0);
+		// a displacement is from BASE while it reaches and from PC otherwise, so
+		// both must have moved with the target
+		if (lineBase != null && targetShift != moved.getOrDefault(lineBase, 0))
+			return true;
+		return targetShift != shift;
+	}
+
+	private static boolean isStateDirective(SicLine line) {
+		switch (line.getInstruction().toUpperCase()) {
+		case "START":
+		case "END":
+		case "BASE":
+		case "NOBASE":
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	// whether the line's value could follow symbols anywhere in the program, or
+	// the line lays out or links the whole program
+	private static boolean isGlobal(SicLine line) {
+		switch (line.getInstruction().toUpperCase()) {
+		case "EQU":
+		case "ORG":
+		case "USE":
+		case "CSECT":
+		case "EXTDEF":
+		case "EXTREF":
+			return true;
+		default:
+			return Pass2Batch.hasExpression(line);
+		}
+	}
+
+	// whether pass 1 put the line's label in the symtab
+	private static boolean hasLabel(SicLine line) {
+		return line != null && line.getLabel() != null && !line.getLabel().isEmpty()
+				&& !line.getInstruction().equals("START");
+	}
+
+}
@@ -0,0 +1,536 @@
+package assembler;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.IntFunction;
+
+import instruction.Hex;
+import instruction.InstructionInfo;
+import instruction.Optab;
+import parse.SicLine;
+
+// Pass 1 results as columns of primitives, one row per parsed line
+// A row is the Optab id or directive, the nixbpe bits, the operand (a name id,
+// a value, an expression, a BYTE constant or two register numbers), LOCCTR, the
+// BASE name in effect, where the line is in the source and its line number;
+// names are ids into a Names table, which only holds names. Lines the columns
+// cannot give back exactly, such as unknown mnemonics, lower case directives or
+// unusual operands, are irregular rows that keep their SicLine. SicLines for
+// the other rows are only made when asked for
+final class LineTable implements Iterable<SicLine> {
+
+	static final int NONE = -1;
+
+	// opcode column below zero: irregular rows, then directives
+	static final int IRREGULAR = -1;
+	private static final String[] DIRECTIVES = { "START", "END", "BASE", "NOBASE", "RESW",
+			"RESB", "WORD", "BYTE", "CSECT", "USE", "EXTDEF", "EXTREF", "EQU", "ORG" };
+	private static final int WORD = directive("WORD"), BYTE = directive("BYTE"),
+			RESW = directive("RESW"), RESB = directive("RESB");
+
+	// mode column, plus VALUE when the operand is an immediate or directive
+	// value and EXPRESSION when it is an index into the expressions of
+	// instruction and WORD rows; the operand of a BYTE row is an index into the
+	// constants
+	static final int N = 0x20, I = 0x10, X = 0x08, B = 0x04, P = 0x02, E = 0x01;
+	static final int VALUE = 0x40, EXPRESSION = 0x80;
+
+	private static final String INDEXED = "[%RX]";
+
+	private final Names names;
+	private int size;
+	private int[] opcode, operand, label, loc, base, source, index;
+	private byte[] modes;
+	private SicLine[] irregular = new SicLine[16];
+	private int irregularCount;
+	private Expression[] expressions = new Expression[0];
+	private int expressionCount;
+	private String[] constants = new String[0];
+	private int constantCount;
+	// set by Relaxation: modes hold the b and p bits rows are encoded with, and
+	// format 3 and 4 rows with neither take their address directly
+	private boolean relaxed;
+
+	// lines share the BASE String pass 1 recorded, so its id is looked up once
+	private String lastBase;
+	private int lastBaseId = NONE;
+
+	LineTable(Names names) {
+		this(names, 1024);
+	}
+
+	LineTable(Names names, int capacity) {
+		this.names = names;
+		capacity = Math.max(1, capacity);
+		opcode = new int[capacity];
+		operand = new int[capacity];
+		label = new int[capacity];
+		loc = new int[capacity];
+		base = new int[capacity];
+		source = new int[capacity];
+		index = new int[capacity];
+		modes = new byte[capacity];
+	}
+
+	// append a parsed line, which is also the index-th source line
+	void add(SicLine line, int index) {
+		add(line, index, index);
+	}
+
+	// the same, where source locates its text for the listing
+	void add(SicLine line, int source, int index) {
+		if (size == opcode.length)
+			grow(size * 2);
+		int row = size++;
+		loc[row] = line.getMemLoc();
+		this.source[row] = source;
+		this.index[row] = index;
+		label[row] = line.getLabel() == null ? NONE : names.id(line.getLabel());
+		if (line.getBase() != lastBase) {
+			lastBase = line.getBase();
+			lastBaseId = lastBase == null ? NONE : names.id(lastBase);
+		}
+		base[row] = lastBaseId;
+		if (store(row, line))
+			return;
+		opcode[row] = IRREGULAR;
+		modes[row] = 0;
+		if (irregularCount == irregular.length)
+			irregular = Arrays.copyOf(irregular, irregularCount * 2);
+		operand[row] = irregularCount;
+		irregular[irregularCount++] = line;
+	}
+
+	// fill in the opcode, modes and operand of a row, or return false if the
+	// line could not be made again from them
+	private boolean store(int row, SicLine line) {
+		String[] ops = line.getOperands();
+		int bits = line.getModeBits();
+		int id = line.getOpcodeId();
+		if (id < 0) {
+			int directive = directive(line.getInstruction());
+			if (directive == IRREGULAR || bits != (N | I) || ops.length > 1
+					|| ops.length < minOperands(directive))
+				return false;
+			String op = ops.length == 0 ? null : ops[0];
+			int value;
+			if (op == null) {
+				value = NONE;
+			} else if (directive == BYTE) {
+				value = constant(op);
+			} else if (isValue(op)) {
+				value = Integer.parseInt(op);
+				bits |= VALUE;
+			} else if (directive == WORD) {
+				value = expression(op);
+				if (value == NONE)
+					return false;
+				bits |= EXPRESSION;
+			} else if (isName(op) && directive != RESW && directive != RESB) {
+				value = names.id(op);
+			} else {
+				return false;
+			}
+			opcode[row] = directive;
+			modes[row] = (byte) bits;
+			operand[row] = value;
+			return true;
+		}
+		InstructionInfo info = Optab.get(id);
+		if (ops.length != info.getArgCount())
+			return false;
+		int value;
+		switch (info.getInstructionFormat()) {
+		case 1:
+			if (ops.length != 0)
+				return false;
+			value = NONE;
+			break;
+		case 2:
+			if (ops.length == 0 || ops.length > 2)
+				return false;
+			value = 0;
+			for (int k = 0; k < ops.length; k++) {
+				int register = Optab.register(ops[k]);
+				if (register < 0)
+					return false;
+				value |= register << 4 * (1 - k);
+			}
+			break;
+		case 3:
+			if (ops.length != 1)
+				return false;
+			String op = ops[0];
+			if ((bits & (N | I)) == I && isDigits(op)) {
+				// values that do not fit are left to SicLine to report
+				if (op.length() > 10 || (op.length() > 1 && op.charAt(0) == '0')
+						|| Long.parseLong(op) > Integer.MAX_VALUE)
+					return false;
+				value = Integer.parseInt(op);
+				bits |= VALUE;
+			} else if (isName(op)) {
+				value = names.id(op);
+			} else if (Expression.isExpression(op)) {
+				value = expression(op);
+				if (value == NONE)
+					return false;
+				bits |= EXPRESSION;
+			} else {
+				return false;
+			}
+			break;
+		default:
+			return false;
+		}
+		opcode[row] = id;
+		modes[row] = (byte) bits;
+		operand[row] = value;
+		return true;
+	}
+
+	// the index of an operand's expression, or NONE if it is not one; those
+	// are left to irregular rows to report
+	private int expression(String op) {
+		Expression expression;
+		try {
+			expression = Expression.parse(op, names::id);
+		} catch (IllegalStateException e) {
+			return NONE;
+		}
+		if (expressionCount == expressions.length)
+			expressions = Arrays.copyOf(expressions, Math.max(16, expressionCount * 2));
+		expressions[expressionCount] = expression;
+		return expressionCount++;
+	}
+
+	private int constant(String op) {
+		if (constantCount == constants.length)
+			constants = Arrays.copyOf(constants, Math.max(16, constantCount * 2));
+		constants[constantCount] = op;
+		return constantCount++;
+	}
+
+	// the line of a row, as pass 1 parsed it
+	SicLine line(int row) {
+		int code = opcode[row];
+		if (code == IRREGULAR)
+			return irregular[operand[row]];
+		int bits = modes(row);
+		String instruction, rest;
+		if (code < 0) {
+			instruction = directiveName(code);
+			rest = (bits & EXPRESSION) != 0 ? expressions[operand[row]].toString()
+					: directiveOperand(row);
+		} else {
+			instruction = (bits & E) != 0 ? "+" + Optab.name(code) : Optab.name(code);
+			rest = operandText(row, Optab.get(code), bits);
+		}
+		SicLine line = SicLine.fromInfo(name(label[row]), instruction, rest, loc[row]);
+		line.setBase(name(base[row]));
+		return line;
+	}
+
+	// operand text that lexes back into the row's operands and modes
+	private String operandText(int row, InstructionInfo info, int bits) {
+		if (info.getArgCount() == 0)
+			return null;
+		StringBuilder sb = new StringBuilder();
+		if ((bits & (N | I)) == I)
+			sb.append('#');
+		else if ((bits & (N | I)) == N)
+			sb.append('@');
+		int value = operand[row];
+		if (info.getInstructionFormat() == 2) {
+			sb.append(Optab.registerName(value >> 4));
+			if (info.getArgCount() == 2)
+				sb.append(',').append(Optab.registerName(value & 0xF));
+		} else if ((bits & VALUE) != 0) {
+			sb.append(value);
+		} else if ((bits & EXPRESSION) != 0) {
+			sb.append(expressions[value]);
+		} else {
+			sb.append(names.name(value));
+		}
+		if ((bits & X) != 0)
+			sb.append(INDEXED);
+		return sb.toString();
+	}
+
+	@Override
+	public Iterator<SicLine> iterator() {
+		return new Iterator<SicLine>() {
+			private int row;
+
+			@Override
+			public boolean hasNext() {
+				return row < size;
+			}
+
+			@Override
+			public SicLine next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return line(row++);
+			}
+		};
+	}
+
+	// "LOCCTR <tab> source line" per row, text giving the line at a source position
+	Iterable<String> listing(IntFunction<CharSequence> text) {
+		return () -> new Iterator<String>() {
+			private int row;
+
+			@Override
+			public boolean hasNext() {
+				return row < size;
+			}
+
+			@Override
+			public String next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				CharSequence line = text.apply(source[row]);
+				// add hex code + line to listing lines
+				StringBuilder sb = new StringBuilder(9 + line.length());
+				appendLoc(sb, loc[row]).append('\t').append(line);
+				row++;
+				return sb.toString();
+			}
+		};
+	}
+
+	// a location as the listing shows it, the same as %06X
+	static StringBuilder appendLoc(StringBuilder sb, int loc) {
+		return Hex.append(sb, loc, Math.max(6, 8 - Integer.numberOfLeadingZeros(loc) / 4));
+	}
+
+	// irregular lines in row order, the only ones verify can reject
+	List<SicLine> irregularLines() {
+		return Arrays.asList(irregular).subList(0, irregularCount);
+	}
+
+	// number of operands that are expressions
+	int expressionCount() {
+		return expressionCount;
+	}
+
+	int constantCount() {
+		return constantCount;
+	}
+
+	// add rows, irregular lines, expressions and constants to be filled in by
+	// place
+	void extend(int rows, int irregulars, int expressions, int constants) {
+		if (size + rows > opcode.length)
+			grow(size + rows);
+		size += rows;
+		if (irregularCount + irregulars > irregular.length)
+			irregular = Arrays.copyOf(irregular, irregularCount + irregulars);
+		irregularCount += irregulars;
+		if (expressionCount + expressions > this.expressions.length)
+			this.expressions = Arrays.copyOf(this.expressions, expressionCount + expressions);
+		expressionCount += expressions;
+		if (constantCount + constants > this.constants.length)
+			this.constants = Arrays.copyOf(this.constants, constantCount + constants);
+		constantCount += constants;
+	}
+
+	// copy the rows of chunk to row at, its irregular lines to irregularAt, its
+	// expressions to expressionAt and its constants to constantAt; ids maps the
+	// chunk's name ids to ours, and rows before inheritUntil take the inherited
+	// BASE. Chunks placed at different rows may be copied at once
+	void place(LineTable chunk, int at, int irregularAt, int expressionAt, int constantAt,
+			int[] ids, int locOffset, int inheritedBase, int inheritUntil) {
+		for (int r = 0; r < chunk.size; r++) {
+			int row = at + r;
+			int code = chunk.opcode[r];
+			int bits = chunk.modes(r);
+			int value = chunk.operand[r];
+			opcode[row] = code;
+			modes[row] = (byte) bits;
+			loc[row] = locOffset + chunk.loc[r];
+			source[row] = chunk.source[r];
+			index[row] = chunk.index[r];
+			label[row] = map(ids, chunk.label[r]);
+			base[row] = r < inheritUntil ? inheritedBase : map(ids, chunk.base[r]);
+			if (code == IRREGULAR) {
+				SicLine line = chunk.irregular[value].withMemLoc(loc[row]);
+				if (r < inheritUntil)
+					line.setBase(name(inheritedBase));
+				irregular[irregularAt] = line;
+				value = irregularAt++;
+			} else if ((bits & EXPRESSION) != 0) {
+				expressions[expressionAt] = chunk.expressions[value].remap(ids);
+				value = expressionAt++;
+			} else if (code == BYTE) {
+				constants[constantAt] = chunk.constants[value];
+				value = constantAt++;
+			} else if (code < 0 ? (bits & VALUE) == 0 : isSymbol(code, bits)) {
+				value = map(ids, value);
+			}
+			operand[row] = value;
+		}
+	}
+
+	private static int map(int[] ids, int id) {
+		return id == NONE ? NONE : ids[id];
+	}
+
+	int size() {
+		return size;
+	}
+
+	Names names() {
+		return names;
+	}
+
+	// the name of an id, null for NONE
+	String name(int id) {
+		return id == NONE ? null : names.name(id);
+	}
+
+	int opcode(int row) {
+		return opcode[row];
+	}
+
+	int modes(int row) {
+		return modes[row] & 0xFF;
+	}
+
+	// the expression of a row with EXPRESSION set, by its operand
+	Expression expression(int operand) {
+		return expressions[operand];
+	}
+
+	int operand(int row) {
+		return operand[row];
+	}
+
+	// the operand text of a directive row without an expression, null if it
+	// has none
+	String directiveOperand(int row) {
+		int value = operand[row];
+		if (opcode[row] == BYTE)
+			return constants[value];
+		return (modes(row) & VALUE) != 0 ? Integer.toString(value) : name(value);
+	}
+
+	int label(int row) {
+		return label[row];
+	}
+
+	int loc(int row) {
+		return loc[row];
+	}
+
+	int base(int row) {
+		return base[row];
+	}
+
+	int source(int row) {
+		return source[row];
+	}
+
+	// the position of a row's line among all source lines, skipped ones included
+	int index(int row) {
+		return index[row];
+	}
+
+	void setModes(int row, int bits) {
+		modes[row] = (byte) bits;
+	}
+
+	// move a row, and the line of an irregular row, to another location
+	void setLoc(int row, int loc) {
+		this.loc[row] = loc;
+		if (opcode[row] == IRREGULAR)
+			irregular[operand[row]] = irregular[operand[row]].withMemLoc(loc);
+	}
+
+	boolean isRelaxed() {
+		return relaxed;
+	}
+
+	void markRelaxed() {
+		relaxed = true;
+	}
+
+	SicLine irregular(int row) {
+		return irregular[operand[row]];
+	}
+
+	// whether an instruction row's operand is a name id
+	static boolean isSymbol(int code, int bits) {
+		return Optab.get(code).getInstructionFormat() == 3 && (bits & (VALUE | EXPRESSION)) == 0;
+	}
+
+	static int directive(String instruction) {
+		for (int i = 0; i < DIRECTIVES.length; i++)
+			if (DIRECTIVES[i].equals(instruction))
+				return -2 - i;
+		return IRREGULAR;
+	}
+
+	static String directiveName(int code) {
+		return DIRECTIVES[-2 - code];
+	}
+
+	// START, the storage directives and a single EXTDEF or EXTREF symbol take
+	// exactly one operand
+	private static int minOperands(int directive) {
+		switch (directiveName(directive)) {
+		case "END":
+		case "BASE":
+		case "NOBASE":
+		case "CSECT":
+		case "USE":
+		case "ORG":
+			return 0;
+		default:
+			return 1;
+		}
+	}
+
+	private void grow(int capacity) {
+		opcode = Arrays.copyOf(opcode, capacity);
+		operand = Arrays.copyOf(operand, capacity);
+		label = Arrays.copyOf(label, capacity);
+		loc = Arrays.copyOf(loc, capacity);
+		base = Arrays.copyOf(base, capacity);
+		source = Arrays.copyOf(source, capacity);
+		index = Arrays.copyOf(index, capacity);
+		modes = Arrays.copyOf(modes, capacity);
+	}
+
+	private static boolean isDigits(String s) {
+		if (s.isEmpty())
+			return false;
+		for (int i = 0; i < s.length(); i++)
+			if (s.charAt(i) < '0' || s.charAt(i) > '9')
+				return false;
+		return true;
+	}
+
+	// a decimal int written the way Integer.toString gives it back
+	private static boolean isValue(String s) {
+		if (!Expression.isNumber(s) || s.length() > 11)
+			return false;
+		long value = Long.parseLong(s);
+		return value == (int) value && Long.toString(value).equals(s);
+	}
+
+	private static boolean isName(String s) {
+		if (s.isEmpty())
+			return false;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (!(c >= 'a' && c <= 'z') && !(c >= 'A' && c <= 'Z') && !(c >= '0' && c <= '9')
+					&& c != '_')
+				return false;
+		}
+		return true;
+	}
+
+}
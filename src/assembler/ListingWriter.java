@@ -0,0 +1,62 @@
+package assembler;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+// Writes listing lines to a file on a thread of its own
+// Listing lines only need pass 1 results, so they are rendered and written
+// while pass 2 encodes and writes the object file
+final class ListingWriter {
+
+	private final Path lstFile;
+	private final FutureTask<Void> task;
+	private final Thread thread;
+
+	private ListingWriter(Iterable<String> listing, Path lstFile) {
+		this.lstFile = lstFile;
+		task = new FutureTask<>(() -> {
+			Files.write(lstFile, listing);
+			return null;
+		});
+		thread = new Thread(task, "listing-writer");
+		thread.setDaemon(true);
+	}
+
+	static ListingWriter start(Iterable<String> listing, Path lstFile) {
+		ListingWriter writer = new ListingWriter(listing, lstFile);
+		writer.thread.start();
+		return writer;
+	}
+
+	// wait for the listing to be written, rethrowing what writing it failed with
+	void finish() throws IOException {
+		try {
+			task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted writing " + lstFile, e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw (Error) cause;
+		}
+	}
+
+	// stop writing and delete whatever was written
+	void abandon() throws IOException {
+		task.cancel(true);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		Files.deleteIfExists(lstFile);
+	}
+
+}
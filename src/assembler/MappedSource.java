@@ -0,0 +1,153 @@
+package assembler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import parse.SicLine;
+
+// An ASCII source file mapped into memory and lexed in place
+// Pass 1 sees every line through one reused window onto the mapped bytes, so
+// no String is made per source line: the lexer only creates labels, operands and
+// unknown mnemonics. Listing lines are rendered from the mapping when the
+// listing is written. Lines end at \n, \r or \r\n, as for Files.readAllLines
+final class MappedSource implements Iterable<CharSequence>, Pass1Output, Closeable {
+
+	private final FileChannel channel;
+	private final MappedByteBuffer bytes;
+	private final int size;
+
+	// parsed lines, each with the offset its source line starts at
+	private final LineTable table;
+
+	private MappedSource(FileChannel channel, MappedByteBuffer bytes, int size, Names names) {
+		this.channel = channel;
+		this.bytes = bytes;
+		this.size = size;
+		table = new LineTable(names);
+	}
+
+	// names are those of the symtab pass 1 fills in
+	static MappedSource open(Path source, Names names) throws IOException {
+		FileChannel channel = FileChannel.open(source, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IllegalStateException("Source too large to map: " + source);
+			MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			return new MappedSource(channel, bytes, (int) size, names);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public Iterator<CharSequence> iterator() {
+		return new Iterator<CharSequence>() {
+			private final Line line = new Line();
+			private int pos;
+
+			@Override
+			public boolean hasNext() {
+				return pos < size;
+			}
+
+			@Override
+			public CharSequence next() {
+				if (pos >= size)
+					throw new NoSuchElementException();
+				int end = pos;
+				byte b = 0;
+				while (end < size && (b = bytes.get(end)) != '\n' && b != '\r') {
+					if (b < 0)
+						throw new IllegalStateException("Source is not ASCII at byte " + end);
+					end++;
+				}
+				line.set(pos, end);
+				pos = end + 1;
+				if (b == '\r' && pos < size && bytes.get(pos) == '\n')
+					pos++;
+				return line;
+			}
+		};
+	}
+
+	@Override
+	public void add(SicLine parsedLine, CharSequence source, int index) {
+		table.add(parsedLine, ((Line) source).start, index);
+	}
+
+	@Override
+	public void move(int line, int shift) {
+		table.setLoc(line, table.loc(line) + shift);
+	}
+
+	@Override
+	public Pass1Info finish(Symtab symtab, String programName, int startAddr,
+			int programLength) {
+		Line line = new Line();
+		Iterable<String> listing = table.listing(start -> {
+			int end = start;
+			while (end < size && bytes.get(end) != '\n' && bytes.get(end) != '\r')
+				end++;
+			line.set(start, end);
+			return line;
+		});
+		return Pass1Info.of(listing, table, symtab, programName, startAddr, programLength,
+				this);
+	}
+
+	// the mapping itself is released once it is garbage collected
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private String decode(int from, int to) {
+		byte[] ascii = new byte[to - from];
+		for (int i = 0; i < ascii.length; i++)
+			ascii[i] = bytes.get(from + i);
+		return new String(ascii, StandardCharsets.US_ASCII);
+	}
+
+	// the current line, valid until the iterator moves on
+	private final class Line implements CharSequence {
+
+		private int start, end;
+
+		void set(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public int length() {
+			return end - start;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return (char) bytes.get(start + index);
+		}
+
+		// parts of a line are kept by the parsed line, so they are copied out
+		@Override
+		public CharSequence subSequence(int from, int to) {
+			return decode(start + from, start + to);
+		}
+
+		@Override
+		public String toString() {
+			return decode(start, end);
+		}
+
+	}
+
+}
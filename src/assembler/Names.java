@@ -0,0 +1,79 @@
+package assembler;
+
+import java.util.Arrays;
+
+// Labels, operand symbols and directive operands, each stored once and numbered
+// in order of first appearance
+// Ids are found through an open addressing table of ids with linear probing;
+// the String hash codes are kept so growing never rehashes a String
+final class Names {
+
+	private static final int EMPTY = -1;
+
+	private String[] names = new String[16];
+	private int[] hashes = new int[16];
+	// id per slot, kept at most half full
+	private int[] slots = newSlots(32);
+	private int size;
+
+	int id(String name) {
+		int hash = hash(name);
+		int mask = slots.length - 1;
+		int i = hash & mask;
+		for (int id; (id = slots[i]) != EMPTY; i = (i + 1) & mask)
+			if (hashes[id] == hash && names[id].equals(name))
+				return id;
+		if (size == names.length) {
+			names = Arrays.copyOf(names, size * 2);
+			hashes = Arrays.copyOf(hashes, size * 2);
+		}
+		names[size] = name;
+		hashes[size] = hash;
+		slots[i] = size;
+		if (++size * 2 > slots.length)
+			rehash(slots.length * 2);
+		return size - 1;
+	}
+
+	// id of a name, or LineTable.NONE if it has none
+	int find(Object name) {
+		int hash = hash(name);
+		int mask = slots.length - 1;
+		for (int i = hash & mask, id; (id = slots[i]) != EMPTY; i = (i + 1) & mask)
+			if (hashes[id] == hash && names[id].equals(name))
+				return id;
+		return LineTable.NONE;
+	}
+
+	String name(int id) {
+		return names[id];
+	}
+
+	int size() {
+		return size;
+	}
+
+	private void rehash(int capacity) {
+		slots = newSlots(capacity);
+		int mask = capacity - 1;
+		for (int id = 0; id < size; id++) {
+			int i = hashes[id] & mask;
+			while (slots[i] != EMPTY)
+				i = (i + 1) & mask;
+			slots[i] = id;
+		}
+	}
+
+	private static int[] newSlots(int capacity) {
+		int[] slots = new int[capacity];
+		Arrays.fill(slots, EMPTY);
+		return slots;
+	}
+
+	// spreads the high bits, as HashMap does
+	private static int hash(Object name) {
+		int h = name.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+}
@@ -0,0 +1,228 @@
+package assembler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import assembler.ObjectWriter.Format;
+
+// Reads object files of either format into an ObjectRecords, and converts one
+// format into the other
+// Binary files are mapped and their records decoded straight from the mapping.
+// Names in text D and R records are 6 characters, as the format has no
+// separator to tell longer ones by, and ObjectWriter refuses to write longer
+// ones as text. Text has no room for the SYMTAB, so it is lost on the way from
+// binary to text. Every program must end in an E record
+public final class ObjectFiles {
+
+	private ObjectFiles() {
+	}
+
+	// whether objFile starts with a binary H record
+	public static boolean isBinary(Path objFile) throws IOException {
+		byte[] start = new byte[ObjectWriter.MAGIC.length - 1];
+		int n = 0;
+		try (InputStream in = Files.newInputStream(objFile)) {
+			for (int r; n < start.length && (r = in.read(start, n, start.length - n)) > 0;)
+				n += r;
+		}
+		return n == start.length
+				&& Arrays.equals(start, Arrays.copyOf(ObjectWriter.MAGIC, start.length));
+	}
+
+	public static void read(Path objFile, ObjectRecords records) throws IOException {
+		if (!isBinary(objFile)) {
+			readText(Files.readAllLines(objFile, StandardCharsets.ISO_8859_1), records);
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(objFile, StandardOpenOption.READ)) {
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			readBinary(map, records);
+		}
+	}
+
+	// text records, one a line as ObjectWriter writes them
+	public static void readText(Iterable<String> lines, ObjectRecords records) {
+		String programName = null;
+		boolean ended = true;
+		byte[] code = new byte[0xFF];
+		for (String record : lines) {
+			if (record.isEmpty())
+				continue;
+			switch (record.charAt(0)) {
+			case 'H':
+				// the name takes at least 6 characters, the addresses the last 12
+				if (record.length() < 13)
+					throw new IllegalStateException("Record too short: " + record);
+				checkEnded(ended, programName);
+				ended = false;
+				programName = record.substring(1, record.length() - 12).trim();
+				records.header(programName, hex(record, record.length() - 12, 6),
+						hex(record, record.length() - 6, 6));
+				break;
+			case 'D':
+				int defined = (record.length() - 1) / 12;
+				String[] names = new String[defined];
+				int[] addresses = new int[defined];
+				for (int i = 0; i < defined; i++) {
+					names[i] = record.substring(1 + 12 * i, 7 + 12 * i).trim();
+					addresses[i] = hex(record, 7 + 12 * i, 6);
+				}
+				records.define(names, addresses);
+				break;
+			case 'R':
+				String[] referred = new String[(record.length() + 4) / 6];
+				for (int i = 0; i < referred.length; i++)
+					referred[i] = record.substring(1 + 6 * i, Math.min(record.length(), 7 + 6 * i))
+							.trim();
+				records.refer(referred);
+				break;
+			case 'T':
+				int length = hex(record, 1, 2);
+				int addr = hex(record, 3, 6);
+				for (int i = 0; i < length; i++)
+					code[i] = (byte) hex(record, 9 + 2 * i, 2);
+				records.text(code, 0, length, addr);
+				break;
+			case 'M':
+				// without a sign and symbol, the program itself is meant
+				int halfBytes = hex(record, 7, 2);
+				char sign = record.length() > 9 ? record.charAt(9) : '+';
+				String symbol = record.length() > 10 ? record.substring(10) : programName;
+				records.modification(hex(record, 1, 6), halfBytes, sign, symbol);
+				break;
+			case 'E':
+				if (record.length() > 1)
+					records.end(hex(record, 1, 6));
+				else
+					records.end();
+				ended = true;
+				break;
+			default:
+				throw new IllegalStateException("Unknown record: " + record);
+			}
+		}
+		checkEnded(ended, programName);
+	}
+
+	// binary records from the position of buffer to its limit
+	public static void readBinary(ByteBuffer buffer, ObjectRecords records) {
+		String programName = null;
+		boolean ended = true;
+		byte[] code = new byte[0xFF];
+		try {
+			while (buffer.hasRemaining()) {
+				int at = buffer.position();
+				byte tag = buffer.get();
+				switch (tag) {
+				case 0:
+					for (int i = 1; i < ObjectWriter.MAGIC.length; i++)
+						if (buffer.get() != ObjectWriter.MAGIC[i])
+							throw new IllegalStateException(
+									"Not a binary object program of this version at " + at);
+					checkEnded(ended, programName);
+					ended = false;
+					programName = name(buffer);
+					int startAddr = buffer.getInt();
+					records.header(programName, startAddr, buffer.getInt());
+					break;
+				case ObjectWriter.DEFINE:
+					int defined = buffer.getShort() & 0xFFFF;
+					String[] names = new String[defined];
+					int[] addresses = new int[defined];
+					for (int i = 0; i < defined; i++) {
+						names[i] = name(buffer);
+						addresses[i] = buffer.getInt();
+					}
+					records.define(names, addresses);
+					break;
+				case ObjectWriter.REFER:
+					String[] referred = new String[buffer.getShort() & 0xFFFF];
+					for (int i = 0; i < referred.length; i++)
+						referred[i] = name(buffer);
+					records.refer(referred);
+					break;
+				case ObjectWriter.SYMBOLS:
+					int count = buffer.getInt();
+					Map<String, Integer> symtab = new LinkedHashMap<>();
+					for (int i = 0; i < count; i++)
+						symtab.put(name(buffer), buffer.getInt());
+					records.symbols(symtab);
+					break;
+				case ObjectWriter.TEXT:
+					int addr = buffer.getInt();
+					int length = buffer.get() & 0xFF;
+					buffer.get(code, 0, length);
+					records.text(code, 0, length, addr);
+					break;
+				case ObjectWriter.RELOCATION:
+					int relocated = buffer.getInt();
+					records.modification(relocated, buffer.get() & 0xFF, '+', programName);
+					break;
+				case ObjectWriter.MODIFICATION:
+					int modified = buffer.getInt();
+					int halfBytes = buffer.get() & 0xFF;
+					char sign = (char) buffer.get();
+					records.modification(modified, halfBytes, sign, name(buffer));
+					break;
+				case ObjectWriter.END:
+					if (buffer.get() != 0)
+						records.end(buffer.getInt());
+					else
+						records.end();
+					ended = true;
+					break;
+				default:
+					throw new IllegalStateException("Unknown record at " + at + ": " + tag);
+				}
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IllegalStateException("Binary object program cut short", e);
+		}
+		checkEnded(ended, programName);
+	}
+
+	// write the records of from to to in the format from is not in
+	public static void convert(Path from, Path to) throws IOException {
+		if (Files.exists(to) && Files.isSameFile(from, to))
+			throw new IllegalStateException("Cannot convert an object file onto itself: " + from);
+		// a binary file's SYMTAB has nowhere to go, a text file has none
+		Format format = isBinary(from) ? Format.TEXT : Format.BINARY;
+		try (ObjectWriter out = ObjectWriter.open(to, format)) {
+			read(from, out);
+		} catch (IOException | RuntimeException e) {
+			// rather than leave half a program behind
+			Files.deleteIfExists(to);
+			throw e;
+		}
+	}
+
+	// the program before the next H record or the end of the file must be over
+	private static void checkEnded(boolean ended, String programName) {
+		if (!ended)
+			throw new IllegalStateException("Object program has no E record: " + programName);
+	}
+
+	private static String name(ByteBuffer buffer) {
+		byte[] name = new byte[buffer.get() & 0xFF];
+		buffer.get(name);
+		return new String(name, StandardCharsets.ISO_8859_1);
+	}
+
+	private static int hex(String record, int from, int digits) {
+		if (record.length() < from + digits)
+			throw new IllegalStateException("Record too short: " + record);
+		return Integer.parseInt(record.substring(from, from + digits), 16);
+	}
+
+}
@@ -0,0 +1,34 @@
+package assembler;
+
+import java.util.Map;
+
+// Receives the records of object programs in order, each program an H record,
+// then D, R, symbol, T and M records, then an E record
+// ObjectWriter formats them as text or binary records, and ObjectFiles reads
+// either format back into any receiver
+public interface ObjectRecords {
+
+	void header(String programName, int startAddr, int programLength);
+
+	// symbols a control section defines for others
+	void define(String[] names, int[] addresses);
+
+	// symbols a control section takes from others
+	void refer(String[] names);
+
+	// the SYMTAB of the program, which only the binary format has room for
+	void symbols(Map<String, Integer> symtab);
+
+	void text(byte[] bytes, int off, int len, int addr);
+
+	// halfBytes hex digits starting at addr get the address of symbol added,
+	// or taken away if sign is '-'
+	void modification(int addr, int halfBytes, char sign, String symbol);
+
+	void end(int startAddr);
+
+	// the E record of a control section other than the first, which has no
+	// address to start at
+	void end();
+
+}
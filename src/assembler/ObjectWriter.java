@@ -0,0 +1,362 @@
+package assembler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// Formats H, D, R, T, M and E records straight into one reusable byte buffer
+// Object bytes become ASCII hex as they are appended and the T record length is
+// patched in place, so no String, regex or format call is made per record.
+// Records either go to a channel, drained whenever the buffer fills up, or are
+// handed one String each to a consumer for callers that want the lines.
+// A channel can take binary records instead, see the layout below
+public final class ObjectWriter implements ObjectRecords, Closeable {
+
+	// Binary records are a tag byte and big endian fields, without separators.
+	// Names are a length byte and ASCII, addresses and lengths of programs 4
+	// bytes. The H record's tag is MAGIC, so every program starts with it and
+	// programs still concatenate:
+	//   H  MAGIC, name, start, length
+	//   D  count (2 bytes), then a name and an address each
+	//   R  count (2 bytes), then a name each
+	//   S  count (4 bytes), then a name and an address each: the SYMTAB
+	//   T  address, length (1 byte), code
+	//   L  address, half bytes (1 byte): relocated by the program's own start
+	//   M  address, half bytes (1 byte), sign (1 byte), name
+	//   E  1 and the address to start at, or 0
+	// L stands for the M records against the program itself, most of them.
+	// The S record is only written when asked for
+	static final byte[] MAGIC = { 0, 'S', 'X', 'O', 1 };
+	static final byte DEFINE = 'D', REFER = 'R', SYMBOLS = 'S', TEXT = 'T',
+			RELOCATION = 'L', MODIFICATION = 'M', END = 'E';
+
+	public enum Format {
+		TEXT, BINARY, BINARY_WITH_SYMBOLS
+	}
+
+	private static final byte[] DIGITS = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] NEWLINE = System.lineSeparator()
+			.getBytes(StandardCharsets.US_ASCII);
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	// exactly one of these is set
+	private final WritableByteChannel channel;
+	private final Consumer<String> lines;
+	private final boolean binary, symbols;
+	// of the last H record, which binary L records are relative to
+	private String programName;
+
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	private ByteBuffer view = ByteBuffer.wrap(buffer);
+	private int pos;
+
+	public ObjectWriter(WritableByteChannel channel) {
+		this(channel, Format.TEXT);
+	}
+
+	public ObjectWriter(WritableByteChannel channel, Format format) {
+		this.channel = channel;
+		this.lines = null;
+		this.binary = format != Format.TEXT;
+		this.symbols = format == Format.BINARY_WITH_SYMBOLS;
+	}
+
+	public ObjectWriter(Consumer<String> lines) {
+		this.channel = null;
+		this.lines = lines;
+		this.binary = false;
+		this.symbols = false;
+	}
+
+	// create or truncate objFile and write records to it
+	public static ObjectWriter open(Path objFile) throws IOException {
+		return open(objFile, Format.TEXT);
+	}
+
+	public static ObjectWriter open(Path objFile, Format format) throws IOException {
+		return new ObjectWriter(FileChannel.open(objFile, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), format);
+	}
+
+	@Override
+	public void header(String programName, int startAddr, int programLength) {
+		this.programName = programName;
+		if (binary) {
+			reserve(MAGIC.length + 9 + programName.length());
+			System.arraycopy(MAGIC, 0, buffer, pos, MAGIC.length);
+			pos += MAGIC.length;
+			putBinaryName(programName);
+			putInt(startAddr);
+			putInt(programLength);
+			return;
+		}
+		int nameLength = Math.max(6, programName.length());
+		reserve(13 + nameLength);
+		buffer[pos++] = 'H';
+		putName(programName);
+		putHex(startAddr, 6);
+		putHex(programLength, 6);
+		endRecord();
+	}
+
+	// D records of up to 6 symbols a control section defines for others
+	@Override
+	public void define(String[] names, int[] addresses) {
+		if (binary) {
+			for (int from = 0; from < names.length; from += 0xFFFF) {
+				int to = Math.min(names.length, from + 0xFFFF);
+				reserve(3);
+				buffer[pos++] = DEFINE;
+				putShort(to - from);
+				for (int i = from; i < to; i++) {
+					reserve(5 + names[i].length());
+					putBinaryName(names[i]);
+					putInt(addresses[i]);
+				}
+			}
+			return;
+		}
+		checkNames(names);
+		for (int from = 0; from < names.length; from += 6) {
+			int to = Math.min(names.length, from + 6);
+			reserve(1 + (to - from) * 12);
+			buffer[pos++] = 'D';
+			for (int i = from; i < to; i++) {
+				putName(names[i]);
+				putHex(addresses[i], 6);
+			}
+			endRecord();
+		}
+	}
+
+	// R records of up to 12 symbols a control section takes from others
+	@Override
+	public void refer(String[] names) {
+		if (binary) {
+			for (int from = 0; from < names.length; from += 0xFFFF) {
+				int to = Math.min(names.length, from + 0xFFFF);
+				reserve(3);
+				buffer[pos++] = REFER;
+				putShort(to - from);
+				for (int i = from; i < to; i++) {
+					reserve(1 + names[i].length());
+					putBinaryName(names[i]);
+				}
+			}
+			return;
+		}
+		checkNames(names);
+		for (int from = 0; from < names.length; from += 12) {
+			int to = Math.min(names.length, from + 12);
+			reserve(1 + (to - from) * 6);
+			buffer[pos++] = 'R';
+			for (int i = from; i < to; i++)
+				putName(names[i]);
+			endRecord();
+		}
+	}
+
+	// only binary records hold the SYMTAB, and only if the format says so
+	@Override
+	public void symbols(Map<String, Integer> symtab) {
+		if (!symbols)
+			return;
+		reserve(5);
+		buffer[pos++] = SYMBOLS;
+		putInt(symtab.size());
+		symtab.forEach((name, addr) -> {
+			reserve(5 + name.length());
+			putBinaryName(name);
+			putInt(addr);
+		});
+	}
+
+	@Override
+	public void text(byte[] bytes, int off, int len, int addr) {
+		if (binary) {
+			// the length takes a byte, which no text record needs more than
+			for (int from = off; from < off + len; from += 0xFF) {
+				int n = Math.min(0xFF, off + len - from);
+				reserve(6 + n);
+				buffer[pos++] = TEXT;
+				putInt(addr + from - off);
+				buffer[pos++] = (byte) n;
+				System.arraycopy(bytes, from, buffer, pos, n);
+				pos += n;
+			}
+			return;
+		}
+		reserve(9 + 2 * len);
+		buffer[pos++] = 'T';
+		// the length is patched in once the bytes are in
+		int lengthField = pos;
+		pos += 2;
+		putHex(addr, 6);
+		for (int i = off; i < off + len; i++) {
+			buffer[pos++] = DIGITS[(bytes[i] >> 4) & 0xF];
+			buffer[pos++] = DIGITS[bytes[i] & 0xF];
+		}
+		buffer[lengthField] = DIGITS[(len >> 4) & 0xF];
+		buffer[lengthField + 1] = DIGITS[len & 0xF];
+		endRecord();
+	}
+
+	// halfBytes hex digits starting at addr get the address of symbol added
+	public void modification(int addr, int halfBytes, String symbol) {
+		modification(addr, halfBytes, '+', symbol);
+	}
+
+	@Override
+	public void modification(int addr, int halfBytes, char sign, String symbol) {
+		if (binary) {
+			reserve(8 + symbol.length());
+			if (sign == '+' && symbol.equals(programName)) {
+				buffer[pos++] = RELOCATION;
+				putInt(addr);
+				buffer[pos++] = (byte) halfBytes;
+			} else {
+				buffer[pos++] = MODIFICATION;
+				putInt(addr);
+				buffer[pos++] = (byte) halfBytes;
+				buffer[pos++] = (byte) sign;
+				putBinaryName(symbol);
+			}
+			return;
+		}
+		reserve(10 + symbol.length());
+		buffer[pos++] = 'M';
+		putHex(addr, 6);
+		putHex(halfBytes, 2);
+		buffer[pos++] = (byte) sign;
+		for (int i = 0; i < symbol.length(); i++)
+			buffer[pos++] = (byte) symbol.charAt(i);
+		endRecord();
+	}
+
+	@Override
+	public void end(int startAddr) {
+		if (binary) {
+			reserve(6);
+			buffer[pos++] = END;
+			buffer[pos++] = 1;
+			putInt(startAddr);
+			return;
+		}
+		reserve(7);
+		buffer[pos++] = 'E';
+		putHex(startAddr, 6);
+		endRecord();
+	}
+
+	@Override
+	public void end() {
+		if (binary) {
+			reserve(2);
+			buffer[pos++] = END;
+			buffer[pos++] = 0;
+			return;
+		}
+		reserve(1);
+		buffer[pos++] = 'E';
+		endRecord();
+	}
+
+	// write out whatever the buffer holds
+	public void flush() {
+		if (channel == null || pos == 0)
+			return;
+		view.clear();
+		view.limit(pos);
+		try {
+			while (view.hasRemaining())
+				channel.write(view);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		pos = 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			if (channel != null)
+				channel.close();
+		}
+	}
+
+	// make room for a record of up to length characters and its line separator
+	private void reserve(int length) {
+		int needed = length + NEWLINE.length;
+		if (pos + needed <= buffer.length)
+			return;
+		flush();
+		if (needed > buffer.length) {
+			buffer = new byte[needed];
+			view = ByteBuffer.wrap(buffer);
+		}
+	}
+
+	private void putInt(int value) {
+		buffer[pos++] = (byte) (value >> 24);
+		buffer[pos++] = (byte) (value >> 16);
+		buffer[pos++] = (byte) (value >> 8);
+		buffer[pos++] = (byte) value;
+	}
+
+	private void putShort(int value) {
+		buffer[pos++] = (byte) (value >> 8);
+		buffer[pos++] = (byte) value;
+	}
+
+	private void putBinaryName(String name) {
+		if (name.length() > 0xFF)
+			throw new IllegalStateException("Name too long for a binary object: " + name);
+		buffer[pos++] = (byte) name.length();
+		for (int i = 0; i < name.length(); i++)
+			buffer[pos++] = (byte) name.charAt(i);
+	}
+
+	private void putHex(int value, int digits) {
+		for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4)
+			buffer[pos++] = DIGITS[(value >>> shift) & 0xF];
+	}
+
+	// names are padded to 6 characters, longer ones take what they need
+	private void putName(String name) {
+		int length = Math.max(6, name.length());
+		for (int i = 0; i < length; i++)
+			buffer[pos++] = (byte) (i < name.length() ? name.charAt(i) : ' ');
+	}
+
+	// text D and R records have no separator to tell a longer name by, so only
+	// binary ones can hold it
+	private static void checkNames(String[] names) {
+		for (String name : names)
+			if (name.length() > 6)
+				throw new IllegalStateException(
+						"External symbol too long for a text object program: " + name);
+	}
+
+	private void endRecord() {
+		if (channel != null) {
+			System.arraycopy(NEWLINE, 0, buffer, pos, NEWLINE.length);
+			pos += NEWLINE.length;
+			return;
+		}
+		lines.accept(new String(buffer, 0, pos, StandardCharsets.ISO_8859_1));
+		pos = 0;
+	}
+
+}
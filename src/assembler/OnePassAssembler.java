@@ -0,0 +1,346 @@
+package assembler;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.function.Consumer;
+
+import instruction.Optab;
+import parse.SicLine;
+
+// Pass 1 and pass 2 in a single read of the source
+// Every line is encoded as soon as pass 1 has parsed it. An operand whose
+// symbol, or BASE symbol, is not defined yet gets a zero displacement and a
+// fixup chained to that symbol, which patches the displacement in once the
+// symbol is defined. Only the object bytes, a length byte per encoded line and
+// the pending fixups are kept; listing lines go out as the lines are read, and
+// the object program is written at END, once the program length is known,
+// exactly as pass2 would write it. Errors are those of pass1, verify and pass2
+// in the same order: pass 1 errors at once, the others at END, verify errors
+// first and then the earliest line pass 2 would fail on
+final class OnePassAssembler implements Pass1Output {
+
+	private static final int NONE = LineTable.NONE;
+
+	private final Symtab symtab = new Symtab(new Names());
+	private final ObjectWriter out;
+	private final Consumer<String> listing;
+	// encodes everything but forward references, one line at a time
+	private final Pass2Batch slot = new Pass2Batch(symtab, 1);
+
+	// object code in line order, with each line's code length and LOCCTR
+	private byte[] code = new byte[1 << 12];
+	private int codeSize;
+	private int[] lengths = new int[1 << 10], locs = new int[1 << 10];
+	private int entries;
+	// entries holding a relative WORD, which a modification record relocates
+	private int[] relocated = new int[4];
+	private int relocatedCount;
+
+	// fixups waiting for symbols, chained from the symbol they wait for; a
+	// fixup adds the target's address and subtracts the BASE symbol's to its
+	// constant, and is patched once neither is NONE any more
+	private int[] chains = new int[64];
+	private int[] next = new int[16], at = new int[16], lines = new int[16];
+	private int[] target = new int[16], base = new int[16], constant = new int[16];
+	private byte[] format = new byte[16];
+	// whether the field is base relative, and the PC relative offset to fall
+	// back on when BASE is out of reach
+	private boolean[] baseRelative = new boolean[16];
+	private int[] pcConstant = new int[16];
+	private int fixups;
+	// defined symbols whose chains have been resolved
+	private int resolved;
+
+	// BASE operands that were not defined yet on their BASE line
+	private int[] baseChecks = new int[16], baseCheckLines = new int[16];
+	private int baseCheckCount;
+
+	// the first error verify would report, and the first of pass 2 so far
+	private RuntimeException verifyError, encodeError;
+	private int encodeErrorLine;
+
+	OnePassAssembler(ObjectWriter out, Consumer<String> listing) {
+		this.out = out;
+		this.listing = listing;
+		Arrays.fill(chains, NONE);
+	}
+
+	Symtab symtab() {
+		return symtab;
+	}
+
+	@Override
+	public void add(SicLine parsedLine, CharSequence source, int index) {
+		// labels of earlier lines are defined by now
+		resolveDefined();
+		// add hex code + line to listing lines
+		StringBuilder sb = new StringBuilder(9 + source.length());
+		listing.accept(LineTable.appendLoc(sb, parsedLine.getMemLoc()).append('\t')
+				.append(source).toString());
+
+		// once verify fails pass 2 never runs, and only the first pass 2 error counts
+		if (verifyError != null)
+			return;
+		try {
+			Assembler.verify(Collections.singletonList(parsedLine));
+		} catch (RuntimeException e) {
+			verifyError = e;
+			return;
+		}
+		if (encodeError != null)
+			return;
+		try {
+			encode(parsedLine, index);
+		} catch (RuntimeException e) {
+			encodeError = e;
+			encodeErrorLine = index;
+		}
+	}
+
+	private void encode(SicLine line, int index) {
+		String directive = line.getInstruction().toUpperCase();
+		// nothing is kept to write D and R records from, and code is kept in
+		// line order, which ORG would break
+		if (directive.equals("EXTDEF") || directive.equals("EXTREF") || directive.equals("ORG"))
+			throw new IllegalStateException(directive + " is not supported in one pass");
+		String[] ops = line.getOperands();
+		boolean basePending = line.getBase() != null && !isDefined(line.getBase());
+		if (Pass2Batch.hasExpression(line)) {
+			// expressions have no fixups, so they are encoded once they can be
+			for (int id : Expression.parse(ops[0], symtab.names()::id).symbols())
+				basePending |= !symtab.isDefined(id);
+			if (basePending)
+				throw new IllegalStateException(
+						"Forward reference in an expression is not supported in one pass: "
+								+ ops[0]);
+		}
+		if (line.getInstruction().equalsIgnoreCase("BASE") && ops.length == 1
+				&& !isDefined(ops[0])) {
+			baseCheck(symtab.names().id(ops[0]), index);
+			return;
+		}
+		int opcode = line.getOpcodeId();
+		if (opcode >= 0 && Optab.get(opcode).getInstructionFormat() == 3 && ops.length == 1) {
+			// numbers are given as is, so only symbols wait for BASE
+			String symbol = line.getTargetSymbol();
+			if (symbol != null && (basePending
+					|| !Expression.isExpression(symbol) && !isDefined(symbol))) {
+				forward(line, index);
+				return;
+			}
+		}
+		if (basePending) {
+			// no other line uses the BASE address, and should its symbol never be
+			// defined, the BASE line is the one pass 2 fails on
+			line = line.withMemLoc(line.getMemLoc());
+			line.setBase(null);
+		}
+		slot.set(0, line);
+		if (!slot.encodeLine(0))
+			throw slot.error(0);
+		int length = slot.length(0);
+		if (length > 0) {
+			ensureCode(length);
+			slot.copyCode(0, code, codeSize);
+			codeSize += length;
+			if (slot.relocates(0))
+				relocate(entries);
+			entry(length, line.getMemLoc());
+		}
+	}
+
+	// encode a format 3 or 4 line with a zero offset and leave a fixup for it
+	private void forward(SicLine line, int index) {
+		String lineBase = line.getBase();
+		int bits = line.getModeBits() | (lineBase != null ? LineTable.B : LineTable.P);
+		int width = (bits & LineTable.E) != 0 ? 4 : 3;
+		int f = newFixup(index, width);
+		target[f] = symtab.names().id(line.getTargetSymbol());
+		// PC is always a line ahead of the current instruction
+		pcConstant[f] = -(line.getMemLoc() + width);
+		if (lineBase == null)
+			constant[f] = pcConstant[f];
+		else
+			base[f] = symtab.names().id(lineBase);
+		baseRelative[f] = lineBase != null;
+
+		int res = Pass2Batch.format34(Optab.get(line.getOpcodeId()).getOpcode() & 0xFF, bits,
+				0, width);
+		ensureCode(width);
+		for (int k = 0; k < width; k++)
+			code[codeSize + k] = (byte) (res >>> 8 * (width - 1 - k));
+		codeSize += width;
+		entry(width, line.getMemLoc());
+		chain(f);
+	}
+
+	private int newFixup(int line, int width) {
+		if (fixups == next.length) {
+			int capacity = fixups * 2;
+			next = Arrays.copyOf(next, capacity);
+			at = Arrays.copyOf(at, capacity);
+			lines = Arrays.copyOf(lines, capacity);
+			target = Arrays.copyOf(target, capacity);
+			base = Arrays.copyOf(base, capacity);
+			constant = Arrays.copyOf(constant, capacity);
+			format = Arrays.copyOf(format, capacity);
+			baseRelative = Arrays.copyOf(baseRelative, capacity);
+			pcConstant = Arrays.copyOf(pcConstant, capacity);
+		}
+		int f = fixups++;
+		at[f] = codeSize;
+		lines[f] = line;
+		format[f] = (byte) width;
+		target[f] = NONE;
+		base[f] = NONE;
+		constant[f] = 0;
+		return f;
+	}
+
+	// add in the symbols of a fixup defined by now, then chain it to a symbol it
+	// still waits for or patch it
+	private void chain(int f) {
+		if (target[f] != NONE && symtab.isDefined(target[f])) {
+			constant[f] += symtab.address(target[f]);
+			pcConstant[f] += symtab.address(target[f]);
+			target[f] = NONE;
+		}
+		if (base[f] != NONE && symtab.isDefined(base[f])) {
+			constant[f] -= symtab.address(base[f]);
+			base[f] = NONE;
+		}
+		int symbol = base[f] != NONE ? base[f] : target[f];
+		if (symbol == NONE) {
+			patch(f);
+			return;
+		}
+		if (symbol >= chains.length) {
+			int old = chains.length;
+			chains = Arrays.copyOf(chains, Math.max(symbol + 1, old * 2));
+			Arrays.fill(chains, old, chains.length, NONE);
+		}
+		next[f] = chains[symbol];
+		chains[symbol] = f;
+	}
+
+	private void patch(int f) {
+		int width = format[f];
+		if (baseRelative[f] && !SicLine.fits(constant[f], true, width)
+				&& SicLine.fits(pcConstant[f], false, width)) {
+			// out of reach of BASE but not of PC, as SicLine falls back
+			code[at[f] + 1] ^= 0x60;
+			baseRelative[f] = false;
+			constant[f] = pcConstant[f];
+		}
+		if (!SicLine.fits(constant[f], baseRelative[f], width)) {
+			// pass 2 would fail on the fixup's line, which may be long gone
+			if (encodeError == null || lines[f] < encodeErrorLine) {
+				encodeError = new IllegalStateException(
+						"Displacement out of range: " + constant[f]);
+				encodeErrorLine = lines[f];
+			}
+			return;
+		}
+		int offset = constant[f] & (width == 4 ? 0xFFFFF : 0xFFF);
+		for (int k = width - 1; k > 0; k--, offset >>>= 8)
+			code[at[f] + k] |= (byte) offset;
+	}
+
+	// resolve the chains of symbols defined since the last call
+	private void resolveDefined() {
+		while (resolved < symtab.size()) {
+			int symbol = symtab.symbol(resolved++);
+			if (symbol >= chains.length || chains[symbol] == NONE)
+				continue;
+			int f = chains[symbol];
+			chains[symbol] = NONE;
+			while (f != NONE) {
+				int following = next[f];
+				chain(f);
+				f = following;
+			}
+		}
+	}
+
+	private void baseCheck(int symbol, int line) {
+		if (baseCheckCount == baseChecks.length) {
+			baseChecks = Arrays.copyOf(baseChecks, baseCheckCount * 2);
+			baseCheckLines = Arrays.copyOf(baseCheckLines, baseCheckCount * 2);
+		}
+		baseChecks[baseCheckCount] = symbol;
+		baseCheckLines[baseCheckCount++] = line;
+	}
+
+	@Override
+	public Pass1Info finish(Symtab symtab, String programName, int startAddr,
+			int programLength) {
+		resolveDefined();
+		if (verifyError != null)
+			throw verifyError;
+		// the earliest line pass 2 would fail on
+		RuntimeException error = encodeError;
+		int errorLine = error == null ? Integer.MAX_VALUE : encodeErrorLine;
+		for (int i = 0; i < baseCheckCount; i++) {
+			if (baseCheckLines[i] < errorLine && !symtab.isDefined(baseChecks[i])) {
+				error = notFound("Label not found: ", baseChecks[i]);
+				errorLine = baseCheckLines[i];
+			}
+		}
+		for (int f = 0; f < fixups; f++) {
+			if (lines[f] >= errorLine || (base[f] == NONE && target[f] == NONE))
+				continue;
+			// the BASE symbol is looked up first
+			error = base[f] != NONE ? notFound("Label not found: ", base[f])
+					: notFound("Symbol not found: ", target[f]);
+			errorLine = lines[f];
+		}
+		if (error != null)
+			throw error;
+
+		out.header(programName, startAddr, programLength);
+		out.symbols(symtab.asMap());
+		TextRecords text = new TextRecords(out, startAddr);
+		for (int i = 0, pos = 0, r = 0; i < entries; i++) {
+			if (r < relocatedCount && relocated[r] == i) {
+				text.modify(locs[i], 6, null);
+				r++;
+			}
+			text.write(code, pos, lengths[i], locs[i]);
+			pos += lengths[i];
+		}
+		text.finish(programName);
+		out.end(startAddr);
+		return Pass1Info.of(Collections.<String>emptyList(), Collections.<SicLine>emptyList(),
+				symtab, programName, startAddr, programLength, null);
+	}
+
+	private IllegalStateException notFound(String message, int symbol) {
+		return new IllegalStateException(message + symtab.names().name(symbol));
+	}
+
+	private boolean isDefined(String symbol) {
+		int id = symtab.names().find(symbol);
+		return id != NONE && symtab.isDefined(id);
+	}
+
+	private void relocate(int entry) {
+		if (relocatedCount == relocated.length)
+			relocated = Arrays.copyOf(relocated, relocatedCount * 2);
+		relocated[relocatedCount++] = entry;
+	}
+
+	private void entry(int length, int loc) {
+		if (entries == lengths.length) {
+			lengths = Arrays.copyOf(lengths, entries * 2);
+			locs = Arrays.copyOf(locs, entries * 2);
+		}
+		locs[entries] = loc;
+		lengths[entries++] = length;
+	}
+
+	private void ensureCode(int length) {
+		if (codeSize + length > code.length)
+			code = Arrays.copyOf(code, Math.max(codeSize + length, code.length * 2));
+	}
+
+}
@@ -0,0 +1,201 @@
+package assembler;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import parse.SicLine;
+
+// Pass 1 split into chunks of lines
+// The only state carried from line to line is LOCCTR (plus the START and BASE
+// directives), and every line's size can be worked out on its own. So chunks
+// are parsed and sized concurrently against a chunk relative LOCCTR, a prefix
+// sum over the chunk sizes gives each chunk's start address, and the chunk
+// symbol tables are merged in order. Sources with control sections, program
+// blocks, external symbols, EQU or ORG are left to the sequential pass 1
+final class ParallelPass1 {
+
+	private static final int MIN_CHUNK_LINES = 1 << 12;
+
+	private ParallelPass1() {
+	}
+
+	static Pass1Info run(List<String> lines) {
+		int chunkCount = Math.min(lines.size() / MIN_CHUNK_LINES,
+				4 * ForkJoinPool.getCommonPoolParallelism());
+		if (chunkCount < 2)
+			return Assembler.pass1(lines);
+
+		Chunk[] chunks = new Chunk[chunkCount];
+		for (int c = 0; c < chunkCount; c++)
+			chunks[c] = new Chunk(lines, (int) ((long) lines.size() * c / chunkCount),
+					(int) ((long) lines.size() * (c + 1) / chunkCount));
+		IntStream.range(0, chunkCount).parallel().forEach(c -> chunks[c].scan());
+		for (Chunk chunk : chunks)
+			if (chunk.sequential)
+				return Assembler.pass1(lines);
+
+		// merge in line order, up to and including the chunk holding END
+		Symtab symtab = new Symtab(new Names());
+		String programName = "";
+		int startAddr = 0;
+		int locctr = startAddr;
+		String base = null;
+		int lineCount = 0, irregularCount = 0, expressionCount = 0, constantCount = 0;
+		int used = 0;
+		while (used < chunkCount) {
+			Chunk chunk = chunks[used++];
+			LineTable rows = chunk.table;
+			chunk.offset = locctr;
+			chunk.firstLine = lineCount;
+			chunk.firstIrregular = irregularCount;
+			chunk.firstExpression = expressionCount;
+			chunk.firstConstant = constantCount;
+			chunk.inheritedBase = base == null ? LineTable.NONE : symtab.names().id(base);
+			// the chunk's names by their id in the merged table
+			chunk.ids = new int[chunk.names.size()];
+			for (int id = 0; id < chunk.ids.length; id++)
+				chunk.ids[id] = symtab.names().id(chunk.names.name(id));
+			for (int i = 0; i < chunk.symtab.size(); i++) {
+				int id = chunk.symtab.symbol(i);
+				if (!symtab.define(chunk.ids[id], locctr + chunk.symtab.address(id)))
+					throw new IllegalStateException(
+							"Multiple occurrences of label: " + chunk.names.name(id));
+			}
+			// anything the chunk failed on comes after all of its labels
+			if (chunk.error != null)
+				throw chunk.error;
+			if (chunk.hasStart) {
+				programName = chunk.programName;
+				startAddr = chunk.startAddr;
+			}
+			if (chunk.baseChanged)
+				base = chunk.base;
+			locctr += chunk.size;
+			lineCount += rows.size();
+			irregularCount += rows.irregularLines().size();
+			expressionCount += rows.expressionCount();
+			constantCount += rows.constantCount();
+			if (chunk.ended)
+				break;
+		}
+
+		// place every line at its final address
+		LineTable table = new LineTable(symtab.names(), lineCount);
+		table.extend(lineCount, irregularCount, expressionCount, constantCount);
+		IntStream.range(0, used).parallel().forEach(c -> chunks[c].place(table));
+
+		// calculate the program length using last LOCCTR value
+		int programLength = locctr - startAddr;
+		return Pass1Info.of(table.listing(lines::get), table, symtab, programName, startAddr,
+				programLength, null);
+	}
+
+	private static final class Chunk {
+
+		private final List<String> lines;
+		private final int from, to;
+
+		// parsed lines and labels, with locations relative to the start of the
+		// chunk and names numbered within the chunk
+		private final Names names = new Names();
+		private final Symtab symtab = new Symtab(names);
+		private LineTable table;
+		private int size;
+
+		private boolean ended, hasStart, baseChanged;
+		// the chunk holds a line only the sequential pass 1 handles
+		private boolean sequential;
+		private String programName, base;
+		private int startAddr;
+		// lines before this index use the BASE in effect when the chunk starts
+		private int inheritUntil;
+		// stops the scan, reported after the labels that precede it
+		private RuntimeException error;
+
+		// filled in by the merge
+		private int offset, firstLine, firstIrregular, firstExpression, firstConstant,
+				inheritedBase;
+		private int[] ids;
+
+		Chunk(List<String> lines, int from, int to) {
+			this.lines = lines;
+			this.from = from;
+			this.to = to;
+		}
+
+		void scan() {
+			table = new LineTable(names, to - from);
+			int locctr = 0;
+			lineLoop: for (int i = from; i < to; i++) {
+				String line = lines.get(i);
+				// skip empty lines, whitespace lines and comment lines
+				if (SicLine.isSkippable(line))
+					continue;
+				try {
+					SicLine parsedLine = SicLine.parseLine(line, locctr);
+					switch (parsedLine.getInstruction().toUpperCase()) {
+					case "CSECT":
+					case "USE":
+					case "EXTDEF":
+					case "EXTREF":
+					case "EQU":
+					case "ORG":
+						sequential = true;
+						return;
+					default:
+						break;
+					}
+					if (baseChanged)
+						parsedLine.setBase(base);
+					table.add(parsedLine, i);
+					String label = parsedLine.getLabel();
+					String instruction = parsedLine.getInstruction();
+
+					if (label != null && !label.isEmpty() && !instruction.equals("START")
+							&& !symtab.define(label, locctr))
+						throw new IllegalStateException("Multiple occurrences of label: " + label);
+
+					String directive = instruction.toUpperCase();
+					switch (directive) {
+					case "BASE":
+					case "NOBASE":
+						if (!baseChanged)
+							inheritUntil = table.size();
+						baseChanged = true;
+						String[] baseOps = parsedLine.getOperands();
+						base = directive.equals("BASE") && baseOps.length == 1 ? baseOps[0]
+								: null;
+						break;
+					case "START":
+						startAddr = Integer.parseInt(parsedLine.getOperands()[0]);
+						programName = parsedLine.getLabel();
+						hasStart = true;
+						break;
+					case "END":
+						ended = true;
+						break lineLoop;
+					default:
+						locctr += Assembler.lineSize(directive, parsedLine);
+						break;
+					}
+				} catch (RuntimeException e) {
+					error = e;
+					size = locctr;
+					return;
+				}
+			}
+			size = locctr;
+			if (!baseChanged)
+				inheritUntil = table.size();
+		}
+
+		void place(LineTable merged) {
+			merged.place(table, firstLine, firstIrregular, firstExpression, firstConstant, ids,
+					offset, inheritedBase, inheritUntil);
+			table = null;
+		}
+
+	}
+
+}
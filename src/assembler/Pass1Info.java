@@ -1,42 +1,104 @@
 package assembler;
 
-import java.util.List;
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.Map;
 
 import parse.SicLine;
 
-public class Pass1Info {
+public class Pass1Info implements Closeable {
 
-	private final List<String> listingLines;
-	private final List<SicLine> parsedLines;
+	private final Iterable<String> listingLines;
+	private final Iterable<SicLine> parsedLines;
 	private final Map<String, Integer> symtab;
 	private final String programName;
 	private final int startAddr, programLength;
+	// backing storage of streamed results, null when held in memory
+	private final Closeable storage;
+	// the parsed lines as columns, null when they are only held as SicLines
+	private final LineTable table;
+	// symbols by id, null when the symtab is only a map
+	private final Symtab symbols;
+	// made from the table when first asked for
+	private CrossReference crossReference;
 
-	private Pass1Info(List<String> listingLines, List<SicLine> parsedLines,
-			Map<String, Integer> symtab, String programName, int startAddr, int programLength) {
+	private Pass1Info(Iterable<String> listingLines, Iterable<SicLine> parsedLines,
+			LineTable table, Map<String, Integer> symtab, Symtab symbols, String programName,
+			int startAddr, int programLength, Closeable storage) {
 		this.listingLines = listingLines;
 		this.parsedLines = parsedLines;
+		this.table = table;
 		this.symtab = symtab;
+		this.symbols = symbols;
 		this.programName = programName;
 		this.startAddr = startAddr;
 		this.programLength = programLength;
+		this.storage = storage;
 	}
 
-	public static Pass1Info of(List<String> listingLines, List<SicLine> parsedLines,
+	public static Pass1Info of(Iterable<String> listingLines, Iterable<SicLine> parsedLines,
 			Map<String, Integer> symtab, String programName, int startAddr, int programLength) {
-		return new Pass1Info(listingLines, parsedLines, symtab, programName, startAddr,
-				programLength);
+		return new Pass1Info(listingLines, parsedLines, null, symtab, null, programName,
+				startAddr, programLength, null);
+	}
+
+	static Pass1Info of(Iterable<String> listingLines, Iterable<SicLine> parsedLines,
+			Symtab symbols, String programName, int startAddr, int programLength,
+			Closeable storage) {
+		return new Pass1Info(listingLines, parsedLines, null, symbols.asMap(), symbols,
+				programName, startAddr, programLength, storage);
+	}
+
+	// parsed lines are made from the table when they are iterated; table and
+	// symbols share their names
+	static Pass1Info of(Iterable<String> listingLines, LineTable table, Symtab symbols,
+			String programName, int startAddr, int programLength, Closeable storage) {
+		return new Pass1Info(listingLines, table, table, symbols.asMap(), symbols, programName,
+				startAddr, programLength, storage);
 	}
 
-	public List<String> getListingLines() {
+	// the same results with another program length, sharing the storage
+	Pass1Info withProgramLength(int programLength) {
+		return new Pass1Info(listingLines, parsedLines, table, symtab, symbols, programName,
+				startAddr, programLength, storage);
+	}
+
+	public Iterable<String> getListingLines() {
 		return listingLines;
 	}
 
-	public List<SicLine> getParsedLines() {
+	public Iterable<SicLine> getParsedLines() {
 		return parsedLines;
 	}
 
+	// number of parsed lines, without making them
+	public int getParsedLineCount() {
+		if (table != null)
+			return table.size();
+		int count = 0;
+		for (SicLine line : parsedLines)
+			count++;
+		return count;
+	}
+
+	LineTable getTable() {
+		return table;
+	}
+
+	Symtab getSymbols() {
+		return symbols;
+	}
+
+	// where every symbol is defined and used, see CrossReference
+	public synchronized CrossReference getCrossReference() {
+		if (table == null)
+			throw new IllegalStateException("Cross reference needs the parsed lines in memory");
+		if (crossReference == null)
+			crossReference = CrossReference.of(programName, table, symbols);
+		return crossReference;
+	}
+
+	// read-only unless this was made from a map
 	public Map<String, Integer> getSymtab() {
 		return symtab;
 	}
@@ -53,4 +115,14 @@ public class Pass1Info {
 		return programLength;
 	}
 
+	public boolean isStreamed() {
+		return storage != null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (storage != null)
+			storage.close();
+	}
+
 }
@@ -0,0 +1,20 @@
+package assembler;
+
+import parse.SicLine;
+
+// Receives each line as pass 1 parses it
+interface Pass1Output {
+
+	// source is only valid during the call, index is its position among all
+	// source lines, skipped ones included
+	void add(SicLine parsedLine, CharSequence source, int index);
+
+	// move the n-th line added by shift once pass 1 has laid out the program
+	// blocks, see ProgramBlocks; outputs that cannot move their lines reject USE
+	default void move(int line, int shift) {
+		throw new IllegalStateException("USE needs the parsed lines in memory");
+	}
+
+	Pass1Info finish(Symtab symtab, String programName, int startAddr, int programLength);
+
+}
@@ -0,0 +1,535 @@
+package assembler;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import instruction.Hex;
+import instruction.InstructionInfo;
+import instruction.Optab;
+import parse.SicLine;
+
+// A run of consecutive lines whose object code is encoded in parallel
+// Each line only depends on the frozen symtab, its own location and the BASE
+// state pass 1 recorded for it, so the lines can be encoded in any order and
+// the results are stitched into text records afterwards. Lines come either as
+// SicLines or as rows of a LineTable, whose symbols are resolved by id. A
+// relative address the program holds directly, in WORD or in format 4, is
+// relocated by a modification record
+final class Pass2Batch {
+
+	static final int END = -1;
+	// the modified symbol of a relative expression, which moves with the section
+	private static final int RELATIVE = -2;
+
+	private static final int BATCH_SIZE = 1 << 14;
+	// ranges smaller than this are encoded without forking
+	private static final int SEQUENTIAL_THRESHOLD = 1 << 10;
+	// every slot can hold a format 4 instruction
+	private static final int SLOT = 4;
+
+	private final Map<String, Integer> symtab;
+	// exactly one of lines and table is set
+	private final SicLine[] lines;
+	private final LineTable table;
+	// symbols by the ids of the table's names, and the row of slot 0; SicLines
+	// only need them for expressions
+	private final Symtab symbols;
+	private int first;
+	private final byte[] code;
+	private final int[] length;
+	// the bytes of BYTE constants, which need not fit a slot, or null
+	private final byte[][] constants;
+	// the LOCCTR of each slot, which its text record is placed by
+	private final int[] loc;
+	private final RuntimeException[] errors;
+	// the symbol relocating a WORD or format 4 address, NONE for none
+	private final int[] modified;
+	private int size;
+	private boolean ended;
+
+	Pass2Batch(Map<String, Integer> symtab) {
+		this(symtab, BATCH_SIZE);
+	}
+
+	Pass2Batch(Map<String, Integer> symtab, int capacity) {
+		this(symtab, capacity, null, null);
+	}
+
+	// encodes SicLines, evaluating their expressions against symbols
+	Pass2Batch(Symtab symbols) {
+		this(symbols, BATCH_SIZE);
+	}
+
+	Pass2Batch(Symtab symbols, int capacity) {
+		this(symbols.asMap(), capacity, null, symbols);
+	}
+
+	// encodes the rows of table, see fill()
+	Pass2Batch(LineTable table, Symtab symbols) {
+		this(symbols.asMap(), BATCH_SIZE, table, symbols);
+	}
+
+	private Pass2Batch(Map<String, Integer> symtab, int capacity, LineTable table,
+			Symtab symbols) {
+		this.symtab = symtab;
+		this.table = table;
+		this.symbols = symbols;
+		lines = table == null ? new SicLine[capacity] : null;
+		code = new byte[capacity * SLOT];
+		length = new int[capacity];
+		constants = new byte[capacity][];
+		loc = new int[capacity];
+		errors = new RuntimeException[capacity];
+		modified = new int[capacity];
+		// slots of lines without code may never be encoded
+		Arrays.fill(modified, LineTable.NONE);
+	}
+
+	// read the next batch of lines, returning how many were read
+	int fill(Iterator<SicLine> it) {
+		size = 0;
+		while (size < lines.length && it.hasNext())
+			lines[size++] = it.next();
+		for (int i = size; i < lines.length && lines[i] != null; i++)
+			lines[i] = null;
+		return size;
+	}
+
+	// take the table rows after the previous batch, returning how many were taken
+	int fill() {
+		first += size;
+		size = Math.min(length.length, table.size() - first);
+		return size;
+	}
+
+	// place a line in slot i, growing the batch to include it; empty slots
+	// (null lines) produce no object code. A line moved to another LOCCTR keeps
+	// its code until it is encoded again
+	void set(int i, SicLine line) {
+		lines[i] = line;
+		if (line != null)
+			loc[i] = line.getMemLoc();
+		size = Math.max(size, i + 1);
+	}
+
+	SicLine line(int i) {
+		return lines[i];
+	}
+
+	// copy count encoded slots of other starting at from into this batch at to
+	void copy(Pass2Batch other, int from, int to, int count) {
+		System.arraycopy(other.lines, from, lines, to, count);
+		System.arraycopy(other.code, from * SLOT, code, to * SLOT, count * SLOT);
+		System.arraycopy(other.length, from, length, to, count);
+		System.arraycopy(other.constants, from, constants, to, count);
+		System.arraycopy(other.loc, from, loc, to, count);
+		System.arraycopy(other.errors, from, errors, to, count);
+		System.arraycopy(other.modified, from, modified, to, count);
+		size = Math.max(size, to + count);
+	}
+
+	void encode() {
+		if (size < SEQUENTIAL_THRESHOLD)
+			encode(0, size);
+		else
+			ForkJoinPool.commonPool().invoke(new EncodeTask(0, size));
+	}
+
+	// re-encode a single slot, returning false if it failed
+	boolean encodeLine(int i) {
+		encode(i, i + 1);
+		return errors[i] == null;
+	}
+
+	int size() {
+		return size;
+	}
+
+	// object code length of an encoded slot, or END
+	int length(int i) {
+		return length[i];
+	}
+
+	// whether a modification record relocates the code of slot i
+	boolean relocates(int i) {
+		return modified[i] != LineTable.NONE;
+	}
+
+	// the error encoding slot i failed with, or null
+	RuntimeException error(int i) {
+		return errors[i];
+	}
+
+	// copy the object code of slot i to dst at off
+	void copyCode(int i, byte[] dst, int off) {
+		if (constants[i] != null)
+			System.arraycopy(constants[i], 0, dst, off, length[i]);
+		else
+			System.arraycopy(code, i * SLOT, dst, off, length[i]);
+	}
+
+	// the object code of slot i as hex, nothing for lines without code
+	StringBuilder appendCode(int i, StringBuilder sb) {
+		if (length[i] <= 0)
+			return sb;
+		if (constants[i] != null)
+			return Hex.append(sb, constants[i], 0, length[i]);
+		return Hex.append(sb, code, i * SLOT, length[i]);
+	}
+
+	// true once the END line has been written
+	boolean ended() {
+		return ended;
+	}
+
+	// write the encoded lines into text records in order, each at its own
+	// LOCCTR; stops at END
+	void write(TextRecords text) {
+		for (int i = 0; i < size; i++) {
+			checkError(i);
+			if (length[i] == END) {
+				ended = true;
+				break;
+			}
+			if (length[i] == 0)
+				continue;
+			if (modified[i] != LineTable.NONE && length[i] == 3)
+				// all of a WORD is relocated
+				text.modify(loc[i], 6, null);
+			else if (modified[i] != LineTable.NONE)
+				// the address field starts in the second byte
+				text.modify(loc[i] + 1, 5,
+						modified[i] != RELATIVE && symbols.isExternal(modified[i])
+								? table.name(modified[i]) : null);
+			if (constants[i] != null)
+				text.write(constants[i], 0, length[i], loc[i]);
+			else
+				text.write(code, i * SLOT, length[i], loc[i]);
+		}
+	}
+
+	// errors are rethrown in line order so the first failing line is reported,
+	// just as if the lines had been encoded one at a time
+	private void checkError(int i) {
+		if (errors[i] != null)
+			throw errors[i];
+	}
+
+	private void encode(int from, int to) {
+		String base = null;
+		int baseAddr = 0;
+		for (int i = from; i < to; i++) {
+			length[i] = 0;
+			constants[i] = null;
+			errors[i] = null;
+			modified[i] = LineTable.NONE;
+			if (table != null) {
+				loc[i] = table.loc(first + i);
+				try {
+					encodeRow(i, first + i);
+				} catch (RuntimeException e) {
+					errors[i] = e;
+				}
+				continue;
+			}
+			SicLine line = lines[i];
+			if (line == null)
+				continue;
+			loc[i] = line.getMemLoc();
+			try {
+				// lines share the String pass 1 recorded until the next BASE
+				if (line.getBase() != base) {
+					base = line.getBase();
+					baseAddr = base == null ? 0 : lookup(base);
+				}
+				encode(i, line, base != null, baseAddr);
+			} catch (RuntimeException e) {
+				errors[i] = e;
+			}
+		}
+	}
+
+	private void encode(int i, SicLine line, boolean base, int baseAddr) {
+		String[] ops = line.getOperands();
+		String op = ops.length > 0 ? ops[0] : null;
+		int memloc = line.getMemLoc();
+		if (directive(i, line.getInstruction().toUpperCase(), ops.length, op, memloc))
+			return;
+		if (op != null && Expression.isExpression(op))
+			length[i] = line.encode(text -> Expression.value(evaluate(text, memloc)), base,
+					baseAddr, code, i * SLOT);
+		else
+			length[i] = line.encode(symtab, base, baseAddr, code, i * SLOT);
+	}
+
+	// the value of a SicLine's operand expression on a line at memloc; names
+	// are only looked up, as other slots are encoded at the same time
+	private long evaluate(String op, int memloc) {
+		if (symbols == null)
+			throw new IllegalStateException("Expression needs the symbol table: " + op);
+		Names names = symbols.names();
+		Expression expression = Expression.parse(op, name -> {
+			int id = names.find(name);
+			if (id == LineTable.NONE)
+				throw new IllegalStateException("Symbol not found: " + name);
+			return id;
+		});
+		return expression.evaluate(memloc, symbols);
+	}
+
+	private void encodeRow(int i, int row) {
+		int opcode = table.opcode(row);
+		if (opcode == LineTable.IRREGULAR) {
+			SicLine line = table.irregular(row);
+			String base = line.getBase();
+			encode(i, line, base != null, base == null ? 0 : lookup(base));
+		} else if (opcode < 0) {
+			if ((table.modes(row) & LineTable.EXPRESSION) != 0) {
+				// only WORD rows have one
+				word(i, table.expression(table.operand(row)).evaluate(table.loc(row), symbols));
+			} else {
+				String op = table.directiveOperand(row);
+				directive(i, LineTable.directiveName(opcode), op == null ? 0 : 1, op,
+						table.loc(row));
+			}
+		} else {
+			instruction(i, row, Optab.get(opcode));
+		}
+	}
+
+	// encode a directive, returning false if there is no such directive
+	private boolean directive(int i, String directive, int opCount, String op, int memloc) {
+		switch (directive) {
+		case "START":
+			break;
+		case "END":
+			length[i] = END;
+			break;
+		case "BASE":
+			if (opCount != 1)
+				throw new IllegalStateException(
+						"Invalid number of operands on line " + memloc + ", expected 1");
+			lookup(op);
+			break;
+		case "NOBASE":
+		case "CSECT":
+		case "EXTDEF":
+		case "EXTREF":
+		case "EQU":
+		case "USE":
+		case "ORG":
+			// the code after a USE, ORG or reservation is placed by its own
+			// LOCCTR, so its text record starts there
+			break;
+		case "RESW":
+			if (!op.matches("\\d+"))
+				throw new IllegalStateException("Expected number after RESW");
+			break;
+		case "RESB":
+			if (!op.matches("\\d+"))
+				throw new IllegalStateException("Expected number after RESB");
+			break;
+		case "WORD":
+			if (op == null || Expression.isNumber(op))
+				word(i, Integer.parseInt(op) & 0xFFFFFFFFL);
+			else
+				word(i, evaluate(op, memloc));
+			break;
+		case "BYTE":
+			constants[i] = byteConstant(op);
+			length[i] = constants[i].length;
+			break;
+		default:
+			return false;
+		}
+		return true;
+	}
+
+	// whether the operand of a line is evaluated as an expression: that of a
+	// format 3 or 4 instruction with more than a symbol or a number, or anything
+	// but a number in WORD
+	static boolean hasExpression(SicLine line) {
+		String[] ops = line.getOperands();
+		if (ops.length != 1)
+			return false;
+		if (line.getInstruction().equalsIgnoreCase("WORD"))
+			return !Expression.isNumber(ops[0]);
+		int opcode = line.getOpcodeId();
+		return opcode >= 0 && Optab.get(opcode).getInstructionFormat() == 3
+				&& Expression.isExpression(ops[0]);
+	}
+
+	// the bytes pass 1 counts for a BYTE operand: one a character of C'...',
+	// one every two hex digits of X'...', and none for anything else, which
+	// byteConstant rejects
+	static int byteLength(String op) {
+		if (!isByteConstant(op))
+			return 0;
+		int chars = op.length() - 3;
+		return op.charAt(0) == 'C' ? chars : (chars + 1) / 2;
+	}
+
+	static byte[] byteConstant(String op) {
+		if (!isByteConstant(op))
+			throw new IllegalStateException("Invalid BYTE constant: " + op);
+		String value = op.substring(2, op.length() - 1);
+		if (op.charAt(0) == 'C')
+			return value.getBytes(StandardCharsets.ISO_8859_1);
+		if (value.length() % 2 != 0)
+			throw new IllegalStateException("Odd number of hex digits in BYTE: " + op);
+		byte[] bytes = new byte[value.length() / 2];
+		for (int k = 0; k < bytes.length; k++) {
+			int high = Character.digit(value.charAt(2 * k), 16);
+			int low = Character.digit(value.charAt(2 * k + 1), 16);
+			if (high < 0 || low < 0)
+				throw new IllegalStateException("Invalid hex digits in BYTE: " + op);
+			bytes[k] = (byte) (high << 4 | low);
+		}
+		return bytes;
+	}
+
+	private static boolean isByteConstant(String op) {
+		return op != null && op.length() > 3 && (op.charAt(0) == 'C' || op.charAt(0) == 'X')
+				&& op.charAt(1) == '\'' && op.charAt(op.length() - 1) == '\'';
+	}
+
+	// a WORD holding the result of an expression
+	private void word(int i, long value) {
+		int val = Expression.value(value);
+		code[i * SLOT] = (byte) (val >> 16);
+		code[i * SLOT + 1] = (byte) (val >> 8);
+		code[i * SLOT + 2] = (byte) val;
+		length[i] = 3;
+		if (Expression.isRelative(value))
+			modified[i] = RELATIVE;
+	}
+
+	// the same code SicLine.encode gives the line of an instruction row
+	private void instruction(int i, int row, InstructionInfo info) {
+		int format = info.getInstructionFormat();
+		int res = info.getOpcode() & 0xFF;
+		int value = table.operand(row);
+		if (format == 2) {
+			// both register numbers are packed in the operand
+			res = res << 8 | value;
+		} else if (format == 3) {
+			int bits = table.modes(row);
+			boolean symbol = (bits & (LineTable.VALUE | LineTable.EXPRESSION)) == 0;
+			if (symbol && symbols.isExternal(value)) {
+				external(i, res, bits, value);
+				return;
+			}
+			int base = table.base(row);
+			// numbers never move, so only symbols are relative
+			if (!table.isRelaxed() && (bits & LineTable.VALUE) == 0)
+				bits |= base == LineTable.NONE ? LineTable.P : LineTable.B;
+			int baseAddr = (bits & LineTable.B) == 0 ? 0 : address(base, "Label not found: ");
+			if ((bits & LineTable.E) != 0)
+				format = 4;
+			// the address, and whether it moves with the section
+			int addr;
+			boolean relative;
+			if (symbol) {
+				addr = address(value, "Symbol not found: ");
+				relative = !symbols.isAbsolute(value);
+			} else if ((bits & LineTable.EXPRESSION) != 0) {
+				long result = table.expression(value).evaluate(table.loc(row), symbols);
+				addr = Expression.value(result);
+				relative = Expression.isRelative(result);
+			} else {
+				addr = value;
+				relative = false;
+			}
+			int offset;
+			if ((bits & (LineTable.P | LineTable.B)) != 0) {
+				// PC is always a line ahead of the current instruction
+				int pcOffset = addr - (table.loc(row) + format);
+				boolean baseRelative = (bits & LineTable.B) != 0;
+				offset = baseRelative ? addr - baseAddr : pcOffset;
+				if (baseRelative && !SicLine.fits(offset, true, format)
+						&& SicLine.fits(pcOffset, false, format)) {
+					// out of reach of BASE but not of PC, as SicLine falls back
+					bits ^= LineTable.B | LineTable.P;
+					baseRelative = false;
+					offset = pcOffset;
+				}
+				if (!SicLine.fits(offset, baseRelative, format))
+					throw new IllegalStateException("Displacement out of range: " + offset);
+			} else if (addr >= 0 && addr < 1 << (format == 4 ? 20 : 12)) {
+				// only numbers and relaxed rows address directly, and relative
+				// format 4 addresses move with the section
+				offset = addr;
+				if (format == 4 && relative)
+					modified[i] = symbol ? value : RELATIVE;
+			} else
+				throw new IllegalStateException("Address out of range: " + addr);
+			res = format34(res, bits, offset, format);
+		}
+		for (int k = 0; k < format; k++)
+			code[i * SLOT + k] = (byte) (res >>> 8 * (format - 1 - k));
+		length[i] = format;
+	}
+
+	// a symbol of another control section, whose address the linker adds to a
+	// zero format 4 address field
+	private void external(int i, int opcode, int bits, int value) {
+		if ((bits & LineTable.E) == 0)
+			throw new IllegalStateException(
+					"External reference needs format 4: " + table.name(value));
+		int res = format34(opcode, bits & ~(LineTable.B | LineTable.P), 0, 4);
+		for (int k = 0; k < 4; k++)
+			code[i * SLOT + k] = (byte) (res >>> 8 * (3 - k));
+		length[i] = 4;
+		modified[i] = value;
+	}
+
+	// format 3 or 4 code from the opcode byte, the nixbpe bits and the offset,
+	// which is masked to the width of the format
+	static int format34(int opcode, int bits, int offset, int format) {
+		int offsetBits = format == 4 ? 20 : 12;
+		// n and i share a byte with the opcode, xbpe lead the next one
+		int res = (opcode | (bits >> 4 & 0b11)) << 4 | (bits & 0xF);
+		return res << offsetBits | (offset & ((1 << offsetBits) - 1));
+	}
+
+	private int address(int id, String message) {
+		if (!symbols.isDefined(id))
+			throw new IllegalStateException(message + table.name(id));
+		return symbols.address(id);
+	}
+
+	private int lookup(String label) {
+		Integer addr = symtab.get(label);
+		if (addr == null)
+			throw new IllegalStateException("Label not found: " + label);
+		return addr.intValue();
+	}
+
+	private final class EncodeTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int from, to;
+
+		EncodeTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= SEQUENTIAL_THRESHOLD) {
+				encode(from, to);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new EncodeTask(from, mid), new EncodeTask(mid, to));
+		}
+
+	}
+
+}
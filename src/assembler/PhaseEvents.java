@@ -0,0 +1,106 @@
+package assembler;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+// "assembler.Phase" JFR events, one per assembly phase
+// The project targets Java 8, where jdk.jfr cannot be compiled against, so the
+// event type is built at runtime with jdk.jfr.EventFactory. Without JFR (or on
+// a JVM older than 11) begin returns null and nothing is recorded
+final class PhaseEvents {
+
+	private static final String[] FIELDS = { "phase", "lines", "allocatedBytes", "symbols" };
+	private static final Class<?>[] TYPES = { String.class, long.class, long.class, int.class };
+
+	private static final Object FACTORY;
+	private static final Method NEW_EVENT, BEGIN, END, SHOULD_COMMIT, SET, COMMIT;
+
+	static {
+		Object factory = null;
+		Method newEvent = null, begin = null, end = null, shouldCommit = null, set = null,
+				commit = null;
+		try {
+			Class<?> event = Class.forName("jdk.jfr.Event");
+			Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+			Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+			Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+			Constructor<?> annotation = annotationElement.getConstructor(Class.class,
+					Object.class);
+			Constructor<?> value = valueDescriptor.getConstructor(Class.class, String.class);
+
+			List<Object> annotations = new ArrayList<>();
+			annotations.add(annotation.newInstance(annotationType("jdk.jfr.Name"),
+					"assembler.Phase"));
+			annotations.add(annotation.newInstance(annotationType("jdk.jfr.Label"),
+					"Assembly Phase"));
+			annotations.add(annotation.newInstance(annotationType("jdk.jfr.Category"),
+					new String[] { "Assembler" }));
+			List<Object> fields = new ArrayList<>();
+			for (int i = 0; i < FIELDS.length; i++)
+				fields.add(value.newInstance(TYPES[i], FIELDS[i]));
+
+			factory = eventFactory.getMethod("create", List.class, List.class).invoke(null,
+					annotations, fields);
+			newEvent = eventFactory.getMethod("newEvent");
+			begin = event.getMethod("begin");
+			end = event.getMethod("end");
+			shouldCommit = event.getMethod("shouldCommit");
+			set = event.getMethod("set", int.class, Object.class);
+			commit = event.getMethod("commit");
+		} catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+			// no JFR on this JVM
+			factory = null;
+		}
+		FACTORY = factory;
+		NEW_EVENT = newEvent;
+		BEGIN = begin;
+		END = end;
+		SHOULD_COMMIT = shouldCommit;
+		SET = set;
+		COMMIT = commit;
+	}
+
+	private PhaseEvents() {
+	}
+
+	// start timing an event, or null if JFR is not available
+	static Object begin() {
+		if (FACTORY == null)
+			return null;
+		try {
+			Object event = NEW_EVENT.invoke(FACTORY);
+			BEGIN.invoke(event);
+			return event;
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	static void commit(Object event, String phase, long lines, long allocatedBytes,
+			int symbols) {
+		if (event == null)
+			return;
+		try {
+			END.invoke(event);
+			// only false when no recording is interested in the event
+			if (!(Boolean) SHOULD_COMMIT.invoke(event))
+				return;
+			Object[] values = { phase, lines, allocatedBytes, symbols };
+			for (int i = 0; i < values.length; i++)
+				SET.invoke(event, i, values[i]);
+			COMMIT.invoke(event);
+		} catch (ReflectiveOperationException e) {
+			// events are best effort
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Class<? extends Annotation> annotationType(String name)
+			throws ClassNotFoundException {
+		return (Class<? extends Annotation>) Class.forName(name);
+	}
+
+}
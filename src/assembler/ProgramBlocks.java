@@ -0,0 +1,77 @@
+package assembler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Program blocks named by USE, each with a LOCCTR of its own
+// While pass 1 reads the source every line and label gets a location within
+// its block. Once every block's length is known the blocks are laid out one
+// after another, in the order they were first used, and lines and labels are
+// moved by the start of their block. Lines before the first USE are in the
+// unnamed default block, which comes first
+final class ProgramBlocks {
+
+	private final List<String> names = new ArrayList<>();
+	private int[] locctr = new int[4];
+	private int current;
+	// block of each line added and of each symbol defined so far
+	private int[] lineBlocks, symbolBlocks;
+	private int lines, symbols;
+
+	// everything before the first USE is in the default block
+	ProgramBlocks(int lines, int symbols) {
+		names.add("");
+		lineBlocks = new int[Math.max(16, lines * 2)];
+		symbolBlocks = new int[Math.max(16, symbols * 2)];
+		this.lines = lines;
+		this.symbols = symbols;
+	}
+
+	// switch to a block, returning where its LOCCTR stands
+	int use(String name, int locctr) {
+		this.locctr[current] = locctr;
+		current = names.indexOf(name);
+		if (current < 0) {
+			current = names.size();
+			names.add(name);
+			if (current == this.locctr.length)
+				this.locctr = Arrays.copyOf(this.locctr, current * 2);
+		}
+		return this.locctr[current];
+	}
+
+	// the next line added is in the current block
+	void line() {
+		if (lines == lineBlocks.length)
+			lineBlocks = Arrays.copyOf(lineBlocks, lines * 2);
+		lineBlocks[lines++] = current;
+	}
+
+	// so is the next symbol defined
+	void symbol() {
+		if (symbols == symbolBlocks.length)
+			symbolBlocks = Arrays.copyOf(symbolBlocks, symbols * 2);
+		symbolBlocks[symbols++] = current;
+	}
+
+	// lay the blocks out, moving the lines of output and the symbols of symtab,
+	// and return the LOCCTR after the last block
+	int place(int locctr, Symtab symtab, Pass1Output output) {
+		this.locctr[current] = locctr;
+		int[] start = new int[names.size()];
+		for (int b = 1; b < start.length; b++)
+			start[b] = start[b - 1] + this.locctr[b - 1];
+		for (int i = 0; i < lines; i++)
+			if (start[lineBlocks[i]] != 0)
+				output.move(i, start[lineBlocks[i]]);
+		for (int k = 0; k < symbols; k++) {
+			int id = symtab.symbol(k);
+			symtab.move(id, symtab.address(id) + start[symbolBlocks[k]]);
+		}
+		// EQUs in blocks are only evaluated after this, from * in its place
+		symtab.equates().move(line -> start[lineBlocks[line]]);
+		return start[start.length - 1] + this.locctr[start.length - 1];
+	}
+
+}
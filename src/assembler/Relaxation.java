@@ -0,0 +1,189 @@
+package assembler;
+
+import java.util.Arrays;
+
+import instruction.Optab;
+
+// Addressing modes chosen per instruction rather than by the BASE state
+// A format 3 operand is PC relative when its displacement fits in -2048..2047,
+// base relative when it fits in 0..4095 from the BASE symbol in effect, and
+// otherwise the instruction is promoted to format 4 with an absolute address.
+// Immediate values are used directly, in format 4 once past 4095. A row with
+// an explicit + starts out in format 3 like the rest, so it shrinks unless it
+// needs format 4 or its operand cannot be evaluated. Every promotion moves the
+// lines after it, so rows are checked again until no more are promoted; rows
+// are never demoted, so this ends. Irregular rows keep their
+// size and are encoded as before. Symbols of other control sections are always
+// reached in format 4, and absolute symbols and expressions are used directly
+// like immediate values. Program blocks put rows out of address order, so the
+// bytes added before a row are counted in address order. Labels move by the
+// bytes added before them, and EQU symbols are evaluated again from there
+final class Relaxation {
+
+	private static final int NONE = LineTable.NONE;
+	private static final int PC_MIN = -2048, PC_MAX = 2047, DISP_MAX = 0xFFF;
+
+	private Relaxation() {
+	}
+
+	static Pass1Info run(Pass1Info pass1) {
+		LineTable table = pass1.getTable();
+		Symtab symtab = pass1.getSymbols();
+		if (table == null)
+			throw new IllegalStateException("Relaxation needs the parsed lines in memory");
+		int rows = table.size();
+		int[] order = addressOrder(table);
+		int[] defined = definingRows(table, symtab);
+		// bytes added by promotions, less those taken back from explicit + rows,
+		// before each row, the last entry being the total
+		int[] shift = new int[rows + 1];
+		// where the symbols are with the promotions so far, by id
+		int[] target = new int[symtab.names().size()];
+		boolean[] promoted = new boolean[rows];
+		// rows pass 1 gave format 4 for an explicit +, one byte taken back
+		boolean[] explicit = new boolean[rows];
+		for (int r = 0; r < rows; r++)
+			explicit[r] = isCandidate(table, r) && (table.modes(r) & LineTable.E) != 0;
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			int total = 0;
+			for (int r : order) {
+				shift[r] = total;
+				total += (promoted[r] ? 1 : 0) - (explicit[r] ? 1 : 0);
+			}
+			shift[rows] = total;
+			targets(symtab, defined, shift, target);
+			for (int r = 0; r < rows; r++) {
+				if (promoted[r] || !isCandidate(table, r))
+					continue;
+				int mode = mode(table, symtab, target, shift, r);
+				if (mode == LineTable.E || explicit[r] && mode == NONE) {
+					promoted[r] = true;
+					changed = true;
+				}
+			}
+		}
+
+		// shift is up to date with the final promotions
+		for (int r = 0; r < rows; r++) {
+			if (!isCandidate(table, r))
+				continue;
+			int mode = promoted[r] ? LineTable.E : mode(table, symtab, target, shift, r);
+			// rows with undefined symbols are left for pass 2 to report
+			if (mode != NONE)
+				table.setModes(r, table.modes(r) & ~LineTable.E | mode);
+		}
+		for (int r = 0; r < rows; r++)
+			if (shift[r] != 0)
+				table.setLoc(r, table.loc(r) + shift[r]);
+		for (int k = 0; k < symtab.size(); k++) {
+			int id = symtab.symbol(k);
+			symtab.move(id, target[id]);
+		}
+		symtab.equates().move(row -> shift[row]);
+		table.markRelaxed();
+		return pass1.withProgramLength(pass1.getProgramLength() + shift[rows]);
+	}
+
+	// rows by location, then by row
+	private static int[] addressOrder(LineTable table) {
+		int rows = table.size();
+		int[] order = new int[rows];
+		boolean sorted = true;
+		for (int r = 0; r < rows; r++) {
+			order[r] = r;
+			sorted &= r == 0 || table.loc(r) >= table.loc(r - 1);
+		}
+		if (sorted)
+			return order;
+		long[] keys = new long[rows];
+		for (int r = 0; r < rows; r++)
+			keys[r] = (long) table.loc(r) << 32 | r;
+		Arrays.sort(keys);
+		for (int k = 0; k < rows; k++)
+			order[k] = (int) keys[k];
+		return order;
+	}
+
+	// format 3 instruction rows, with or without an explicit +
+	private static boolean isCandidate(LineTable table, int row) {
+		int code = table.opcode(row);
+		return code >= 0 && Optab.get(code).getInstructionFormat() == 3;
+	}
+
+	// the addresses of the symbols once the rows move by shift: labels move
+	// with their rows, and EQU symbols are evaluated from the moved symbols
+	private static void targets(Symtab symtab, int[] defined, int[] shift, int[] target) {
+		Equates equates = symtab.equates();
+		for (int k = 0; k < symtab.size(); k++) {
+			int id = symtab.symbol(k);
+			if (!equates.defines(id))
+				target[id] = symtab.address(id) + shift[defined[id]];
+		}
+		equates.evaluate(symtab, target, shift);
+	}
+
+	// the addressing bits a row fits with, E if it only fits in format 4, or
+	// NONE if its operand cannot be evaluated
+	private static int mode(LineTable table, Symtab symtab, int[] target, int[] shift,
+			int row) {
+		int value = table.operand(row);
+		int bits = table.modes(row);
+		if ((bits & LineTable.VALUE) != 0)
+			return value <= DISP_MAX ? 0 : LineTable.E;
+		int addr;
+		boolean relative;
+		if ((bits & LineTable.EXPRESSION) != 0) {
+			long result;
+			try {
+				result = table.expression(value).evaluate(table.loc(row) + shift[row], symtab,
+						id -> target[id]);
+			} catch (IllegalStateException e) {
+				// pass 2 reports it
+				return NONE;
+			}
+			addr = Expression.value(result);
+			relative = Expression.isRelative(result);
+		} else {
+			if (symtab.isExternal(value))
+				return LineTable.E;
+			if (!symtab.isDefined(value))
+				return NONE;
+			addr = target[value];
+			relative = !symtab.isAbsolute(value);
+		}
+		if (!relative)
+			return addr >= 0 && addr <= DISP_MAX ? 0 : LineTable.E;
+		int disp = addr - (table.loc(row) + shift[row] + 3);
+		if (disp >= PC_MIN && disp <= PC_MAX)
+			return LineTable.P;
+		int base = table.base(row);
+		if (base == NONE || !symtab.isDefined(base))
+			return LineTable.E;
+		disp = addr - target[base];
+		return disp >= 0 && disp <= DISP_MAX ? LineTable.B : LineTable.E;
+	}
+
+	// the row defining each label, by id; pass 1 defines labels in row order,
+	// so each label is on the first row after the previous one's that has it
+	// at its address. EQU symbols are not at the address of their row
+	private static int[] definingRows(LineTable table, Symtab symtab) {
+		int[] rows = new int[symtab.names().size()];
+		Equates equates = symtab.equates();
+		int k = 0;
+		for (int r = 0; r < table.size(); r++) {
+			while (k < symtab.size() && equates.defines(symtab.symbol(k)))
+				k++;
+			if (k == symtab.size())
+				break;
+			int id = symtab.symbol(k);
+			if (table.label(r) == id && table.loc(r) == symtab.address(id)) {
+				rows[id] = r;
+				k++;
+			}
+		}
+		return rows;
+	}
+
+}
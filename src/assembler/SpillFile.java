@@ -0,0 +1,115 @@
+package assembler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.BiFunction;
+
+import parse.SicLine;
+
+// Pass 1 results written to a temp file instead of being kept on the heap
+// Every replay reads the file sequentially from the start
+final class SpillFile implements Pass1Output, Closeable {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final Path path;
+	private DataOutputStream out;
+	private int count;
+
+	private SpillFile(Path path, DataOutputStream out) {
+		this.path = path;
+		this.out = out;
+	}
+
+	static SpillFile create() throws IOException {
+		Path path = Files.createTempFile("sicxe", ".pass1");
+		path.toFile().deleteOnExit();
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(path), BUFFER_SIZE));
+		return new SpillFile(path, out);
+	}
+
+	@Override
+	public void add(SicLine parsedLine, CharSequence source, int index) {
+		try {
+			parsedLine.writeTo(out);
+			out.writeUTF(source.toString());
+			count++;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public Pass1Info finish(Symtab symtab, String programName, int startAddr,
+			int programLength) {
+		try {
+			out.close();
+			out = null;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		Iterable<SicLine> lines = () -> replay((line, source) -> line);
+		Iterable<String> listing = () -> replay((line, source) -> {
+			StringBuilder sb = new StringBuilder(9 + source.length());
+			return LineTable.appendLoc(sb, line.getMemLoc()).append('\t').append(source)
+					.toString();
+		});
+		return Pass1Info.of(listing, lines, symtab, programName, startAddr, programLength, this);
+	}
+
+	private <T> Iterator<T> replay(BiFunction<SicLine, String, T> mapper) {
+		if (out != null)
+			throw new IllegalStateException("Pass 1 has not finished writing");
+		if (count == 0)
+			return Collections.emptyIterator();
+		final DataInputStream in;
+		try {
+			in = new DataInputStream(
+					new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return new Iterator<T>() {
+			private int read = 0;
+
+			@Override
+			public boolean hasNext() {
+				return read < count;
+			}
+
+			@Override
+			public T next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				try {
+					SicLine line = SicLine.readFrom(in);
+					String source = in.readUTF();
+					if (++read == count)
+						in.close();
+					return mapper.apply(line, source);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		};
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (out != null)
+			out.close();
+		Files.deleteIfExists(path);
+	}
+
+}
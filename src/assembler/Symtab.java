@@ -0,0 +1,191 @@
+package assembler;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+// SYMTAB as addresses indexed by the ids of a Names table
+// Rows of a LineTable sharing the Names resolve their symbols by array index,
+// without hashing or boxing. Symbols are remembered in the order they were
+// defined, which is the order asMap() lists them in. A control section also
+// keeps the symbols it exports (EXTDEF) and those it takes from other sections
+// (EXTREF), in the order they were named, and the symbols EQU defined, which
+// are absolute unless their expression was relative
+final class Symtab {
+
+	private final Names names;
+	private int[] addresses = new int[16];
+	private boolean[] defined = new boolean[16], absolute = new boolean[16];
+	// ids of the defined symbols, in definition order
+	private int[] order = new int[16];
+	private int size;
+	// EXTDEF and EXTREF ids, and which ids are external
+	private int[] exports = new int[0], references = new int[0];
+	private boolean[] external = new boolean[0];
+	private Equates equates;
+	private final Map<String, Integer> view = new View();
+
+	Symtab(Names names) {
+		this.names = names;
+	}
+
+	// define a symbol, returning false if it already was
+	boolean define(int id, int address) {
+		return define(id, address, false);
+	}
+
+	// the same for a symbol whose value does not move with the program
+	boolean define(int id, int address, boolean absolute) {
+		if (id >= defined.length) {
+			int capacity = Math.max(id + 1, defined.length * 2);
+			addresses = Arrays.copyOf(addresses, capacity);
+			defined = Arrays.copyOf(defined, capacity);
+			this.absolute = Arrays.copyOf(this.absolute, capacity);
+		}
+		if (defined[id])
+			return false;
+		defined[id] = true;
+		addresses[id] = address;
+		this.absolute[id] = absolute;
+		if (size == order.length)
+			order = Arrays.copyOf(order, size * 2);
+		order[size++] = id;
+		return true;
+	}
+
+	// a label, which an EQU waiting for its symbols may already define
+	boolean define(String symbol, int address) {
+		int id = names.id(symbol);
+		return (equates == null || !equates.defines(id)) && define(id, address);
+	}
+
+	boolean isDefined(int id) {
+		return id < defined.length && defined[id];
+	}
+
+	boolean isAbsolute(int id) {
+		return absolute[id];
+	}
+
+	// address of a defined symbol
+	int address(int id) {
+		return addresses[id];
+	}
+
+	// change the address of a defined symbol
+	void move(int id, int address) {
+		addresses[id] = address;
+	}
+
+	// name a symbol other control sections may refer to
+	void export(int id) {
+		for (int e : exports)
+			if (e == id)
+				return;
+		exports = Arrays.copyOf(exports, exports.length + 1);
+		exports[exports.length - 1] = id;
+	}
+
+	// name a symbol defined in another control section
+	void refer(int id) {
+		if (isExternal(id))
+			return;
+		if (id >= external.length)
+			external = Arrays.copyOf(external, Math.max(id + 1, external.length * 2));
+		external[id] = true;
+		references = Arrays.copyOf(references, references.length + 1);
+		references[references.length - 1] = id;
+	}
+
+	boolean isExternal(int id) {
+		return id < external.length && external[id];
+	}
+
+	// ids named by EXTDEF, then by EXTREF
+	int[] exports() {
+		return exports;
+	}
+
+	int[] references() {
+		return references;
+	}
+
+	// id of the i-th symbol defined
+	int symbol(int i) {
+		return order[i];
+	}
+
+	int size() {
+		return size;
+	}
+
+	Names names() {
+		return names;
+	}
+
+	Equates equates() {
+		if (equates == null)
+			equates = new Equates();
+		return equates;
+	}
+
+	// read-only view for callers that look symbols up by name
+	Map<String, Integer> asMap() {
+		return view;
+	}
+
+	private final class View extends AbstractMap<String, Integer> {
+
+		@Override
+		public Integer get(Object key) {
+			int id = key == null ? LineTable.NONE : names.find(key);
+			return id != LineTable.NONE && isDefined(id) ? addresses[id] : null;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public Set<Entry<String, Integer>> entrySet() {
+			return new AbstractSet<Entry<String, Integer>>() {
+				@Override
+				public Iterator<Entry<String, Integer>> iterator() {
+					return new Iterator<Entry<String, Integer>>() {
+						private int i;
+
+						@Override
+						public boolean hasNext() {
+							return i < size;
+						}
+
+						@Override
+						public Entry<String, Integer> next() {
+							if (!hasNext())
+								throw new NoSuchElementException();
+							int id = order[i++];
+							return new SimpleImmutableEntry<>(names.name(id), addresses[id]);
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+			};
+		}
+
+	}
+
+}
@@ -0,0 +1,71 @@
+package assembler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Text record state for a single run of pass 2
+// Every pass 2 call owns one, so concurrent assemblies never share a buffer
+final class TextRecords {
+
+	// a text record holds at most 30 bytes (60 hex digits)
+	private static final int MAX_RECORD_BYTES = 30;
+
+	private final ObjectWriter out;
+	private final byte[] record = new byte[MAX_RECORD_BYTES];
+	private int recordLength, recordAddr;
+	private final int startAddr;
+	// address fields the linker relocates, their lengths in half bytes, and the
+	// symbol added to each; null stands for the start of this section
+	private final List<Integer> modifications = new ArrayList<>(), lengths = new ArrayList<>();
+	private final List<String> modifiedBy = new ArrayList<>();
+
+	TextRecords(ObjectWriter out, int startAddr) {
+		this.out = out;
+		this.startAddr = startAddr;
+	}
+
+	// append bytes located at LOCCTR loc
+	// A record only holds consecutive bytes, so reserved storage, a program
+	// block or ORG ends it and the next one starts where the code goes on,
+	// without any zero bytes in between
+	void write(byte[] bytes, int off, int length, int loc) {
+		int addr = startAddr + loc;
+		if (recordAddr + recordLength != addr || recordLength + length > MAX_RECORD_BYTES)
+			flush();
+		// only a BYTE constant is longer than a record
+		for (; length > MAX_RECORD_BYTES; off += MAX_RECORD_BYTES,
+				length -= MAX_RECORD_BYTES, addr += MAX_RECORD_BYTES)
+			out.text(bytes, off, MAX_RECORD_BYTES, addr);
+		if (recordLength == 0)
+			recordAddr = addr;
+		System.arraycopy(bytes, off, record, recordLength, length);
+		recordLength += length;
+	}
+
+	// the field of halfBytes starting at LOCCTR loc is relocated by symbol
+	void modify(int loc, int halfBytes, String symbol) {
+		modifications.add(startAddr + loc);
+		lengths.add(halfBytes);
+		modifiedBy.add(symbol);
+	}
+
+	// write the last text record, then the modification records
+	void finish(String section) {
+		flush();
+		for (int i = 0; i < modifications.size(); i++) {
+			String symbol = modifiedBy.get(i);
+			out.modification(modifications.get(i), lengths.get(i),
+					symbol == null ? section : symbol);
+		}
+	}
+
+	// bytes are only rendered as hex once the text record is complete; empty
+	// records are never written
+	void flush() {
+		if (recordLength == 0)
+			return;
+		out.text(record, 0, recordLength, recordAddr);
+		recordLength = 0;
+	}
+
+}
@@ -0,0 +1,30 @@
+package instruction;
+
+public final class Hex {
+
+	private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+	private Hex() {
+	}
+
+	// uppercase, two digits per byte
+	public static String toString(byte[] bytes, int off, int len) {
+		return append(new StringBuilder(len * 2), bytes, off, len).toString();
+	}
+
+	public static StringBuilder append(StringBuilder sb, byte[] bytes, int off, int len) {
+		for (int i = off; i < off + len; i++) {
+			sb.append(DIGITS[(bytes[i] >> 4) & 0xF]);
+			sb.append(DIGITS[bytes[i] & 0xF]);
+		}
+		return sb;
+	}
+
+	// the low (4 * digits) bits of value, zero padded
+	public static StringBuilder append(StringBuilder sb, int value, int digits) {
+		for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4)
+			sb.append(DIGITS[(value >>> shift) & 0xF]);
+		return sb;
+	}
+
+}
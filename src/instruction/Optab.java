@@ -0,0 +1,251 @@
+package instruction;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Generated from optab.txt by optab.sh, do not edit by hand
+public final class Optab {
+
+	public static final int SIZE = 59;
+
+	private static final String[] NAMES = {
+			"ADD",
+			"ADDF",
+			"ADDR",
+			"AND",
+			"CLEAR",
+			"COMP",
+			"COMPF",
+			"COMPR",
+			"DIV",
+			"DIVF",
+			"DIVR",
+			"FIX",
+			"FLOAT",
+			"HIO",
+			"J",
+			"JEQ",
+			"JGT",
+			"JLT",
+			"JSUB",
+			"LDA",
+			"LDB",
+			"LDCH",
+			"LDF",
+			"LDL",
+			"LDS",
+			"LDT",
+			"LDX",
+			"LPS",
+			"MUL",
+			"MULF",
+			"MULR",
+			"NORM",
+			"OR",
+			"RD",
+			"RMO",
+			"RSUB",
+			"SHIFTL",
+			"SHIFTR",
+			"SIO",
+			"SSK",
+			"STA",
+			"STB",
+			"STCH",
+			"STF",
+			"STI",
+			"STL",
+			"STS",
+			"STSW",
+			"STT",
+			"STX",
+			"SUB",
+			"SUBF",
+			"SUBR",
+			"SVC",
+			"TD",
+			"TIO",
+			"TIX",
+			"TIXR",
+			"WD",
+	};
+
+	private static final InstructionInfo[] INFO = {
+			new InstructionInfo((byte) 0x18, 3, 1),
+			new InstructionInfo((byte) 0x58, 3, 1),
+			new InstructionInfo((byte) 0x90, 2, 2),
+			new InstructionInfo((byte) 0x40, 3, 1),
+			new InstructionInfo((byte) 0xB4, 2, 1),
+			new InstructionInfo((byte) 0x28, 3, 1),
+			new InstructionInfo((byte) 0x88, 3, 1),
+			new InstructionInfo((byte) 0xA0, 2, 2),
+			new InstructionInfo((byte) 0x24, 3, 1),
+			new InstructionInfo((byte) 0x64, 3, 1),
+			new InstructionInfo((byte) 0x9C, 2, 2),
+			new InstructionInfo((byte) 0xC4, 1, 0),
+			new InstructionInfo((byte) 0xC0, 1, 0),
+			new InstructionInfo((byte) 0xF4, 1, 0),
+			new InstructionInfo((byte) 0x3C, 3, 1),
+			new InstructionInfo((byte) 0x30, 3, 1),
+			new InstructionInfo((byte) 0x34, 3, 1),
+			new InstructionInfo((byte) 0x38, 3, 1),
+			new InstructionInfo((byte) 0x48, 3, 1),
+			new InstructionInfo((byte) 0x00, 3, 1),
+			new InstructionInfo((byte) 0x68, 3, 1),
+			new InstructionInfo((byte) 0x50, 3, 1),
+			new InstructionInfo((byte) 0x70, 3, 1),
+			new InstructionInfo((byte) 0x08, 3, 1),
+			new InstructionInfo((byte) 0x6C, 3, 1),
+			new InstructionInfo((byte) 0x74, 3, 1),
+			new InstructionInfo((byte) 0x04, 3, 1),
+			new InstructionInfo((byte) 0xD0, 3, 1),
+			new InstructionInfo((byte) 0x20, 3, 1),
+			new InstructionInfo((byte) 0x60, 3, 1),
+			new InstructionInfo((byte) 0x98, 2, 2),
+			new InstructionInfo((byte) 0xC8, 1, 0),
+			new InstructionInfo((byte) 0x44, 3, 1),
+			new InstructionInfo((byte) 0xD8, 3, 1),
+			new InstructionInfo((byte) 0xAC, 2, 2),
+			new InstructionInfo((byte) 0x4C, 1, 0),
+			new InstructionInfo((byte) 0xA4, 2, 2),
+			new InstructionInfo((byte) 0xA8, 2, 2),
+			new InstructionInfo((byte) 0xF0, 1, 0),
+			new InstructionInfo((byte) 0xEC, 3, 1),
+			new InstructionInfo((byte) 0x0C, 3, 1),
+			new InstructionInfo((byte) 0x78, 3, 1),
+			new InstructionInfo((byte) 0x54, 3, 1),
+			new InstructionInfo((byte) 0x80, 3, 1),
+			new InstructionInfo((byte) 0xD4, 3, 1),
+			new InstructionInfo((byte) 0x14, 3, 1),
+			new InstructionInfo((byte) 0x7C, 3, 1),
+			new InstructionInfo((byte) 0xE8, 3, 1),
+			new InstructionInfo((byte) 0x84, 3, 1),
+			new InstructionInfo((byte) 0x10, 3, 1),
+			new InstructionInfo((byte) 0x1C, 3, 1),
+			new InstructionInfo((byte) 0x5C, 3, 1),
+			new InstructionInfo((byte) 0x94, 2, 2),
+			new InstructionInfo((byte) 0xB0, 2, 1),
+			new InstructionInfo((byte) 0xE0, 3, 1),
+			new InstructionInfo((byte) 0xF8, 1, 0),
+			new InstructionInfo((byte) 0x2C, 3, 1),
+			new InstructionInfo((byte) 0xB8, 2, 1),
+			new InstructionInfo((byte) 0xDC, 3, 1),
+	};
+
+	// indexed by register number
+	private static final String[] REGISTERS = {
+			"%RA",
+			"%RX",
+			"%RL",
+			"%RB",
+			"%RS",
+			"%RT",
+	};
+
+	private Optab() {
+	}
+
+	// id of the mnemonic, or -1 if it is not an instruction
+	public static int lookup(CharSequence mnemonic) {
+		return lookup(mnemonic, 0, mnemonic.length());
+	}
+
+	// id of the mnemonic in text[start, end), or -1
+	public static int lookup(CharSequence text, int start, int end) {
+		if (start == end)
+			return -1;
+		switch (text.charAt(start)) {
+		case 'A':
+			return match(text, start, end, 0, 4);
+		case 'C':
+			return match(text, start, end, 4, 8);
+		case 'D':
+			return match(text, start, end, 8, 11);
+		case 'F':
+			return match(text, start, end, 11, 13);
+		case 'H':
+			return match(text, start, end, 13, 14);
+		case 'J':
+			return match(text, start, end, 14, 19);
+		case 'L':
+			return match(text, start, end, 19, 28);
+		case 'M':
+			return match(text, start, end, 28, 31);
+		case 'N':
+			return match(text, start, end, 31, 32);
+		case 'O':
+			return match(text, start, end, 32, 33);
+		case 'R':
+			return match(text, start, end, 33, 36);
+		case 'S':
+			return match(text, start, end, 36, 54);
+		case 'T':
+			return match(text, start, end, 54, 58);
+		case 'W':
+			return match(text, start, end, 58, 59);
+		default:
+			return -1;
+		}
+	}
+
+	// number of a register operand such as %RA, or -1
+	public static int register(CharSequence operand) {
+		if (operand.length() != 3 || operand.charAt(0) != '%' || operand.charAt(1) != 'R')
+			return -1;
+		switch (operand.charAt(2)) {
+		case 'A':
+			return 0;
+		case 'X':
+			return 1;
+		case 'L':
+			return 2;
+		case 'B':
+			return 3;
+		case 'S':
+			return 4;
+		case 'T':
+			return 5;
+		default:
+			return -1;
+		}
+	}
+
+	public static InstructionInfo get(int id) {
+		return INFO[id];
+	}
+
+	public static String name(int id) {
+		return NAMES[id];
+	}
+
+	public static String registerName(int register) {
+		return REGISTERS[register];
+	}
+
+	public static int registerCount() {
+		return REGISTERS.length;
+	}
+
+	// mnemonic to instruction view, in id order
+	public static Map<String, InstructionInfo> asMap() {
+		Map<String, InstructionInfo> map = new LinkedHashMap<>();
+		for (int id = 0; id < SIZE; id++)
+			map.put(NAMES[id], INFO[id]);
+		return Collections.unmodifiableMap(map);
+	}
+
+	private static int match(CharSequence text, int start, int end, int from, int to) {
+		nextName: for (int id = from; id < to; id++) {
+			String name = NAMES[id];
+			if (name.length() != end - start)
+				continue;
+			for (int i = 1; i < name.length(); i++)
+				if (name.charAt(i) != text.charAt(start + i))
+					continue nextName;
+			return id;
+		}
+		return -1;
+	}
+
+}
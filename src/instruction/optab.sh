@@ -0,0 +1,133 @@
+# Generates Optab.java from optab.txt, so the table is compiled in instead of
+# being parsed at startup. Rerun whenever optab.txt changes:
+#   sh src/instruction/optab.sh src/optab.txt > src/instruction/Optab.java
+awk -F ',' '
+/^[ \t]*(\/\/.*)?$/ { next }
+{
+    for (i = 1; i <= 4; i++)
+        gsub(/[ \t\r]/, "", $i)
+    # registers are the rows without a format
+    if ($3 == "0") {
+        reg[nreg++] = $1
+        regnum[$1] = $2
+    } else {
+        op[nop++] = $1
+        code[$1] = $2
+        fmt[$1] = $3
+        arity[$1] = $4
+    }
+}
+END {
+    # sort mnemonics so that names sharing a first letter are contiguous
+    for (i = 1; i < nop; i++)
+        for (j = i; j > 0 && op[j - 1] > op[j]; j--) {
+            t = op[j]; op[j] = op[j - 1]; op[j - 1] = t
+        }
+
+    print "package instruction;"
+    print ""
+    print "import java.util.Collections;"
+    print "import java.util.LinkedHashMap;"
+    print "import java.util.Map;"
+    print ""
+    print "// Generated from optab.txt by optab.sh, do not edit by hand"
+    print "public final class Optab {"
+    print ""
+    printf "\tpublic static final int SIZE = %d;\n", nop
+    print ""
+    print "\tprivate static final String[] NAMES = {"
+    for (i = 0; i < nop; i++)
+        printf "\t\t\t\"%s\",\n", op[i]
+    print "\t};"
+    print ""
+    print "\tprivate static final InstructionInfo[] INFO = {"
+    for (i = 0; i < nop; i++)
+        printf "\t\t\tnew InstructionInfo((byte) 0x%s, %s, %s),\n", code[op[i]], fmt[op[i]], arity[op[i]]
+    print "\t};"
+    print ""
+    print "\t// indexed by register number"
+    print "\tprivate static final String[] REGISTERS = {"
+    for (i = 0; i < nreg; i++)
+        for (j = 0; j < nreg; j++)
+            if (regnum[reg[j]] + 0 == i)
+                printf "\t\t\t\"%s\",\n", reg[j]
+    print "\t};"
+    print ""
+    print "\tprivate Optab() {"
+    print "\t}"
+    print ""
+    print "\t// id of the mnemonic, or -1 if it is not an instruction"
+    print "\tpublic static int lookup(CharSequence mnemonic) {"
+    print "\t\treturn lookup(mnemonic, 0, mnemonic.length());"
+    print "\t}"
+    print ""
+    print "\t// id of the mnemonic in text[start, end), or -1"
+    print "\tpublic static int lookup(CharSequence text, int start, int end) {"
+    print "\t\tif (start == end)"
+    print "\t\t\treturn -1;"
+    print "\t\tswitch (text.charAt(start)) {"
+    for (i = 0; i < nop; i = j) {
+        c = substr(op[i], 1, 1)
+        for (j = i; j < nop && substr(op[j], 1, 1) == c; j++)
+            ;
+        printf "\t\tcase '\''%s'\'':\n", c
+        printf "\t\t\treturn match(text, start, end, %d, %d);\n", i, j
+    }
+    print "\t\tdefault:"
+    print "\t\t\treturn -1;"
+    print "\t\t}"
+    print "\t}"
+    print ""
+    print "\t// number of a register operand such as %RA, or -1"
+    print "\tpublic static int register(CharSequence operand) {"
+    print "\t\tif (operand.length() != 3 || operand.charAt(0) != '\''%'\'' || operand.charAt(1) != '\''R'\'')"
+    print "\t\t\treturn -1;"
+    print "\t\tswitch (operand.charAt(2)) {"
+    for (i = 0; i < nreg; i++) {
+        printf "\t\tcase '\''%s'\'':\n", substr(reg[i], 3, 1)
+        printf "\t\t\treturn %d;\n", regnum[reg[i]] + 0
+    }
+    print "\t\tdefault:"
+    print "\t\t\treturn -1;"
+    print "\t\t}"
+    print "\t}"
+    print ""
+    print "\tpublic static InstructionInfo get(int id) {"
+    print "\t\treturn INFO[id];"
+    print "\t}"
+    print ""
+    print "\tpublic static String name(int id) {"
+    print "\t\treturn NAMES[id];"
+    print "\t}"
+    print ""
+    print "\tpublic static String registerName(int register) {"
+    print "\t\treturn REGISTERS[register];"
+    print "\t}"
+    print ""
+    print "\tpublic static int registerCount() {"
+    print "\t\treturn REGISTERS.length;"
+    print "\t}"
+    print ""
+    print "\t// mnemonic to instruction view, in id order"
+    print "\tpublic static Map<String, InstructionInfo> asMap() {"
+    print "\t\tMap<String, InstructionInfo> map = new LinkedHashMap<>();"
+    print "\t\tfor (int id = 0; id < SIZE; id++)"
+    print "\t\t\tmap.put(NAMES[id], INFO[id]);"
+    print "\t\treturn Collections.unmodifiableMap(map);"
+    print "\t}"
+    print ""
+    print "\tprivate static int match(CharSequence text, int start, int end, int from, int to) {"
+    print "\t\tnextName: for (int id = from; id < to; id++) {"
+    print "\t\t\tString name = NAMES[id];"
+    print "\t\t\tif (name.length() != end - start)"
+    print "\t\t\t\tcontinue;"
+    print "\t\t\tfor (int i = 1; i < name.length(); i++)"
+    print "\t\t\t\tif (name.charAt(i) != text.charAt(start + i))"
+    print "\t\t\t\t\tcontinue nextName;"
+    print "\t\t\treturn id;"
+    print "\t\t}"
+    print "\t\treturn -1;"
+    print "\t}"
+    print ""
+    print "}"
+}' "$1"
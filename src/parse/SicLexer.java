@@ -0,0 +1,359 @@
+package parse;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import instruction.Optab;
+import parse.SicLine.AddressingMode;
+
+// Single scan, regex-free lexer for SIC/XE source lines
+// Produces the same results as the old linePattern + MOV substitution regexes
+final class SicLexer {
+
+	private static final String INDEXED = "[%RX]";
+	private static final String[] DIRECTIVES = { "START", "END", "BASE", "NOBASE", "RESW",
+			"RESB", "WORD", "BYTE", "EQU", "ORG" };
+
+	private SicLexer() {
+	}
+
+	static SicLine lex(CharSequence line, int start, int end, int pc) {
+		int movs = countMov(line, start, end);
+		if (movs > 0) {
+			// MOV as the only mnemonic is the common case and is lexed in place
+			if (movs == 1) {
+				SicLine sl = lexMov(line, start, end, pc);
+				if (sl != null)
+					return sl;
+			}
+			// anything else gets the full textual substitution first
+			String rewritten = rewriteMov(line, start, end);
+			if (rewritten != null)
+				return lexPlain(rewritten, 0, rewritten.length(), pc);
+		}
+		return lexPlain(line, start, end, pc);
+	}
+
+	private static SicLine lexPlain(CharSequence line, int start, int end, int pc) {
+		int i = start;
+		// label is the leading run of word characters, if any
+		while (i < end && isWord(line.charAt(i)))
+			i++;
+		String label = i > start ? line.subSequence(start, i).toString() : null;
+
+		// label and mnemonic must be separated by whitespace
+		int ws = i;
+		while (i < end && isSpace(line.charAt(i)))
+			i++;
+		if (i == ws)
+			throw unparsable(line, start, end);
+
+		// mnemonic is an optional '+' followed by letters only
+		int instStart = i;
+		if (i < end && line.charAt(i) == '+')
+			i++;
+		int letters = i;
+		while (i < end && isLetter(line.charAt(i)))
+			i++;
+		if (i == letters || (i < end && !isSpace(line.charAt(i))))
+			throw unparsable(line, start, end);
+		int instEnd = i;
+
+		ws = i;
+		while (i < end && isSpace(line.charAt(i)))
+			i++;
+		String instruction = mnemonic(line, instStart, instEnd);
+		return tail(label, instruction, line, i, end, i - ws, pc);
+	}
+
+	// lexes a line whose mnemonic is MOV, or returns null if the substitution
+	// cannot be done in place
+	private static SicLine lexMov(CharSequence line, int start, int end, int pc) {
+		int i = start;
+		while (i < end && isWord(line.charAt(i)))
+			i++;
+		int labelEnd = i;
+		while (i < end && isSpace(line.charAt(i)))
+			i++;
+		if (i == labelEnd)
+			return null;
+		String prefix = "";
+		if (i < end && line.charAt(i) == '+') {
+			prefix = "+";
+			i++;
+		}
+		if (!isMovAt(line, i, end))
+			return null;
+		int ws = i + 3;
+		i = ws;
+		while (i < end && isSpace(line.charAt(i)))
+			i++;
+		if (i == ws || i == end)
+			return null;
+		String label = labelEnd > start ? line.subSequence(start, labelEnd).toString() : null;
+
+		int reg = movLoadRegister(line, i, end);
+		if (reg >= 0) {
+			// MOV %Rr, src -> LDr src
+			int j = reg + 1;
+			while (line.charAt(j) != ',')
+				j++;
+			int k = ++j;
+			while (k < end && isSpace(line.charAt(k)))
+				k++;
+			// the substitution inserts a tab before the remaining text
+			String instruction = prefix + "LD" + line.charAt(reg);
+			return tail(label, instruction, line, k, end, 1 + (k - j), pc);
+		}
+		int comma = movStoreComma(line, i, end);
+		if (comma < 0)
+			return null;
+		// MOV dst, %Rr -> STr dst
+		int r = comma + 1;
+		while (isSpace(line.charAt(r)))
+			r++;
+		r += 2;
+		String instruction = prefix + "ST" + line.charAt(r);
+		if (r + 1 == end)
+			return fromRange(label, instruction, line, i, comma, pc);
+		// anything following the register is kept after the destination
+		String rest = new StringBuilder(comma - i + end - r - 1).append(line, i, comma)
+				.append(line, r + 1, end).toString();
+		return fromRange(label, instruction, rest, 0, rest.length(), pc);
+	}
+
+	// general form of the MOV substitution, for MOVs outside the mnemonic field:
+	// every "MOV %Rr," becomes "LDr\t", then the first "MOV dst,%Rr" becomes "STr\tdst"
+	private static String rewriteMov(CharSequence line, int start, int end) {
+		StringBuilder sb = new StringBuilder(end - start + 4);
+		boolean changed = false;
+		int p = start;
+		while (p < end) {
+			if (isMovAt(line, p, end)) {
+				int w = p + 3;
+				while (w < end && isSpace(line.charAt(w)))
+					w++;
+				int reg = w > p + 3 ? movLoadRegister(line, w, end) : -1;
+				if (reg >= 0) {
+					p = reg + 1;
+					while (line.charAt(p) != ',')
+						p++;
+					p++;
+					sb.append("LD").append(line.charAt(reg)).append('\t');
+					changed = true;
+					continue;
+				}
+			}
+			sb.append(line.charAt(p++));
+		}
+
+		for (p = 0; p < sb.length(); p++) {
+			if (!isMovAt(sb, p, sb.length()))
+				continue;
+			int ws = p + 3;
+			int w = ws;
+			while (w < sb.length() && isSpace(sb.charAt(w)))
+				w++;
+			if (w == ws)
+				continue;
+			// the destination normally starts after the whitespace, but may be a
+			// single whitespace character when the comma follows immediately
+			int from = w;
+			int comma = movStoreComma(sb, w, sb.length());
+			if (comma < 0 && w - ws >= 2 && movStoreComma(sb, w - 1, sb.length()) == w) {
+				from = w - 1;
+				comma = w;
+			}
+			if (comma < 0)
+				continue;
+			int r = comma + 1;
+			while (isSpace(sb.charAt(r)))
+				r++;
+			String dst = sb.substring(from, comma);
+			char reg = sb.charAt(r + 2);
+			sb.replace(p, r + 3, "ST" + reg + '\t' + dst);
+			return sb.toString();
+		}
+		return changed ? sb.toString() : null;
+	}
+
+	// known mnemonics and directives share one String instead of a copy per line
+	private static String mnemonic(CharSequence line, int from, int to) {
+		int id = Optab.lookup(line, from, to);
+		if (id >= 0)
+			return Optab.name(id);
+		for (String directive : DIRECTIVES)
+			if (regionEquals(line, from, to, directive))
+				return directive;
+		return line.subSequence(from, to).toString();
+	}
+
+	// empty, whitespace-only and "word.text" comment lines are not assembled
+	static boolean isSkippable(CharSequence line, int start, int end) {
+		int i = start;
+		while (i < end && line.charAt(i) <= ' ')
+			i++;
+		if (i == end)
+			return true;
+		i = start;
+		while (i < end && isWord(line.charAt(i)))
+			i++;
+		return i > start && i + 1 < end && line.charAt(i) == '.';
+	}
+
+	// operands follow a whitespace run; a trailing run of only whitespace is
+	// rejected when it is one character long and otherwise yields one operand
+	private static SicLine tail(String label, String instruction, CharSequence line, int from,
+			int end, int wsCount, int pc) {
+		if (from < end)
+			return fromRange(label, instruction, line, from, end, pc);
+		if (wsCount >= 2)
+			return fromRange(label, instruction, line, end - 1, end, pc);
+		if (wsCount == 1)
+			throw new IllegalStateException("Could not parse line: " + line);
+		return fromRange(label, instruction, null, 0, 0, pc);
+	}
+
+	// rest == null means no operand text was present at all
+	static SicLine fromRange(String label, String instruction, CharSequence rest, int from,
+			int to, int addr) {
+		EnumSet<AddressingMode> modes = EnumSet.noneOf(AddressingMode.class);
+		if (rest != null && to > from) {
+			// indexing is always at the end of the operands
+			if (to - from > INDEXED.length()
+					&& regionEquals(rest, to - INDEXED.length(), to, INDEXED)) {
+				modes.add(AddressingMode.X);
+				to -= INDEXED.length();
+			}
+			// immediate handling
+			if (charAt(rest, from, to) == '#') {
+				modes.add(AddressingMode.I);
+				from++;
+			}
+			// indirect handling
+			if (charAt(rest, from, to) == '@') {
+				modes.add(AddressingMode.N);
+				from++;
+			}
+			// extended format handling
+			if (instruction.charAt(0) == '+') {
+				modes.add(AddressingMode.E);
+				instruction = instruction.substring(1);
+			}
+			if (instruction.charAt(0) == '=') {
+				// TODO: Implement '=' operand prefix
+				instruction = instruction.substring(1);
+			}
+		}
+		if (!modes.contains(AddressingMode.I) && !modes.contains(AddressingMode.N)) {
+			modes.add(AddressingMode.N);
+			modes.add(AddressingMode.I);
+		}
+		if (rest == null)
+			return new SicLine(label, instruction, new String[] {}, modes, addr);
+		return new SicLine(label, instruction, split(rest, from, to), modes, addr);
+	}
+
+	// comma separated, trimmed operands; trailing empty fields are dropped
+	private static String[] split(CharSequence rest, int from, int to) {
+		List<String> fields = new ArrayList<>(2);
+		int fieldStart = from;
+		int kept = 0;
+		for (int i = from; i <= to; i++) {
+			if (i < to && rest.charAt(i) != ',')
+				continue;
+			if (i == to && fields.isEmpty())
+				return new String[] { trim(rest, fieldStart, to) };
+			fields.add(trim(rest, fieldStart, i));
+			if (i > fieldStart)
+				kept = fields.size();
+			fieldStart = i + 1;
+		}
+		return fields.subList(0, kept).toArray(new String[kept]);
+	}
+
+	// index of the register letter in "%Rr <ws> ," or -1
+	private static int movLoadRegister(CharSequence line, int i, int end) {
+		if (i + 2 >= end || line.charAt(i) != '%' || line.charAt(i + 1) != 'R'
+				|| !isRegister(line.charAt(i + 2)))
+			return -1;
+		int j = i + 3;
+		while (j < end && isSpace(line.charAt(j)))
+			j++;
+		return j < end && line.charAt(j) == ',' ? i + 2 : -1;
+	}
+
+	// index of the last comma followed by "<ws> %Rr", with a non-empty destination
+	private static int movStoreComma(CharSequence line, int i, int end) {
+		for (int c = end - 1; c > i; c--) {
+			if (line.charAt(c) != ',')
+				continue;
+			int r = c + 1;
+			while (r < end && isSpace(line.charAt(r)))
+				r++;
+			if (r + 2 < end && line.charAt(r) == '%' && line.charAt(r + 1) == 'R'
+					&& isRegister(line.charAt(r + 2)))
+				return c;
+		}
+		return -1;
+	}
+
+	private static int countMov(CharSequence s, int from, int to) {
+		int count = 0;
+		for (int i = from; i < to - 2; i++)
+			if (isMovAt(s, i, to))
+				count++;
+		return count;
+	}
+
+	private static boolean isMovAt(CharSequence s, int i, int to) {
+		return i + 3 <= to && s.charAt(i) == 'M' && s.charAt(i + 1) == 'O'
+				&& s.charAt(i + 2) == 'V';
+	}
+
+	private static char charAt(CharSequence s, int i, int to) {
+		if (i >= to)
+			throw new IllegalStateException("Missing operand: " + s);
+		return s.charAt(i);
+	}
+
+	private static String trim(CharSequence s, int from, int to) {
+		while (from < to && s.charAt(from) <= ' ')
+			from++;
+		while (to > from && s.charAt(to - 1) <= ' ')
+			to--;
+		return s.subSequence(from, to).toString();
+	}
+
+	private static boolean regionEquals(CharSequence s, int from, int to, String expected) {
+		if (to - from != expected.length())
+			return false;
+		for (int i = 0; i < expected.length(); i++)
+			if (s.charAt(from + i) != expected.charAt(i))
+				return false;
+		return true;
+	}
+
+	private static boolean isRegister(char c) {
+		return c == 'A' || c == 'B' || c == 'L' || c == 'S' || c == 'T' || c == 'X';
+	}
+
+	private static boolean isWord(char c) {
+		return isLetter(c) || (c >= '0' && c <= '9') || c == '_';
+	}
+
+	private static boolean isLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+	}
+
+	private static IllegalStateException unparsable(CharSequence line, int start, int end) {
+		return new IllegalStateException(
+				"Could not parse line: " + line.subSequence(start, end).toString());
+	}
+
+}
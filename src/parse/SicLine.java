@@ -1,13 +1,18 @@
 package parse;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
 
+import instruction.Hex;
 import instruction.InstructionInfo;
+import instruction.Optab;
 
 public final class SicLine {
 
@@ -15,83 +20,79 @@ public final class SicLine {
 	private final String[] operands;
 	private final EnumSet<AddressingMode> modes;
 	private final int memloc;
+	// resolved once here so later passes never hash the mnemonic
+	private final int opcode;
+	// operand of the BASE directive in effect for this line, set by pass 1
+	private String base;
 
-	private static final Pattern linePattern = Pattern.compile(
-			"^(?<label>\\w+)?\\s+(?<inst>\\+?[a-z]+)(?:\\s+(?<operands>.+))?$",
-			Pattern.CASE_INSENSITIVE);
-	private static final Pattern movLoadSub = Pattern.compile("MOV\\s+%R([ABLSTX])\\s*,");
-	private static final Pattern movStoreSub = Pattern.compile("MOV\\s+(.+),\\s*%R([ABLSTX])");
+	SicLine(String label, String instruction, String[] operands, EnumSet<AddressingMode> modes,
+			int memloc) {
+		this(label, instruction, operands, modes, memloc, Optab.lookup(instruction));
+	}
 
 	private SicLine(String label, String instruction, String[] operands,
-			EnumSet<AddressingMode> modes, int memloc) {
+			EnumSet<AddressingMode> modes, int memloc, int opcode) {
 		this.label = label;
 		this.instruction = instruction;
 		this.operands = operands;
 		this.modes = modes;
 		this.memloc = memloc;
+		this.opcode = opcode;
 	}
 
-	private static enum AddressingMode {
+	static enum AddressingMode {
 		N, I, X, B, P, E
 	}
 
 	public static SicLine fromInfo(String label, String instruction, String rest, int addr) {
-		EnumSet<AddressingMode> modes = EnumSet.noneOf(AddressingMode.class);
-		if (rest != null && !rest.isEmpty()) {
-			// guaranteed to be at the end from the MOV replacement
-			if (rest.matches(".+\\[%RX\\]")) {
-				modes.add(AddressingMode.X);
-				rest = rest.substring(0, rest.length() - 5);
-			}
-			// immediate handling
-			if (rest.charAt(0) == '#') {
-				modes.add(AddressingMode.I);
-				rest = rest.substring(1);
-			}
-			// indirect handling
-			if (rest.charAt(0) == '@') {
-				modes.add(AddressingMode.N);
-				rest = rest.substring(1);
-			}
-			// extended format handling
-			if (instruction.charAt(0) == '+') {
-				modes.add(AddressingMode.E);
-				instruction = instruction.substring(1);
-			}
-			if (instruction.charAt(0) == '=') {
-				// TODO: Implement '=' operand prefix
-				instruction = instruction.substring(1);
-			}
-		}
-		if (!modes.contains(AddressingMode.I) && !modes.contains(AddressingMode.N)) {
-			modes.addAll(EnumSet.of(AddressingMode.N, AddressingMode.I));
-		}
-		if (rest == null)
-			return new SicLine(label, instruction, new String[] {}, modes, addr);
-		String[] operands = Pattern.compile(",").splitAsStream(rest).map(String::trim)
-				.toArray(String[]::new);
-		return new SicLine(label, instruction, operands, modes, addr);
-	}
-
-	public static SicLine parseLine(String line, int pc) {
-		// substitute MOVs with real instructions
-		line = movLoadSub.matcher(line).replaceAll("LD$1\t");
-		line = movStoreSub.matcher(line).replaceAll("ST$2\t$1");
-		Matcher m = linePattern.matcher(line);
-		if (m.find()) {
-			String label = m.group("label");
-			String instruction = m.group("inst");
-			String rest = m.group("operands");
-			return SicLine.fromInfo(label, instruction, rest, pc);
-		} else {
-			throw new IllegalStateException("Could not parse line: " + line);
-		}
+		return SicLexer.fromRange(label, instruction, rest, 0, rest == null ? 0 : rest.length(),
+				addr);
+	}
+
+	public static SicLine parseLine(CharSequence line, int pc) {
+		return SicLexer.lex(line, 0, line.length(), pc);
+	}
+
+	public static boolean isSkippable(CharSequence line) {
+		return SicLexer.isSkippable(line, 0, line.length());
 	}
 
 	// return the object code as a hexadecimal String
-	public String getObjectCode(Map<String, InstructionInfo> optab, Map<String, Integer> symtab,
-			boolean base, int baseAddr) {
-		InstructionInfo instInfo = optab.get(instruction);
+	public String getObjectCode(Map<String, Integer> symtab, boolean base, int baseAddr) {
+		byte[] bytes = new byte[4];
+		int length = encode(symtab, base, baseAddr, bytes, 0);
+		return Hex.toString(bytes, 0, length);
+	}
+
+	// write the object code bytes into dst at off and return how many were written
+	public int encode(Map<String, Integer> symtab, boolean base, int baseAddr, byte[] dst,
+			int off) {
+		return encode(op -> findInSymtab(symtab, op), base, baseAddr, dst, off);
+	}
+
+	// the same, address giving the address of a format 3 or 4 operand
+	public int encode(ToIntFunction<String> address, boolean base, int baseAddr, byte[] dst,
+			int off) {
+		long code = assemble(address, base, baseAddr);
+		int format = (int) (code >>> 32);
+		// note that every format's id is also its width in bytes
+		for (int i = 0; i < format; i++)
+			dst[off + i] = (byte) (code >>> 8 * (format - 1 - i));
+		return format;
+	}
+
+	// write the object code bytes at the buffer's position and return how many were written
+	public int encode(Map<String, Integer> symtab, boolean base, int baseAddr, ByteBuffer dst) {
+		long code = assemble(op -> findInSymtab(symtab, op), base, baseAddr);
+		int format = (int) (code >>> 32);
+		for (int i = 0; i < format; i++)
+			dst.put((byte) (code >>> 8 * (format - 1 - i)));
+		return format;
+	}
+
+	// the format in the upper half, the instruction bits in the lower half
+	private long assemble(ToIntFunction<String> address, boolean base, int baseAddr) {
+		InstructionInfo instInfo = opcode < 0 ? null : Optab.get(opcode);
 		boolean isImmediate = modes.contains(AddressingMode.I) && !modes.contains(AddressingMode.N);
 		if (instInfo == null)
 			throw new IllegalStateException("Instruction not found: " + instruction);
@@ -102,67 +103,86 @@ public final class SicLine {
 		}
 		int format = instInfo.getInstructionFormat();
 
-		byte b = (byte) instInfo.getOpcode();
+		int b = instInfo.getOpcode() & 0xFF;
 		int res = 0;
 
 		if (format == 1) {
 			// format 1 simply the opcode
 			res = b;
 		} else if (format == 2) {
-			// format 2 uses registers, which are stored in optab
+			// format 2 uses registers, which are numbered by Optab
 			if (opCount == 1) {
 				String op = operands[0];
-				InstructionInfo register = optab.get(op);
-				if (register == null)
-					throw new IllegalStateException("Illegal register: " + register);
-				byte addr = register.getOpcode();
+				int addr = Optab.register(op);
+				if (addr < 0)
+					throw new IllegalStateException("Illegal register: " + op);
 				// write addr to high four bits of second byte
 				// bits 9-12
-				addr <<= 4;
-				res |= b << 16;
-				res |= addr << 8;
+				res |= b << 8;
+				res |= addr << 4;
 			} else if (opCount == 2) { // two arguments
 				String op1 = operands[0];
 				String op2 = operands[1];
-				InstructionInfo reg1 = optab.get(op1);
-				InstructionInfo reg2 = optab.get(op2);
-				if (reg1 == null)
-					throw new IllegalStateException("Illegal register: " + reg1);
-				if (reg2 == null)
-					throw new IllegalStateException("Illegal register: " + reg2);
-				byte addr1 = reg1.getOpcode();
-				byte addr2 = reg2.getOpcode();
+				int addr1 = Optab.register(op1);
+				int addr2 = Optab.register(op2);
+				if (addr1 < 0)
+					throw new IllegalStateException("Illegal register: " + op1);
+				if (addr2 < 0)
+					throw new IllegalStateException("Illegal register: " + op2);
 				// make upper nibble the first four bits of addr1
-				res |= b << 16;
-				res |= addr1 << 8;
-				res |= addr2 << 4;
+				res |= b << 8;
+				res |= addr1 << 4;
+				res |= addr2;
 			} else {
 				throw new IllegalArgumentException("Unhandled operand count");
 			}
 		} else if (format == 3 || format == 4) {
-			// determine addressing mode
-			if (base)
-				modes.add(AddressingMode.B);
-			else
-				modes.add(AddressingMode.P);
-
 			// differentiate between formats 3 and 4
 			if (modes.contains(AddressingMode.E))
 				format = 4;
 
+			// obtain address from operand
+			// if immediate, parse directly, otherwise lookup in SYMTAB
+			String op = operands[0];
+			boolean number = isImmediate && op.matches("\\d+");
+			int addr;
+			if (number)
+				addr = Integer.parseInt(operands[0]);
+			else
+				addr = address.applyAsInt(op);
+
+			// PC is always a line ahead of the current instruction
+			int pc = memloc + format;
+			int offset;
+			if (number) {
+				// a number never moves, so it is given as is
+				if (addr >= 1 << (format == 4 ? 20 : 12))
+					throw new IllegalStateException("Address out of range: " + addr);
+				offset = addr;
+			} else {
+				offset = base ? addr - baseAddr : addr - pc;
+				if (base && !fits(offset, true, format) && fits(addr - pc, false, format)) {
+					// out of reach of BASE, such as below it, but not of PC
+					base = false;
+					offset = addr - pc;
+				}
+				if (!fits(offset, base, format))
+					throw new IllegalStateException("Displacement out of range: " + offset);
+			}
+
 			// translate modes into bits
 			// N and I share a byte with the opcode
 			if (modes.contains(AddressingMode.N))
 				b |= 0b10;
 			if (modes.contains(AddressingMode.I))
 				b |= 0b01;
-			byte b2 = 0;
+			int b2 = 0;
 			if (modes.contains(AddressingMode.X))
 				b2 |= 1 << 7;
-			if (modes.contains(AddressingMode.B))
-				b2 |= 1 << 6;
-			if (modes.contains(AddressingMode.P))
-				b2 |= 1 << 5;
+			// base or PC relative, which is left out of modes since copies of
+			// this line share them
+			if (!number)
+				b2 |= base ? 1 << 6 : 1 << 5;
 			if (modes.contains(AddressingMode.E))
 				b2 |= 1 << 4;
 
@@ -172,19 +192,6 @@ public final class SicLine {
 			res |= b << 16 + formatOffset;
 			res |= b2 << 8 + formatOffset;
 
-			// obtain address from operand
-			// if immediate, parse directly, otherwise lookup in SYMTAB
-			String op = operands[0];
-			int addr;
-			if (isImmediate && op.matches("\\d+"))
-				addr = Integer.parseInt(operands[0]);
-			else
-				addr = findInSymtab(symtab, op);
-
-			// PC is always a line ahead of the current instruction
-			int pc = memloc + format; // TODO: (+format) or always (+3)?
-			// SIC-XE never uses direct addressing
-			int offset = base ? addr - baseAddr : addr - pc;
 			// mask away unnecessary sign bits in the offset
 			if (format == 3)
 				// mask only first 12 bits
@@ -198,10 +205,16 @@ public final class SicLine {
 			throw new IllegalArgumentException("Illegal format: " + format);
 		}
 
-		// format result into hexadecimal
-		// note that every format's id is half of its width in bytes
-		String hex = String.format("%0" + (format * 2) + "X", res);
-		return hex;
+		return (long) format << 32 | (res & 0xFFFFFFFFL);
+	}
+
+	// whether a base relative offset, which is unsigned, or a PC relative one,
+	// which is signed, fits the address field of format 3 or 4
+	public static boolean fits(int offset, boolean base, int format) {
+		int bits = format == 4 ? 20 : 12;
+		if (base)
+			return offset >= 0 && offset < 1 << bits;
+		return offset >= -(1 << bits - 1) && offset < 1 << bits - 1;
 	}
 
 	private int findInSymtab(Map<String, Integer> symtab, String key) {
@@ -211,6 +224,43 @@ public final class SicLine {
 		return val.intValue();
 	}
 
+	// compact binary form, used to spill pass 1 results to disk
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(memloc);
+		out.writeBoolean(label != null);
+		if (label != null)
+			out.writeUTF(label);
+		out.writeUTF(instruction);
+		int bits = 0;
+		for (AddressingMode mode : modes)
+			bits |= 1 << mode.ordinal();
+		out.writeByte(bits);
+		out.writeShort(operands.length);
+		for (String op : operands)
+			out.writeUTF(op);
+		out.writeBoolean(base != null);
+		if (base != null)
+			out.writeUTF(base);
+	}
+
+	public static SicLine readFrom(DataInput in) throws IOException {
+		int memloc = in.readInt();
+		String label = in.readBoolean() ? in.readUTF() : null;
+		String instruction = in.readUTF();
+		int bits = in.readByte();
+		EnumSet<AddressingMode> modes = EnumSet.noneOf(AddressingMode.class);
+		for (AddressingMode mode : AddressingMode.values())
+			if ((bits & 1 << mode.ordinal()) != 0)
+				modes.add(mode);
+		String[] operands = new String[in.readUnsignedShort()];
+		for (int i = 0; i < operands.length; i++)
+			operands[i] = in.readUTF();
+		SicLine line = new SicLine(label, instruction, operands, modes, memloc);
+		if (in.readBoolean())
+			line.setBase(in.readUTF());
+		return line;
+	}
+
 	public String getLabel() {
 		return label;
 	}
@@ -227,15 +277,53 @@ public final class SicLine {
 		return modes;
 	}
 
+	// the modes as nixbpe bits, n being 0x20 and e 0x01
+	public int getModeBits() {
+		int bits = 0;
+		for (AddressingMode mode : modes)
+			bits |= 0x20 >> mode.ordinal();
+		return bits;
+	}
+
 	public int getMemLoc() {
 		return memloc;
 	}
 
-	public int getInstructionFormat(Map<String, InstructionInfo> optab) {
-		InstructionInfo instInfo = optab.get(instruction);
-		if (instInfo == null)
+	// copy of this line placed at another location
+	public SicLine withMemLoc(int memloc) {
+		SicLine line = new SicLine(label, instruction, operands, modes, memloc, opcode);
+		line.base = base;
+		return line;
+	}
+
+	public String getBase() {
+		return base;
+	}
+
+	public void setBase(String base) {
+		this.base = base;
+	}
+
+	// Optab id of the instruction, or -1 for directives and unknown mnemonics
+	public int getOpcodeId() {
+		return opcode;
+	}
+
+	// symbol a format 3 or 4 operand is resolved against, or null when the operand
+	// is an immediate constant or the instruction has no address operand
+	public String getTargetSymbol() {
+		if (opcode < 0 || Optab.get(opcode).getInstructionFormat() != 3 || operands.length == 0)
+			return null;
+		boolean isImmediate = modes.contains(AddressingMode.I) && !modes.contains(AddressingMode.N);
+		if (isImmediate && operands[0].matches("\\d+"))
+			return null;
+		return operands[0];
+	}
+
+	public int getInstructionFormat() {
+		if (opcode < 0)
 			throw new IllegalStateException("Invalid instruction: " + instruction);
-		int format = instInfo.getInstructionFormat();
+		int format = Optab.get(opcode).getInstructionFormat();
 		if (format == 3 && modes.contains(AddressingMode.E))
 			format = 4;
 		return format;
@@ -0,0 +1,512 @@
+package simulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+import instruction.InstructionInfo;
+import instruction.Optab;
+
+// A SIC/XE machine: 1 MB of memory, the registers and a predecode cache
+// An instruction is decoded the first time it runs into an operation word and
+// an operand word kept for its address: the dispatch key, length and nixbpe
+// bits, and the target address as far as decoding can tell (PC relative
+// targets are final, base relative and indexed ones still add B or X). Later
+// runs dispatch on those words straight away. Every write to memory drops the
+// decoded instructions overlapping the bytes written, so code that modifies
+// itself is decoded again
+public final class Machine {
+
+	public static final int MEMORY_SIZE = 1 << 20;
+	// register numbers, as format 2 instructions name them
+	public static final int A = 0, X = 1, L = 2, B = 3, S = 4, T = 5, F = 6, PC = 8, SW = 9;
+	// L starts out here, so the program stops when it returns with RSUB or J @L
+	public static final int EXIT = 0xFFFFFF;
+
+	private static final int ADDRESS_MASK = MEMORY_SIZE - 1, WORD_MASK = 0xFFFFFF;
+	// longest instruction, so the one a write can reach starts this far before it
+	private static final int MAX_LENGTH = 4;
+	// instructions run between returns from the interpreter loop
+	private static final int SLICE = 1 << 16;
+
+	// operation word: dispatch key (opcode without n and i), length, ni, x and b
+	private static final int LENGTH_SHIFT = 8, NI_SHIFT = 11;
+	private static final int IMMEDIATE = 1, INDIRECT = 2, SIMPLE = 3;
+	private static final int X_BIT = 1 << 13, B_BIT = 1 << 14, DECODED = 1 << 15;
+
+	// instruction format by opcode with the n and i bits cleared, 0 if none
+	private static final byte[] FORMAT = new byte[256];
+
+	static {
+		for (int id = 0; id < Optab.SIZE; id++) {
+			InstructionInfo info = Optab.get(id);
+			FORMAT[info.getOpcode() & 0xFC] = (byte) info.getInstructionFormat();
+		}
+	}
+
+	private final byte[] memory = new byte[MEMORY_SIZE];
+	private final int[] operation = new int[MEMORY_SIZE];
+	private final int[] operand = new int[MEMORY_SIZE];
+	// A, X, L, B, S and T by number; F is kept as its 48 bits
+	private final int[] registers = new int[T + 1];
+	private long f;
+	private int pc;
+	// condition code: -1 for <, 0 for =, 1 for >
+	private int cc;
+	private boolean halted;
+	private final InputStream[] inputs = new InputStream[256];
+	private final OutputStream[] outputs = new OutputStream[256];
+
+	public Machine() {
+		registers[L] = EXIT;
+	}
+
+	// copy len bytes to memory at addr
+	public void write(int addr, byte[] bytes, int off, int len) {
+		for (int i = 0; i < len; i++)
+			memory[(addr + i) & ADDRESS_MASK] = bytes[off + i];
+		invalidate(addr, len);
+	}
+
+	public int readByte(int addr) {
+		return memory[addr & ADDRESS_MASK] & 0xFF;
+	}
+
+	public int readWord(int addr) {
+		return word(addr);
+	}
+
+	// the value of register r, which may be PC or SW but not F
+	public int register(int r) {
+		switch (r) {
+		case PC:
+			return pc;
+		case SW:
+			return status();
+		default:
+			return registers[check(r)];
+		}
+	}
+
+	public void setRegister(int r, int value) {
+		if (r == PC)
+			pc = value & ADDRESS_MASK;
+		else if (r == SW)
+			cc = (value >> 6 & 3) - 1;
+		else
+			registers[check(r)] = value & WORD_MASK;
+	}
+
+	public double getF() {
+		return SicFloat.toDouble(f);
+	}
+
+	public int conditionCode() {
+		return cc;
+	}
+
+	// true once the program jumped to itself or returned to EXIT
+	public boolean isHalted() {
+		return halted;
+	}
+
+	// RD reads bytes from in and WD writes them to out; devices without a
+	// stream read as end of input and discard what is written
+	public void attach(int device, InputStream in, OutputStream out) {
+		inputs[device & 0xFF] = in;
+		outputs[device & 0xFF] = out;
+	}
+
+	// run until the program halts or limit instructions have run, returning
+	// how many did
+	public long run(long limit) {
+		long count = 0;
+		while (count < limit && !halted)
+			count += execute((int) Math.min(limit - count, SLICE));
+		return count;
+	}
+
+	// the interpreter loop, run in slices so the JIT compiles it as a method
+	// rather than replacing it on the stack once it is hot
+	private int execute(int limit) {
+		int[] regs = registers;
+		int pc = this.pc;
+		int count = 0;
+		try {
+			run: while (count < limit) {
+				int op = operation[pc];
+				if (op == 0)
+					op = decode(pc);
+				int ea = operand[pc];
+				if ((op & (X_BIT | B_BIT)) != 0)
+					ea = (ea + ((op & X_BIT) != 0 ? regs[X] : 0)
+							+ ((op & B_BIT) != 0 ? regs[B] : 0)) & ADDRESS_MASK;
+				int ni = op >> NI_SHIFT & 3;
+				int next = (pc + (op >> LENGTH_SHIFT & 7)) & ADDRESS_MASK;
+				count++;
+				switch (op & 0xFF) {
+				case 0x18: // ADD
+					regs[A] = (regs[A] + value(ni, ea)) & WORD_MASK;
+					break;
+				case 0x1C: // SUB
+					regs[A] = (regs[A] - value(ni, ea)) & WORD_MASK;
+					break;
+				case 0x20: // MUL
+					regs[A] = signed(regs[A]) * signed(value(ni, ea)) & WORD_MASK;
+					break;
+				case 0x24: // DIV
+					regs[A] = divide(regs[A], value(ni, ea), pc);
+					break;
+				case 0x40: // AND
+					regs[A] &= value(ni, ea);
+					break;
+				case 0x44: // OR
+					regs[A] |= value(ni, ea);
+					break;
+				case 0x28: // COMP
+					cc = Integer.compare(signed(regs[A]), signed(value(ni, ea)));
+					break;
+				case 0x2C: // TIX
+					regs[X] = (regs[X] + 1) & WORD_MASK;
+					cc = Integer.compare(signed(regs[X]), signed(value(ni, ea)));
+					break;
+				case 0x00: // LDA
+					regs[A] = value(ni, ea);
+					break;
+				case 0x04: // LDX
+					regs[X] = value(ni, ea);
+					break;
+				case 0x08: // LDL
+					regs[L] = value(ni, ea);
+					break;
+				case 0x68: // LDB
+					regs[B] = value(ni, ea);
+					break;
+				case 0x6C: // LDS
+					regs[S] = value(ni, ea);
+					break;
+				case 0x74: // LDT
+					regs[T] = value(ni, ea);
+					break;
+				case 0x50: // LDCH
+					regs[A] = regs[A] & 0xFFFF00
+							| (ni == IMMEDIATE ? ea : readByte(address(ni, ea))) & 0xFF;
+					break;
+				case 0x0C: // STA
+					store(ni, ea, regs[A]);
+					break;
+				case 0x10: // STX
+					store(ni, ea, regs[X]);
+					break;
+				case 0x14: // STL
+					store(ni, ea, regs[L]);
+					break;
+				case 0x78: // STB
+					store(ni, ea, regs[B]);
+					break;
+				case 0x7C: // STS
+					store(ni, ea, regs[S]);
+					break;
+				case 0x84: // STT
+					store(ni, ea, regs[T]);
+					break;
+				case 0xE8: // STSW
+					store(ni, ea, status());
+					break;
+				case 0x54: { // STCH
+					int addr = address(ni, ea);
+					memory[addr] = (byte) regs[A];
+					invalidate(addr, 1);
+					break;
+				}
+				case 0x3C: // J
+					next = target(ni, ea);
+					if (next == pc) {
+						halted = true;
+						break run;
+					}
+					break;
+				case 0x30: // JEQ
+					if (cc == 0)
+						next = target(ni, ea);
+					break;
+				case 0x34: // JGT
+					if (cc > 0)
+						next = target(ni, ea);
+					break;
+				case 0x38: // JLT
+					if (cc < 0)
+						next = target(ni, ea);
+					break;
+				case 0x48: // JSUB
+					regs[L] = next;
+					next = target(ni, ea);
+					break;
+				case 0x4C: // RSUB
+					next = regs[L];
+					break;
+				case 0x90: // ADDR
+					regs[r2(ea)] = (regs[r2(ea)] + regs[r1(ea)]) & WORD_MASK;
+					break;
+				case 0x94: // SUBR
+					regs[r2(ea)] = (regs[r2(ea)] - regs[r1(ea)]) & WORD_MASK;
+					break;
+				case 0x98: // MULR
+					regs[r2(ea)] = signed(regs[r2(ea)]) * signed(regs[r1(ea)]) & WORD_MASK;
+					break;
+				case 0x9C: // DIVR
+					regs[r2(ea)] = divide(regs[r2(ea)], regs[r1(ea)], pc);
+					break;
+				case 0xA0: // COMPR
+					cc = Integer.compare(signed(regs[r1(ea)]), signed(regs[r2(ea)]));
+					break;
+				case 0xA4: // SHIFTL, circular by n, which is held as n - 1
+					regs[r1(ea)] = shiftLeft(regs[r1(ea)], (ea & 0xF) + 1);
+					break;
+				case 0xA8: // SHIFTR, filling with the sign bit
+					regs[r1(ea)] = signed(regs[r1(ea)]) >> (ea & 0xF) + 1 & WORD_MASK;
+					break;
+				case 0xAC: // RMO
+					regs[r2(ea)] = regs[r1(ea)];
+					break;
+				case 0xB4: // CLEAR
+					regs[r1(ea)] = 0;
+					break;
+				case 0xB8: // TIXR
+					regs[X] = (regs[X] + 1) & WORD_MASK;
+					cc = Integer.compare(signed(regs[X]), signed(regs[r1(ea)]));
+					break;
+				case 0x70: // LDF
+					f = ni == IMMEDIATE ? SicFloat.fromDouble(ea) : float48(address(ni, ea));
+					break;
+				case 0x80: // STF
+					storeFloat(address(ni, ea), f);
+					break;
+				case 0x58: // ADDF
+					f = SicFloat.fromDouble(SicFloat.toDouble(f) + floatValue(ni, ea));
+					break;
+				case 0x5C: // SUBF
+					f = SicFloat.fromDouble(SicFloat.toDouble(f) - floatValue(ni, ea));
+					break;
+				case 0x60: // MULF
+					f = SicFloat.fromDouble(SicFloat.toDouble(f) * floatValue(ni, ea));
+					break;
+				case 0x64: // DIVF
+					f = SicFloat.fromDouble(SicFloat.toDouble(f) / floatValue(ni, ea));
+					break;
+				case 0x88: // COMPF
+					cc = Double.compare(SicFloat.toDouble(f), floatValue(ni, ea));
+					break;
+				case 0xC4: // FIX
+					regs[A] = (int) SicFloat.toDouble(f) & WORD_MASK;
+					break;
+				case 0xC0: // FLOAT
+					f = SicFloat.fromDouble(signed(regs[A]));
+					break;
+				case 0xC8: // NORM, every F value is kept normalized
+					break;
+				case 0xE0: // TD, every device is always ready
+					cc = -1;
+					break;
+				case 0xD8: // RD
+					regs[A] = regs[A] & 0xFFFF00 | read(device(ni, ea));
+					break;
+				case 0xDC: // WD
+					write(device(ni, ea), regs[A]);
+					break;
+				default:
+					throw new IllegalStateException(String.format(
+							"Unsupported instruction %02X at %06X", op & 0xFF, pc));
+				}
+				if (next > ADDRESS_MASK) {
+					pc = next;
+					if (next != EXIT)
+						throw new IllegalStateException(String.format(
+								"Jump out of memory to %06X", next));
+					halted = true;
+					break;
+				}
+				pc = next;
+			}
+		} finally {
+			this.pc = pc;
+		}
+		return count;
+	}
+
+	// decode the instruction at pc into the cache
+	private int decode(int pc) {
+		int first = memory[pc] & 0xFF;
+		int key = first & 0xFC;
+		int format = FORMAT[key];
+		if (format == 0)
+			throw new IllegalStateException(String.format("Invalid opcode %02X at %06X", first,
+					pc));
+		int length = format, ni = SIMPLE, flags = 0, value = 0;
+		if (format == 2) {
+			value = readByte(pc + 1);
+		} else if (format == 3) {
+			int second = readByte(pc + 1);
+			int third = readByte(pc + 2);
+			ni = first & 3;
+			if ((second & 0x80) != 0)
+				flags |= X_BIT;
+			if (ni == 0) {
+				// SIC: a 15 bit address after the x bit
+				ni = SIMPLE;
+				value = (second & 0x7F) << 8 | third;
+			} else {
+				boolean base = (second & 0x40) != 0, relative = (second & 0x20) != 0;
+				int disp;
+				if ((second & 0x10) != 0) {
+					length = 4;
+					disp = (second & 0xF) << 16 | third << 8 | readByte(pc + 3);
+					if (relative)
+						disp = disp << 12 >> 12;
+				} else {
+					disp = (second & 0xF) << 8 | third;
+					if (relative)
+						disp = disp << 20 >> 20;
+				}
+				if (base && relative)
+					throw new IllegalStateException(String.format(
+							"Both base and PC relative at %06X", pc));
+				if (relative) {
+					value = (pc + length + disp) & ADDRESS_MASK;
+				} else {
+					value = disp;
+					if (base)
+						flags |= B_BIT;
+				}
+			}
+		}
+		int op = DECODED | flags | ni << NI_SHIFT | length << LENGTH_SHIFT | key;
+		operation[pc] = op;
+		operand[pc] = value;
+		return op;
+	}
+
+	// format 2 instructions only work on A, X, L, B, S and T
+	private static int check(int r) {
+		if (r < 0 || r > T)
+			throw new IllegalStateException("Not an integer register: " + r);
+		return r;
+	}
+
+	private static int r1(int registers) {
+		return check(registers >> 4);
+	}
+
+	private static int r2(int registers) {
+		return check(registers & 0xF);
+	}
+
+	// forget the decoded instructions that overlap len bytes written at addr
+	private void invalidate(int addr, int len) {
+		for (int a = addr - (MAX_LENGTH - 1); a < addr + len; a++)
+			operation[a & ADDRESS_MASK] = 0;
+	}
+
+	// the operand word of a format 3 or 4 instruction
+	private int value(int ni, int ea) {
+		switch (ni) {
+		case IMMEDIATE:
+			return ea;
+		case INDIRECT:
+			return word(word(ea));
+		default:
+			return word(ea);
+		}
+	}
+
+	// the address an operand is at, or a jump goes to
+	private int address(int ni, int ea) {
+		return ni == INDIRECT ? word(ea) & ADDRESS_MASK : ea;
+	}
+
+	// unmasked, so a jump to EXIT can be told apart
+	private int target(int ni, int ea) {
+		return ni == INDIRECT ? word(ea) : ea;
+	}
+
+	private int device(int ni, int ea) {
+		return ni == IMMEDIATE ? ea & 0xFF : readByte(address(ni, ea));
+	}
+
+	private void store(int ni, int ea, int value) {
+		int addr = address(ni, ea);
+		memory[addr] = (byte) (value >> 16);
+		memory[(addr + 1) & ADDRESS_MASK] = (byte) (value >> 8);
+		memory[(addr + 2) & ADDRESS_MASK] = (byte) value;
+		invalidate(addr, 3);
+	}
+
+	private int word(int addr) {
+		return (memory[addr & ADDRESS_MASK] & 0xFF) << 16
+				| (memory[(addr + 1) & ADDRESS_MASK] & 0xFF) << 8
+				| memory[(addr + 2) & ADDRESS_MASK] & 0xFF;
+	}
+
+	private double floatValue(int ni, int ea) {
+		return ni == IMMEDIATE ? ea : SicFloat.toDouble(float48(address(ni, ea)));
+	}
+
+	private long float48(int addr) {
+		long value = 0;
+		for (int i = 0; i < 6; i++)
+			value = value << 8 | memory[(addr + i) & ADDRESS_MASK] & 0xFF;
+		return value;
+	}
+
+	private void storeFloat(int addr, long value) {
+		for (int i = 0; i < 6; i++)
+			memory[(addr + i) & ADDRESS_MASK] = (byte) (value >> 8 * (5 - i));
+		invalidate(addr, 6);
+	}
+
+	// SW holds the condition code in bits 6 and 7: 00 for <, 01 for =, 10 for >
+	private int status() {
+		return (cc + 1) << 6;
+	}
+
+	private int read(int device) {
+		InputStream in = inputs[device];
+		if (in == null)
+			return 0;
+		try {
+			int b = in.read();
+			return b < 0 ? 0 : b;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void write(int device, int value) {
+		OutputStream out = outputs[device];
+		if (out == null)
+			return;
+		try {
+			out.write(value & 0xFF);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static int divide(int dividend, int divisor, int pc) {
+		if (signed(divisor) == 0)
+			throw new IllegalStateException(String.format("Division by zero at %06X", pc));
+		return signed(dividend) / signed(divisor) & WORD_MASK;
+	}
+
+	private static int shiftLeft(int value, int n) {
+		n %= 24;
+		return (value << n | value >>> 24 - n) & WORD_MASK;
+	}
+
+	// a 24 bit word as a two's complement int
+	private static int signed(int word) {
+		return word << 8 >> 8;
+	}
+
+}
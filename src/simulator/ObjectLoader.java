@@ -0,0 +1,101 @@
+package simulator;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+
+import assembler.ObjectFiles;
+import assembler.ObjectRecords;
+
+// Loads an object program into a Machine at the address its H record gives
+// The records are text or binary, as ObjectWriter writes them, and ObjectFiles
+// reads either. Nothing is relocated: M records against the program itself are
+// already right at its own start address, and D records and the SYMTAB are only
+// of use to other sections and debuggers. A program that needs symbols of
+// another control section, or holds several sections, needs a linking loader
+public final class ObjectLoader implements ObjectRecords {
+
+	private final Machine machine;
+	private String programName;
+	private int startAddr;
+	private boolean ended;
+
+	private ObjectLoader(Machine machine) {
+		this.machine = machine;
+	}
+
+	// a text or a binary object file
+	public static void load(Path objFile, Machine machine) throws IOException {
+		ObjectLoader loader = new ObjectLoader(machine);
+		ObjectFiles.read(objFile, loader);
+		loader.check();
+	}
+
+	// load the records and point PC at the address of the E record
+	public static void load(Iterable<String> records, Machine machine) {
+		ObjectLoader loader = new ObjectLoader(machine);
+		ObjectFiles.readText(records, loader);
+		loader.check();
+	}
+
+	@Override
+	public void header(String programName, int startAddr, int programLength) {
+		next();
+		this.programName = programName;
+		this.startAddr = startAddr;
+	}
+
+	@Override
+	public void define(String[] names, int[] addresses) {
+		next();
+	}
+
+	@Override
+	public void refer(String[] names) {
+		next();
+		throw new IllegalStateException(
+				"EXTREF needs a linking loader: " + String.join(" ", names));
+	}
+
+	@Override
+	public void symbols(Map<String, Integer> symtab) {
+		next();
+	}
+
+	@Override
+	public void text(byte[] bytes, int off, int len, int addr) {
+		next();
+		machine.write(addr, bytes, off, len);
+	}
+
+	@Override
+	public void modification(int addr, int halfBytes, char sign, String symbol) {
+		next();
+		if (!symbol.equals(programName))
+			throw new IllegalStateException("External reference needs a linking loader: " + symbol);
+	}
+
+	@Override
+	public void end(int startAddr) {
+		next();
+		machine.setRegister(Machine.PC, startAddr);
+		ended = true;
+	}
+
+	@Override
+	public void end() {
+		end(startAddr);
+	}
+
+	// nothing may follow the E record
+	private void next() {
+		if (ended)
+			throw new IllegalStateException("Only one control section can be loaded");
+	}
+
+	private void check() {
+		if (programName == null || !ended)
+			throw new IllegalStateException("Object program needs an H and an E record");
+	}
+
+}
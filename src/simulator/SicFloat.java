@@ -0,0 +1,45 @@
+package simulator;
+
+// The 48 bit floating point format of the F register
+// A sign bit, an 11 bit exponent in excess 1024 and a 36 bit fraction with the
+// binary point before it, so the value is 0.fraction * 2^(exponent - 1024).
+// Nonzero values are kept normalized, with the leading fraction bit set
+final class SicFloat {
+
+	private static final int FRACTION_BITS = 36, EXCESS = 1024, MAX_EXPONENT = 0x7FF;
+	private static final long FRACTION_MASK = (1L << FRACTION_BITS) - 1;
+
+	private SicFloat() {
+	}
+
+	static double toDouble(long bits) {
+		long fraction = bits & FRACTION_MASK;
+		if (fraction == 0)
+			return 0;
+		int exponent = (int) (bits >> FRACTION_BITS & MAX_EXPONENT);
+		double value = Math.scalb((double) fraction, exponent - EXCESS - FRACTION_BITS);
+		return (bits >> 47 & 1) != 0 ? -value : value;
+	}
+
+	// rounded to the nearest fraction, saturating at the largest exponent
+	static long fromDouble(double value) {
+		if (value == 0 || Double.isNaN(value))
+			return 0;
+		long sign = value < 0 ? 1L << 47 : 0;
+		value = Math.abs(value);
+		// value is 1.x * 2^e, which is 0.1x * 2^(e + 1)
+		int exponent = Math.getExponent(value) + 1;
+		long fraction = Math.round(Math.scalb(value, FRACTION_BITS - exponent));
+		if (fraction > FRACTION_MASK) {
+			fraction >>= 1;
+			exponent++;
+		}
+		int biased = exponent + EXCESS;
+		if (biased < 0)
+			return 0;
+		if (biased > MAX_EXPONENT)
+			return sign | (long) MAX_EXPONENT << FRACTION_BITS | FRACTION_MASK;
+		return sign | (long) biased << FRACTION_BITS | fraction;
+	}
+
+}